@@ -0,0 +1,181 @@
+package com.adsc.detection;
+
+/**
+ * Tunes the sample rate, the density of the patch grid and the number of dynamic templates while a video is
+ * processed, to keep the mean detection time per frame within a budget.
+ * <p>The runner reports the time spent on every frame with {@link #update(int, long)}. Once
+ * {@link Parameters.AdaptiveParameters#getAdjustInterval()} frames, and at least two sampled frames, were measured
+ * since the last change, their mean is compared to the budget. Outside of the tolerance around it, one setting is
+ * changed. The measure then starts again, changed or not:</p>
+ * <ul>
+ * <li>Over budget, the sample rate is raised first, straight to the rate the mean asks for, as the cost of a frame
+ * is mostly that of the sampled ones. At the highest rate, the patches are moved further apart, then made larger,
+ * which both leave fewer patches, then fewer dynamic templates are kept.</li>
+ * <li>Under budget, the same settings are given back in the reverse order. The sample rate is only lowered as far
+ * as the mean is expected to stay within the budget.</li>
+ * </ul>
+ * <p>Every change is logged. The settings stay within the bounds of {@link Parameters.AdaptiveParameters}.</p>
+ */
+public class AdaptiveController {
+
+    /** Steps of the patch size and of the move between patches, as fractions */
+    private static final double FRACTION_STEP = .05, STRIDE_STEP = .125;
+
+    private final Parameters.AdaptiveParameters params;
+    private int sampleRate, addedTemplates;
+    private double patchFraction, patchStride;
+    private long measuredMillis;
+    private int measuredFrames;
+    private int changes;
+
+    /**
+     * @param params         The bounds and budget
+     * @param sampleRate     The initial sample rate
+     * @param patchFraction  The initial size of the patches, as a fraction of the frame
+     * @param patchStride    The initial move between patches, as a fraction of their size
+     * @param addedTemplates The initial number of dynamic templates kept per logo
+     */
+    public AdaptiveController(Parameters.AdaptiveParameters params, int sampleRate, double patchFraction,
+                              double patchStride, int addedTemplates) {
+        this.params = params;
+        this.sampleRate = clamp(sampleRate, params.getMinSampleRate(), params.getMaxSampleRate());
+        this.patchFraction = clamp(patchFraction, params.getMinPatchFraction(), params.getMaxPatchFraction());
+        this.patchStride = clamp(patchStride, params.getMinPatchStride(), params.getMaxPatchStride());
+        this.addedTemplates = clamp(addedTemplates, params.getMinAddedTemplates(), params.getMaxAddedTemplates());
+    }
+
+    /**
+     * Counts the time spent on a frame, and changes a setting if the mean is out of the budget.
+     *
+     * @param frameId    The number of the frame, for the log
+     * @param frameSpend The time spent on the frame, in milliseconds
+     * @return true if a setting changed
+     */
+    public boolean update(int frameId, long frameSpend) {
+        measuredMillis += frameSpend;
+        measuredFrames++;
+        if (measuredFrames < Math.max(params.getAdjustInterval(), 2 * sampleRate))
+            return false;
+
+        double mean = (double) measuredMillis / measuredFrames;
+        double budget = params.getFrameBudgetMillis();
+        String change = null;
+        if (mean > budget * (1 + params.getTolerance())) {
+            change = degrade(mean, budget);
+        } else if (mean < budget * (1 - params.getTolerance())) {
+            change = improve(mean, budget);
+        }
+        measuredMillis = 0;
+        measuredFrames = 0;
+        if (change == null)
+            return false;
+        changes++;
+        System.out.println("Adaptive: frame " + frameId + ", meanFrameUsed: " + String.format("%.1f", mean)
+                + ", budget: " + budget + ", " + change);
+        return true;
+    }
+
+    /**
+     * @return the number of frames out of which logos are detected on one
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the size of the patches, as a fraction of the frame width and height
+     */
+    public double getPatchFraction() {
+        return patchFraction;
+    }
+
+    /**
+     * @return the move between patches, as a fraction of their width and height
+     */
+    public double getPatchStride() {
+        return patchStride;
+    }
+
+    /**
+     * @return the number of dynamic templates kept per logo
+     */
+    public int getAddedTemplates() {
+        return addedTemplates;
+    }
+
+    /**
+     * @return the number of changes made so far
+     */
+    public int getChanges() {
+        return changes;
+    }
+
+    private String degrade(double mean, double budget) {
+        if (sampleRate < params.getMaxSampleRate()) {
+            int previous = sampleRate;
+            sampleRate = clamp(Math.max(sampleRate + 1, (int) Math.ceil(sampleRate * mean / budget)),
+                    params.getMinSampleRate(), params.getMaxSampleRate());
+            return "sampleRate: " + previous + " -> " + sampleRate;
+        }
+        if (patchStride < params.getMaxPatchStride()) {
+            double previous = patchStride;
+            patchStride = step(patchStride, STRIDE_STEP, params.getMinPatchStride(), params.getMaxPatchStride());
+            return "patchStride: " + previous + " -> " + patchStride;
+        }
+        if (patchFraction < params.getMaxPatchFraction()) {
+            double previous = patchFraction;
+            patchFraction = step(patchFraction, FRACTION_STEP, params.getMinPatchFraction(),
+                    params.getMaxPatchFraction());
+            return "patchFraction: " + previous + " -> " + patchFraction;
+        }
+        if (addedTemplates > params.getMinAddedTemplates()) {
+            int previous = addedTemplates;
+            addedTemplates--;
+            return "addedTemplates: " + previous + " -> " + addedTemplates;
+        }
+        return null;
+    }
+
+    private String improve(double mean, double budget) {
+        if (addedTemplates < params.getMaxAddedTemplates()) {
+            int previous = addedTemplates;
+            addedTemplates++;
+            return "addedTemplates: " + previous + " -> " + addedTemplates;
+        }
+        if (patchFraction > params.getMinPatchFraction()) {
+            double previous = patchFraction;
+            patchFraction = step(patchFraction, -FRACTION_STEP, params.getMinPatchFraction(),
+                    params.getMaxPatchFraction());
+            return "patchFraction: " + previous + " -> " + patchFraction;
+        }
+        if (patchStride > params.getMinPatchStride()) {
+            double previous = patchStride;
+            patchStride = step(patchStride, -STRIDE_STEP, params.getMinPatchStride(), params.getMaxPatchStride());
+            return "patchStride: " + previous + " -> " + patchStride;
+        }
+        // The lowest rate at which the mean is expected to stay within the budget
+        int rate = clamp((int) Math.ceil(sampleRate * mean / budget), params.getMinSampleRate(),
+                params.getMaxSampleRate());
+        if (rate < sampleRate) {
+            int previous = sampleRate;
+            sampleRate = rate;
+            return "sampleRate: " + previous + " -> " + sampleRate;
+        }
+        return null;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Adds delta to the fraction, rounded to avoid drifting away from the bounds and the values logged.
+     */
+    private static double step(double value, double delta, double min, double max) {
+        return clamp(Math.round((value + delta) * 1000) / 1000.0, min, max);
+    }
+}
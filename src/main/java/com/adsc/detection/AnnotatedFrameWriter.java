@@ -0,0 +1,235 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Draws the detected rectangles on the frames and writes them as JPEG files on its own pool of threads.
+ * <p>{@link #write(int, Mat, List)} only copies the frame and the rectangles and queues them, so drawing and
+ * encoding happen off the detection thread. When the queue is full, the caller waits, unless the writer was
+ * created to drop frames in that case, as a live stream should rather lose output frames than fall behind.</p>
+ */
+public class AnnotatedFrameWriter implements FrameSink {
+
+    /** Colors of the rectangles, by logo index */
+    public static final List<Scalar> COLORS = Collections.unmodifiableList(Arrays.asList(
+            new Scalar(255, 0, 255), // magenta
+            new Scalar(0, 255, 255), // yellow
+            new Scalar(255, 255, 0), // cyan
+            new Scalar(0, 0, 255), // blue
+            new Scalar(0, 255, 0), // green
+            new Scalar(255, 0, 0), // red
+            new Scalar(0, 0, 0))); // black
+
+    private final String outputFolder;
+    private final boolean dropWhenBehind;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong outputMillis = new AtomicLong();
+    /** The first failure of a writer thread */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Starts the writer threads.
+     *
+     * @param outputFolder   The folder of the output files
+     * @param numThreads     The number of writer threads
+     * @param queueSize      The number of frames waiting for a writer thread at most
+     * @param dropWhenBehind If true, frames coming while the queue is full are dropped, otherwise the caller waits
+     */
+    public AnnotatedFrameWriter(String outputFolder, int numThreads, int queueSize, boolean dropWhenBehind) {
+        this.outputFolder = outputFolder;
+        this.dropWhenBehind = dropWhenBehind;
+        pool = newWriterPool("frame-writer-", numThreads, queueSize, dropWhenBehind, dropped);
+    }
+
+    /**
+     * Queues the frame for drawing and writing. The frame may be reused by the caller as soon as this returns.
+     *
+     * @param frameId         The id of the frame, the file is named after frameId + 1
+     * @param frame           The image of the frame
+     * @param foundedRectList For each logo, the rectangles to draw
+     * @throws IllegalStateException if writing an earlier frame failed
+     */
+    @Override
+    public void write(int frameId, Mat frame, List<List<SerializableRect>> foundedRectList) {
+        checkFailure(failure);
+        if (dropWhenBehind && pool.getQueue().remainingCapacity() == 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        final String outputFileName = outputFolder + System.getProperty("file.separator")
+                + String.format("frame%06d.jpg", (frameId + 1));
+        final List<List<SerializableRect>> rects = copyRects(foundedRectList);
+        pool.execute(new FrameTask(frame.clone(), failure, copy -> {
+            long outputStart = System.currentTimeMillis();
+            drawRects(copy, rects);
+            if (!Imgcodecs.imwrite(outputFileName, copy))
+                throw new IllegalStateException("Cannot write " + outputFileName);
+            outputMillis.addAndGet(System.currentTimeMillis() - outputStart);
+            written.incrementAndGet();
+        }));
+    }
+
+    /**
+     * Waits until all queued frames are written and stops the writer threads.
+     *
+     * @throws IllegalStateException if writing a frame failed
+     */
+    @Override
+    public void close() {
+        awaitShutdown(pool);
+        checkFailure(failure);
+    }
+
+    /**
+     * @return the number of frames written so far
+     */
+    @Override
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of frames dropped because the writer was behind
+     */
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the time spent drawing and encoding by all writer threads, in milliseconds
+     */
+    @Override
+    public long getOutputMillis() {
+        return outputMillis.get();
+    }
+
+    /**
+     * Draws the rectangles of each logo in its color.
+     *
+     * @param mat             The image to draw on
+     * @param foundedRectList For each logo, the rectangles to draw
+     */
+    public static void drawRects(Mat mat, List<List<SerializableRect>> foundedRectList) {
+        for (int logoIndex = 0; logoIndex < foundedRectList.size(); logoIndex++) {
+            Scalar color = COLORS.get(logoIndex % COLORS.size());
+            if (foundedRectList.get(logoIndex) != null) {
+                for (SerializableRect rect : foundedRectList.get(logoIndex)) {
+                    Imgproc.rectangle(mat, new Point(rect.x, rect.y), new Point(rect.x + rect.width - 1, rect.y + rect.height - 1), color);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the pool of writer threads. When its queue is full, a new frame is dropped and counted if
+     * dropWhenBehind is set, otherwise the caller waits for room in the queue.
+     */
+    static ThreadPoolExecutor newWriterPool(final String threadName, int numThreads, int queueSize,
+                                            final boolean dropWhenBehind, final AtomicLong dropped) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        numThreads = Math.max(1, numThreads);
+        return new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+            Thread t = new Thread(r, threadName + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, (r, executor) -> {
+            if (dropWhenBehind || executor.isShutdown()) {
+                discard(r, dropped);
+                return;
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                discard(r, dropped);
+            }
+        });
+    }
+
+    private static void discard(Runnable r, AtomicLong dropped) {
+        if (r instanceof FrameTask)
+            ((FrameTask) r).copy.release();
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Throws the first failure of the writer threads, if any.
+     */
+    static void checkFailure(AtomicReference<Throwable> failure) {
+        Throwable t = failure.get();
+        if (t != null)
+            throw new IllegalStateException("Writing the output failed", t);
+    }
+
+    /**
+     * A frame queued for a writer thread. The copy of the frame is released once written, or when the pool drops
+     * it. A failure is recorded, to be thrown on the thread using the writer.
+     */
+    static final class FrameTask implements Runnable {
+        private final Mat copy;
+        private final AtomicReference<Throwable> failure;
+        private final Consumer<Mat> output;
+
+        FrameTask(Mat copy, AtomicReference<Throwable> failure, Consumer<Mat> output) {
+            this.copy = copy;
+            this.failure = failure;
+            this.output = output;
+        }
+
+        @Override
+        public void run() {
+            try {
+                output.accept(copy);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                copy.release();
+            }
+        }
+    }
+
+    /**
+     * Waits until the tasks queued in the pool are done and stops its threads.
+     */
+    static void awaitShutdown(ThreadPoolExecutor pool) {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return a copy of the lists of rectangles, which the detectors may change after the frame was queued
+     */
+    static List<List<SerializableRect>> copyRects(List<List<SerializableRect>> foundedRectList) {
+        List<List<SerializableRect>> rects = new ArrayList<>();
+        for (List<SerializableRect> logoRects : foundedRectList) {
+            rects.add(logoRects != null ? new ArrayList<>(logoRects) : null);
+        }
+        return rects;
+    }
+}
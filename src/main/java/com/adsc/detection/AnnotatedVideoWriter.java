@@ -0,0 +1,135 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.videoio.VideoWriter;
+
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Draws the detected rectangles on the frames and appends them to a Motion JPEG video, instead of writing one
+ * JPEG file per frame.
+ * <p>Frames are encoded by a single thread, in the order they were queued. If segmentFrames is positive, a new
+ * file is started every segmentFrames frames, so that a long stream ends up in a few files of bounded size:
+ * output0000.avi, output0001.avi and so on.</p>
+ */
+public class AnnotatedVideoWriter implements FrameSink {
+
+    /** The name of the files, formatted with the number of the segment */
+    public static final String SEGMENT_FILE_FORMAT = "output%04d.avi";
+
+    private final String outputFolder;
+    private final double fps;
+    private final int segmentFrames;
+    private final boolean dropWhenBehind;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong outputMillis = new AtomicLong();
+    /** The first failure of the writer thread */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /** Only used by the writer thread */
+    private VideoWriter videoWriter;
+    private int segment = -1, segmentWritten;
+
+    /**
+     * Starts the writer thread. The files are opened with the size of the first frame written into them.
+     *
+     * @param outputFolder   The folder of the output files
+     * @param fps            The frame rate of the output
+     * @param segmentFrames  The number of frames per file, 0 to write a single file
+     * @param queueSize      The number of frames waiting for the writer thread at most
+     * @param dropWhenBehind If true, frames coming while the queue is full are dropped, otherwise the caller waits
+     */
+    public AnnotatedVideoWriter(String outputFolder, double fps, int segmentFrames, int queueSize,
+                                boolean dropWhenBehind) {
+        this.outputFolder = outputFolder;
+        this.fps = fps;
+        this.segmentFrames = segmentFrames;
+        this.dropWhenBehind = dropWhenBehind;
+        pool = AnnotatedFrameWriter.newWriterPool("video-writer-", 1, queueSize, dropWhenBehind, dropped);
+    }
+
+    /**
+     * Queues the frame for drawing and appending to the video.
+     *
+     * @throws IllegalStateException if writing an earlier frame failed, e.g. the file could not be opened
+     */
+    @Override
+    public void write(int frameId, Mat frame, List<List<SerializableRect>> foundedRectList) {
+        AnnotatedFrameWriter.checkFailure(failure);
+        if (dropWhenBehind && pool.getQueue().remainingCapacity() == 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        final List<List<SerializableRect>> rects = AnnotatedFrameWriter.copyRects(foundedRectList);
+        pool.execute(new AnnotatedFrameWriter.FrameTask(frame.clone(), failure, copy -> {
+            long outputStart = System.currentTimeMillis();
+            AnnotatedFrameWriter.drawRects(copy, rects);
+            append(copy);
+            outputMillis.addAndGet(System.currentTimeMillis() - outputStart);
+            written.incrementAndGet();
+        }));
+    }
+
+    /**
+     * Waits until all queued frames are written and closes the file.
+     *
+     * @throws IllegalStateException if writing a frame failed
+     */
+    @Override
+    public void close() {
+        AnnotatedFrameWriter.awaitShutdown(pool);
+        if (videoWriter != null) {
+            videoWriter.release();
+            videoWriter = null;
+        }
+        AnnotatedFrameWriter.checkFailure(failure);
+    }
+
+    @Override
+    public long getWritten() {
+        return written.get();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getOutputMillis() {
+        return outputMillis.get();
+    }
+
+    /**
+     * Appends the frame to the current file, starting the next one first if the current one is full.
+     */
+    private void append(Mat frame) {
+        if (videoWriter == null || (segmentFrames > 0 && segmentWritten >= segmentFrames)) {
+            if (videoWriter != null) {
+                videoWriter.release();
+                videoWriter = null;
+            }
+            segment++;
+            segmentWritten = 0;
+            String fileName = outputFolder + System.getProperty("file.separator")
+                    + String.format(SEGMENT_FILE_FORMAT, segment);
+            VideoWriter next = new VideoWriter(fileName, VideoWriter.fourcc('M', 'J', 'P', 'G'), fps,
+                    new Size(frame.cols(), frame.rows()));
+            if (!next.isOpened()) {
+                next.release();
+                throw new IllegalStateException("Cannot open video output " + fileName);
+            }
+            videoWriter = next;
+        }
+        videoWriter.write(frame);
+        segmentWritten++;
+    }
+}
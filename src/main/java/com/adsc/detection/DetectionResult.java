@@ -0,0 +1,71 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+/**
+ * Result of a successful detection of a logo on one patch: the rectangle enclosing the logo (relative to the
+ * whole frame), the logo template extracted from the patch, the identifier of the template using which
+ * the logo was detected, so called 'parent' template, and how well the template matched.
+ * <p>Instances are immutable, so they can be handed over between threads.</p>
+ */
+public final class DetectionResult {
+    private final SerializableRect foundRect;
+    private final SerializableMat extractedTemplate;
+    private final SerializablePatchIdentifier parentIdentifier;
+    private final int matches;
+    private final int inliers;
+
+    public DetectionResult(SerializableRect foundRect, SerializableMat extractedTemplate,
+                           SerializablePatchIdentifier parentIdentifier) {
+        this(foundRect, extractedTemplate, parentIdentifier, 0, 0);
+    }
+
+    /**
+     * @param matches The number of matches between the template and the patch passing the ratio and symmetry tests
+     * @param inliers The number of those matches the homography kept as inliers
+     */
+    public DetectionResult(SerializableRect foundRect, SerializableMat extractedTemplate,
+                           SerializablePatchIdentifier parentIdentifier, int matches, int inliers) {
+        this.foundRect = foundRect;
+        this.extractedTemplate = extractedTemplate;
+        this.parentIdentifier = parentIdentifier;
+        this.matches = matches;
+        this.inliers = inliers;
+    }
+
+    /**
+     * @return the rectangle enclosing detected logo
+     */
+    public SerializableRect getFoundRect() {
+        return foundRect;
+    }
+
+    /**
+     * @return the image of the logo template extracted from the patch
+     */
+    public SerializableMat getExtractedTemplate() {
+        return extractedTemplate;
+    }
+
+    /**
+     * @return identifier of the template using which the logo was detected
+     */
+    public SerializablePatchIdentifier getParentIdentifier() {
+        return parentIdentifier;
+    }
+
+    /**
+     * @return the number of matches between the template and the patch passing the ratio and symmetry tests,
+     * 0 if unknown
+     */
+    public int getMatches() {
+        return matches;
+    }
+
+    /**
+     * @return the number of matches kept as inliers by the homography, 0 if unknown
+     */
+    public int getInliers() {
+        return inliers;
+    }
+}
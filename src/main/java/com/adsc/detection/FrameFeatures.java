@@ -0,0 +1,93 @@
+package com.adsc.detection;
+
+import org.opencv.core.*;
+import org.opencv.xfeatures2d.SIFT;
+
+/**
+ * SIFT key points and descriptors of a whole frame, extracted once and then sliced into patches.
+ * <p>Neighbouring patches overlap, so extracting the features of every patch separately processes most pixels
+ * several times. Here the frame is processed once, and {@link #slice(Rect)} gives each patch the key points lying
+ * inside its rectangle (with coordinates relative to the patch) together with their descriptors. Matching still
+ * happens patch by patch.</p>
+ * <p>Key points and descriptors are copied out of native memory once, so slicing is plain array work and several
+ * threads may slice the same instance at once.</p>
+ */
+public class FrameFeatures {
+
+    private final Mat frame;
+    private final int count;
+    private final float[] keyPoints;
+    private final float[] descriptors;
+    private final int descriptorSize;
+
+    /**
+     * Extracts the features of the whole frame.
+     *
+     * @param sift  SIFT object for feature extraction
+     * @param frame The image of the whole frame
+     */
+    public FrameFeatures(SIFT sift, Mat frame) {
+        this.frame = frame;
+        MatOfKeyPoint kp = new MatOfKeyPoint();
+        Mat desc = new Mat();
+        sift.detectAndCompute(frame, new Mat(), kp, desc);
+
+        count = kp.rows();
+        keyPoints = new float[count * MatchArrays.KEYPOINT_FIELDS];
+        if (count > 0)
+            kp.get(0, 0, keyPoints);
+        descriptorSize = desc.cols();
+        descriptors = new float[count * descriptorSize];
+        if (count > 0)
+            desc.get(0, 0, descriptors);
+
+        kp.release();
+        desc.release();
+    }
+
+    /**
+     * Builds the features of one patch out of the features of the frame.
+     *
+     * @param roi The rectangle corresponding to the patch
+     * @return features of the patch, to be released by the caller
+     */
+    public SIFTfeatures slice(Rect roi) {
+        int xMax = roi.x + roi.width, yMax = roi.y + roi.height;
+        int[] selected = new int[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            float x = keyPoints[i * MatchArrays.KEYPOINT_FIELDS], y = keyPoints[i * MatchArrays.KEYPOINT_FIELDS + 1];
+            if (x >= roi.x && x < xMax && y >= roi.y && y < yMax)
+                selected[n++] = i;
+        }
+
+        float[] patchKeyPoints = new float[n * MatchArrays.KEYPOINT_FIELDS];
+        float[] patchDescriptors = new float[n * descriptorSize];
+        for (int j = 0; j < n; j++) {
+            int i = selected[j];
+            System.arraycopy(keyPoints, i * MatchArrays.KEYPOINT_FIELDS, patchKeyPoints,
+                    j * MatchArrays.KEYPOINT_FIELDS, MatchArrays.KEYPOINT_FIELDS);
+            // making coordinates relative to the patch
+            patchKeyPoints[j * MatchArrays.KEYPOINT_FIELDS] -= roi.x;
+            patchKeyPoints[j * MatchArrays.KEYPOINT_FIELDS + 1] -= roi.y;
+            System.arraycopy(descriptors, i * descriptorSize, patchDescriptors, j * descriptorSize, descriptorSize);
+        }
+
+        MatOfKeyPoint kp = new MatOfKeyPoint();
+        Mat desc = new Mat();
+        if (n > 0) {
+            kp.create(n, 1, CvType.CV_32FC(MatchArrays.KEYPOINT_FIELDS));
+            kp.put(0, 0, patchKeyPoints);
+            desc.create(n, descriptorSize, CvType.CV_32F);
+            desc.put(0, 0, patchDescriptors);
+        }
+        return new SIFTfeatures(frame, roi, kp, desc);
+    }
+
+    /**
+     * @return the number of key points found on the whole frame
+     */
+    public int size() {
+        return count;
+    }
+}
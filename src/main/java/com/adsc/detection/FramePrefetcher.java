@@ -0,0 +1,199 @@
+package com.adsc.detection;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decodes and resizes the frames of a video on its own thread, ahead of detection.
+ * <p>The frames are resized into a fixed ring of buffers allocated once. A buffer goes from the free queue to the
+ * producer, then through the ready queue to the consumer, which gives it back with {@link #recycle(Mat)} when it is
+ * done with the frame. When all buffers are in use, the producer waits, so it never runs more than the size of
+ * the ring ahead of detection.</p>
+ * <p>A consumer that must not wait, such as a task on a shared pool, uses {@link #poll()} instead of
+ * {@link #take()}, and a listener set with {@link #setReadyListener(Runnable)} to know when to poll again.</p>
+ * <p>Usage:</p>
+ * <pre>
+ * FramePrefetcher prefetcher = new FramePrefetcher(capture, firstFrame, frameCount, new Size(W, H), 4);
+ * prefetcher.start();
+ * Mat mat;
+ * while ((mat = prefetcher.take()) != null) {
+ *     ...
+ *     prefetcher.recycle(mat);
+ * }
+ * prefetcher.close();
+ * </pre>
+ */
+public class FramePrefetcher {
+
+    private final VideoCapture capture;
+    private final int firstFrame, frameCount;
+    private final Size size;
+    private final BlockingQueue<Mat> free, ready;
+    /** Put into the ready queue after the last frame */
+    private final Mat end;
+    private final Thread producer;
+    private volatile Throwable failure;
+    private boolean finished;
+    private Runnable readyListener;
+
+    /**
+     * Allocates the ring of buffers.
+     *
+     * @param capture    The opened video
+     * @param firstFrame The 0-based position of the first frame to read
+     * @param frameCount The maximal number of frames to read
+     * @param size       The size the frames are resized to
+     * @param capacity   The number of buffers, that is how many frames may be decoded ahead
+     */
+    public FramePrefetcher(VideoCapture capture, int firstFrame, int frameCount, Size size, int capacity) {
+        this.capture = capture;
+        this.firstFrame = firstFrame;
+        this.frameCount = frameCount;
+        this.size = size;
+        capacity = Math.max(1, capacity);
+        free = new ArrayBlockingQueue<>(capacity);
+        ready = new ArrayBlockingQueue<>(capacity + 1);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new Mat(size, CvType.CV_8UC3));
+        }
+        end = new Mat();
+        producer = new Thread(this::produce, "frame-prefetcher");
+        producer.setDaemon(true);
+    }
+
+    /**
+     * Sets a listener called on the decoding thread after every frame is decoded and after the end is reached. It
+     * must not block, and must be set before {@link #start()}.
+     */
+    public void setReadyListener(Runnable readyListener) {
+        this.readyListener = readyListener;
+    }
+
+    /**
+     * Seeks to the first frame and starts decoding.
+     */
+    public void start() {
+        producer.start();
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return the next frame, to be given back with {@link #recycle(Mat)}, or null after the last one
+     */
+    public Mat take() {
+        if (finished)
+            return null;
+        Mat mat;
+        try {
+            mat = ready.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a frame", e);
+        }
+        return checkEnd(mat);
+    }
+
+    /**
+     * Returns the next frame if it is decoded already, without waiting.
+     *
+     * @return the next frame, to be given back with {@link #recycle(Mat)}, or null if it is not decoded yet or after
+     * the last one, see {@link #isFinished()}
+     */
+    public Mat poll() {
+        if (finished)
+            return null;
+        Mat mat = ready.poll();
+        return mat != null ? checkEnd(mat) : null;
+    }
+
+    /**
+     * @return true if {@link #poll()} would not return null for lack of a decoded frame
+     */
+    public boolean isReady() {
+        return finished || !ready.isEmpty();
+    }
+
+    /**
+     * @return true once {@link #take()} or {@link #poll()} returned null after the last frame
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Gives a frame returned by {@link #take()} back to the ring. It must not be used afterwards.
+     */
+    public void recycle(Mat mat) {
+        free.offer(mat);
+    }
+
+    /**
+     * Stops the producer and releases the buffers.
+     */
+    public void close() {
+        producer.interrupt();
+        try {
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Mat mat;
+        while ((mat = free.poll()) != null) {
+            mat.release();
+        }
+        while ((mat = ready.poll()) != null) {
+            mat.release();
+        }
+    }
+
+    private Mat checkEnd(Mat mat) {
+        if (mat == end) {
+            finished = true;
+            if (failure != null)
+                throw new IllegalStateException("Reading the video failed", failure);
+            return null;
+        }
+        return mat;
+    }
+
+    private void produce() {
+        Mat decoded = new Mat();
+        try {
+            if (firstFrame > 0)
+                capture.set(Videoio.CAP_PROP_POS_FRAMES, firstFrame);
+            for (int i = 0; i < frameCount; i++) {
+                Mat buffer = free.take();
+                if (!capture.read(decoded) || decoded.empty()) {
+                    free.offer(buffer);
+                    break;
+                }
+                Imgproc.resize(decoded, buffer, size);
+                ready.put(buffer);
+                signalReady();
+            }
+        } catch (InterruptedException e) {
+            // Closed before the end of the video
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            decoded.release();
+            // There is always room for the end marker: the ready queue is one longer than the ring
+            ready.offer(end);
+            signalReady();
+        }
+    }
+
+    private void signalReady() {
+        if (readyListener != null) {
+            readyListener.run();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+/**
+ * The output of the runners: receives every annotated frame.
+ * <p>Implementations draw and encode on their own threads, so {@link #write(int, Mat, List)} must copy whatever it
+ * keeps: the caller may reuse the frame as soon as it returns.</p>
+ *
+ * @see AnnotatedFrameWriter
+ * @see AnnotatedVideoWriter
+ */
+public interface FrameSink {
+
+    /**
+     * Queues the frame for drawing and writing.
+     *
+     * @param frameId         The id of the frame
+     * @param frame           The image of the frame
+     * @param foundedRectList For each logo, the rectangles to draw
+     */
+    void write(int frameId, Mat frame, List<List<SerializableRect>> foundedRectList);
+
+    /**
+     * Waits until all queued frames are written and releases the output.
+     */
+    void close();
+
+    /**
+     * @return the number of frames written so far
+     */
+    long getWritten();
+
+    /**
+     * @return the number of frames dropped because the output was behind
+     */
+    long getDropped();
+
+    /**
+     * @return the time spent drawing and encoding, in milliseconds
+     */
+    long getOutputMillis();
+}
@@ -0,0 +1,154 @@
+package com.adsc.detection;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Reads a folder of numbered frames, frame000001.jpg, frame000002.jpg and so on, decoding a few of them ahead on a
+ * small pool of threads.
+ * <p>The files are decoded in parallel but handed out in the order of their numbers. A missing or unreadable file
+ * is reported and skipped. At most the given number of frames are decoded ahead of the one being used.</p>
+ */
+public class ImageFolderReader {
+
+    /** The name of the files, formatted with their number */
+    public static final String FRAME_FILE_FORMAT = "frame%06d.jpg";
+
+    private final String folder;
+    private final int lastNumber;
+    private final int ahead;
+    private final Function<String, Mat> decoder;
+    private final ExecutorService pool;
+    private final ArrayDeque<Future<Mat>> pending;
+    /** Number of the next file to submit */
+    private int nextNumber;
+    /** Number of the file of the frame returned last */
+    private int currentNumber;
+    private int missing;
+
+    /**
+     * Starts decoding the first frames.
+     *
+     * @param folder      The folder of the frames
+     * @param firstNumber The number of the first file
+     * @param count       The number of files, missing ones included
+     * @param numThreads  The number of decoding threads
+     * @param ahead       The maximal number of frames decoded ahead
+     */
+    public ImageFolderReader(String folder, int firstNumber, int count, int numThreads, int ahead) {
+        this(folder, firstNumber, count, numThreads, ahead, ImageFolderReader::read);
+    }
+
+    /**
+     * Starts decoding the first frames with the given decoder, which returns null for a missing file.
+     */
+    ImageFolderReader(String folder, int firstNumber, int count, int numThreads, int ahead,
+                      Function<String, Mat> decoder) {
+        this.folder = folder;
+        this.decoder = decoder;
+        this.lastNumber = firstNumber + count - 1;
+        this.ahead = Math.max(1, ahead);
+        final AtomicInteger threadCount = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Math.max(1, numThreads), r -> {
+            Thread t = new Thread(r, "image-reader-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pending = new ArrayDeque<>();
+        nextNumber = firstNumber;
+        currentNumber = firstNumber - 1;
+        fill();
+    }
+
+    /**
+     * Waits for the next frame, skipping the missing ones.
+     *
+     * @return the next frame, or null after the last file
+     */
+    public Mat next() {
+        while (!pending.isEmpty()) {
+            Mat mat = waitFor(pending.poll());
+            currentNumber++;
+            fill();
+            if (mat != null)
+                return mat;
+            missing++;
+            System.out.println("File not exist: " + fileName(currentNumber));
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of the file of the frame returned last by {@link #next()}
+     */
+    public int getCurrentNumber() {
+        return currentNumber;
+    }
+
+    /**
+     * @return the number of files skipped so far
+     */
+    public int getMissing() {
+        return missing;
+    }
+
+    /**
+     * Stops the decoding threads. Frames decoded ahead and not used are released.
+     */
+    public void close() {
+        for (Future<Mat> future : pending) {
+            future.cancel(false);
+        }
+        pool.shutdown();
+        for (Future<Mat> future : pending) {
+            if (!future.isCancelled()) {
+                Mat mat = waitFor(future);
+                if (mat != null)
+                    mat.release();
+            }
+        }
+        pending.clear();
+    }
+
+    private void fill() {
+        while (pending.size() < ahead && nextNumber <= lastNumber) {
+            final String fileName = fileName(nextNumber++);
+            pending.add(pool.submit(() -> decoder.apply(fileName)));
+        }
+    }
+
+    private String fileName(int number) {
+        return folder + System.getProperty("file.separator") + String.format(FRAME_FILE_FORMAT, number);
+    }
+
+    private static Mat read(String fileName) {
+        if (!new File(fileName).exists())
+            return null;
+        Mat mat = Imgcodecs.imread(fileName);
+        if (mat.empty()) {
+            mat.release();
+            return null;
+        }
+        return mat;
+    }
+
+    private static Mat waitFor(Future<Mat> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a frame", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Reading a frame failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.adsc.detection;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a live stream on its own ingest thread and keeps only its newest frame, for detection with bounded latency.
+ * <p>Unlike {@link FramePrefetcher}, which never loses a frame and makes the reader wait for detection, the ingest
+ * thread here never waits: each frame read replaces the one in the slot if detection has not taken it yet, and the
+ * replaced frame is counted as dropped. {@link #take()} returns the newest frame, so a slow frame makes the next
+ * ones be skipped instead of queued, and the latency does not grow.</p>
+ * <p>The ingest thread is a daemon platform thread, one per stream. Reading a frame blocks in native code, where a
+ * virtual thread would pin its carrier thread, so virtual threads would not let more streams share fewer threads.
+ * The threads mostly wait for the network, so each stream costs the stack of its thread rather than a core.</p>
+ * <p>A consumer that must not wait, such as a task on a shared pool, uses {@link #poll()} instead of
+ * {@link #take()}, and a listener set with {@link #setReadyListener(Runnable)} to know when to poll again.</p>
+ * <p>The frames are resized into three buffers allocated once: one being filled by the ingest thread, one in the
+ * slot and one used by detection, given back with {@link #recycle(Frame)}.</p>
+ */
+public class LiveFrameSource {
+
+    private final VideoCapture capture;
+    private final int frameCount;
+    private final Size size;
+    private final BlockingQueue<Frame> free = new ArrayBlockingQueue<>(3);
+    private final Thread ingest;
+    /** The newest frame not taken yet, guarded by this */
+    private Frame latest;
+    /** Set by the ingest thread after the last frame, guarded by this */
+    private boolean ended;
+    /** Set once the end was returned to the consumer, guarded by this */
+    private boolean finished;
+    private Runnable readyListener;
+    private volatile Throwable failure;
+    private volatile long ingested, dropped;
+    private volatile long results, totalLatencyNanos, maxLatencyNanos;
+
+    /**
+     * A frame of the stream, with the time it was read.
+     */
+    public static class Frame {
+        private final Mat mat;
+        private int number;
+        private long readNanos;
+
+        private Frame(Mat mat) {
+            this.mat = mat;
+        }
+
+        /**
+         * @return the resized image, valid until the frame is recycled
+         */
+        public Mat getMat() {
+            return mat;
+        }
+
+        /**
+         * @return the 0-based number of the frame among the frames read, including the dropped ones
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} at which the frame was read
+         */
+        public long getReadNanos() {
+            return readNanos;
+        }
+    }
+
+    /**
+     * Allocates the buffers.
+     *
+     * @param capture    The opened stream
+     * @param frameCount The maximal number of frames to read
+     * @param size       The size the frames are resized to
+     * @param name       The name of the ingest thread
+     */
+    public LiveFrameSource(VideoCapture capture, int frameCount, Size size, String name) {
+        this.capture = capture;
+        this.frameCount = frameCount;
+        this.size = size;
+        for (int i = 0; i < 3; i++) {
+            free.add(new Frame(new Mat(size, CvType.CV_8UC3)));
+        }
+        ingest = new Thread(this::ingest, name);
+        ingest.setDaemon(true);
+    }
+
+    /**
+     * Sets a listener called on the ingest thread after every frame is read and after the end of the stream. It
+     * must not block, and must be set before {@link #start()}.
+     */
+    public void setReadyListener(Runnable readyListener) {
+        this.readyListener = readyListener;
+    }
+
+    /**
+     * Starts reading the stream.
+     */
+    public void start() {
+        ingest.start();
+    }
+
+    /**
+     * Waits for a frame newer than the last one taken.
+     *
+     * @return the newest frame, to be given back with {@link #recycle(Frame)}, or null once the stream ended
+     */
+    public synchronized Frame take() {
+        try {
+            while (latest == null && !ended) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a frame", e);
+        }
+        return poll();
+    }
+
+    /**
+     * Returns the newest frame if there is one newer than the last one taken, without waiting.
+     *
+     * @return the newest frame, to be given back with {@link #recycle(Frame)}, or null if there is none yet or once
+     * the stream ended, see {@link #isFinished()}
+     */
+    public synchronized Frame poll() {
+        Frame frame = latest;
+        latest = null;
+        if (frame == null && ended) {
+            finished = true;
+            if (failure != null)
+                throw new IllegalStateException("Reading the stream failed", failure);
+        }
+        return frame;
+    }
+
+    /**
+     * @return true if {@link #poll()} would not return null for lack of a new frame
+     */
+    public synchronized boolean isReady() {
+        return latest != null || ended;
+    }
+
+    /**
+     * @return true once {@link #take()} or {@link #poll()} returned null after the end of the stream
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Gives a frame returned by {@link #take()} back, once its results are final, and counts its latency from the
+     * time it was read. It must not be used afterwards.
+     */
+    public void recycle(Frame frame) {
+        long latency = System.nanoTime() - frame.readNanos;
+        results++;
+        totalLatencyNanos += latency;
+        if (latency > maxLatencyNanos) {
+            maxLatencyNanos = latency;
+        }
+        free.offer(frame);
+    }
+
+    /**
+     * Stops the ingest thread and releases the buffers.
+     * <p>A read blocked in native code cannot be interrupted, so this waits for the read in progress to return, for
+     * a stalled network stream until the timeout of its backend. The capture is not released here, as releasing it
+     * while the ingest thread reads from it is not safe; the caller releases it afterwards.</p>
+     */
+    public void close() {
+        ingest.interrupt();
+        try {
+            ingest.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Frame frame;
+        while ((frame = free.poll()) != null) {
+            frame.mat.release();
+        }
+        synchronized (this) {
+            if (latest != null) {
+                latest.mat.release();
+                latest = null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames read from the stream
+     */
+    public long getIngested() {
+        return ingested;
+    }
+
+    /**
+     * @return the number of frames read but replaced by a newer one before detection took them
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of frames given back with {@link #recycle(Frame)}
+     */
+    public long getResults() {
+        return results;
+    }
+
+    /**
+     * @return the mean time from reading a frame to its results, in milliseconds
+     */
+    public double getMeanLatencyMillis() {
+        return results > 0 ? totalLatencyNanos / 1e6 / results : 0;
+    }
+
+    /**
+     * @return the longest time from reading a frame to its results, in milliseconds
+     */
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos / 1e6;
+    }
+
+    private void ingest() {
+        Mat decoded = new Mat();
+        try {
+            for (int i = 0; i < frameCount && !Thread.currentThread().isInterrupted(); i++) {
+                // Never waits long: detection holds one buffer at most and the slot another one
+                Frame frame = free.take();
+                if (!capture.read(decoded) || decoded.empty()) {
+                    free.offer(frame);
+                    break;
+                }
+                frame.readNanos = System.nanoTime();
+                frame.number = i;
+                Imgproc.resize(decoded, frame.mat, size);
+                ingested++;
+
+                Frame replaced;
+                synchronized (this) {
+                    replaced = latest;
+                    latest = frame;
+                    notifyAll();
+                }
+                if (replaced != null) {
+                    dropped++;
+                    free.offer(replaced);
+                }
+                signalReady();
+            }
+        } catch (InterruptedException e) {
+            // Closed before the end of the stream
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            decoded.release();
+            synchronized (this) {
+                ended = true;
+                notifyAll();
+            }
+            signalReady();
+        }
+    }
+
+    private void signalReady() {
+        if (readyListener != null) {
+            readyListener.run();
+        }
+    }
+}
@@ -4,6 +4,8 @@ import org.opencv.core.Mat;
 import org.opencv.core.MatOfKeyPoint;
 import com.adsc.detection.utils.SerializableStructure.*;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  *
  * <p>Descriptors and keypoints are precomputed before matching occurs, so that there is no need to extract features
@@ -17,14 +19,22 @@ import com.adsc.detection.utils.SerializableStructure.*;
  * that is created during real-time detection. Those that were there from the beginning (original logo templates,
  * loaded during initialization) have not been extracted from the video, and hence their patch identifier have
  * negative frameId and null rectangle.</p>
+ * <p>Templates are ordered by decreasing priority, and templates of equal priority by the order of their creation.
+ * Note that this ordering is not consistent with equals, which only compares identifiers.</p>
  */
 public class LogoTemplate implements Comparable<LogoTemplate> {
     Mat imageMat;
     Mat descriptor;
     MatOfKeyPoint keyPoints;
 
+    /** Source of creation order numbers, used to break ties between templates of equal priority */
+    private static final AtomicLong sequenceCounter = new AtomicLong();
+
     SerializablePatchIdentifier identifier;
-    public int priority;
+    private int priority;
+    private final long sequence;
+    /** Set on copies sharing the Mats of another template, which must not release them */
+    private boolean sharedMats;
 
     /* Creates template with given image, key points, descriptor, and identifier */
     public LogoTemplate(Mat mat, MatOfKeyPoint keyPoints, Mat descriptor, SerializablePatchIdentifier identifier)
@@ -34,6 +44,45 @@ public class LogoTemplate implements Comparable<LogoTemplate> {
         this.keyPoints = keyPoints;
         this.identifier = identifier;
         priority = 0;
+        sequence = sequenceCounter.getAndIncrement();
+    }
+
+    /* Creates template with given priority, e.g. a copy or a template read from a file */
+    LogoTemplate(Mat mat, MatOfKeyPoint keyPoints, Mat descriptor, SerializablePatchIdentifier identifier,
+                 int priority)
+    {
+        this(mat, keyPoints, descriptor, identifier);
+        this.priority = priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Adds value to the priority. Only for {@link TemplateStore}, which must take the template out of its ordered
+     * set while the priority changes.
+     */
+    void addPriority(int value) {
+        priority += value;
+    }
+
+    /**
+     * Marks the template as sharing its Mats with another one, so that {@link #release()} leaves them alone.
+     */
+    void markSharedMats() {
+        sharedMats = true;
+    }
+
+    /**
+     * Releases the Mats of the template, unless it shares them. It must not be used afterwards.
+     */
+    void release() {
+        if (sharedMats)
+            return;
+        imageMat.release();
+        keyPoints.release();
+        descriptor.release();
     }
 
     @Override
@@ -60,6 +109,7 @@ public class LogoTemplate implements Comparable<LogoTemplate> {
     @Override
     public int compareTo(LogoTemplate o) {
         if (this.priority > o.priority) return -1;
-        return 1;
+        if (this.priority < o.priority) return 1;
+        return Long.compare(this.sequence, o.sequence);
     }
 }
\ No newline at end of file
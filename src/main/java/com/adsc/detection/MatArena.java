@@ -0,0 +1,99 @@
+package com.adsc.detection;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the temporary Mats of a scope, such as one frame or one match, and releases them all at once at its end.
+ * <p>The native memory of a Mat is only freed by {@link Mat#release()} or by its finalizer. The Java objects are
+ * small, so the heap rarely fills up enough for the finalizers to run, and in long runs the native memory keeps
+ * growing. Adding the temporaries to an arena and calling {@link #release()} at the end of the scope frees them
+ * deterministically.</p>
+ * <p>The arenas also count the native bytes of the Mats they hold, in {@link #getLiveBytes()} and
+ * {@link #getPeakBytes()} for all arenas together. A Mat is counted when it is added and counted again at release,
+ * as an empty Mat given to OpenCV as output is only filled afterwards. Submatrices share the data of their parent
+ * and are not counted.</p>
+ * <p>An arena is used by one thread, the counters may be read from any thread.</p>
+ */
+public class MatArena {
+
+    private static final AtomicLong liveBytes = new AtomicLong();
+    private static final AtomicLong peakBytes = new AtomicLong();
+
+    private final ArrayList<Mat> mats = new ArrayList<>();
+    /** Bytes of the Mats of this arena included in liveBytes */
+    private long accountedBytes;
+
+    /**
+     * Adds the Mat, to be released with the arena.
+     *
+     * @return the Mat
+     */
+    public <T extends Mat> T add(T mat) {
+        if (mat != null) {
+            mats.add(mat);
+            account(bytesOf(mat));
+        }
+        return mat;
+    }
+
+    /**
+     * Adds the Mats, to be released with the arena.
+     */
+    public void addAll(Collection<? extends Mat> mats) {
+        for (Mat mat : mats) {
+            add(mat);
+        }
+    }
+
+    /**
+     * Releases all Mats of the arena. The arena may be used again afterwards.
+     *
+     * @return the native bytes the Mats held
+     */
+    public long release() {
+        long bytes = 0;
+        for (Mat mat : mats) {
+            bytes += bytesOf(mat);
+        }
+        // Count what OpenCV allocated into the Mats since they were added
+        account(bytes - accountedBytes);
+        for (Mat mat : mats) {
+            mat.release();
+        }
+        mats.clear();
+        account(-accountedBytes);
+        return bytes;
+    }
+
+    /**
+     * @return the native bytes held by the Mats of all arenas not released yet. Between two frames, when every arena
+     * was released, it is close to 0, see {@link #getPeakBytes()} for the memory used while detecting.
+     */
+    public static long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    /**
+     * @return the highest value of {@link #getLiveBytes()} seen so far
+     */
+    public static long getPeakBytes() {
+        return peakBytes.get();
+    }
+
+    private void account(long bytes) {
+        accountedBytes += bytes;
+        long live = liveBytes.addAndGet(bytes);
+        long peak;
+        while (live > (peak = peakBytes.get()) && !peakBytes.compareAndSet(peak, live)) {
+            // Another thread raised the peak in between, check again
+        }
+    }
+
+    private static long bytesOf(Mat mat) {
+        return mat.isSubmatrix() ? 0 : mat.total() * mat.elemSize();
+    }
+}
@@ -0,0 +1,90 @@
+package com.adsc.detection;
+
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.util.List;
+
+/**
+ * A list of matches kept in flat primitive arrays.
+ * <p>The output of knnMatch is read out of native memory once, in {@link #fromKnnMatches(List)}, and all the
+ * refinement steps of {@link RobustMatcher} work on these arrays. For each match we keep the indices of the query
+ * and train key points, the distance to the best neighbour and the distance to the second best one, which is
+ * needed for the ratio test.</p>
+ */
+final class MatchArrays {
+
+    /** Number of floats per DMatch in a MatOfDMatch: queryIdx, trainIdx, imgIdx, distance */
+    static final int DMATCH_FIELDS = 4;
+
+    /** Number of floats per key point in a MatOfKeyPoint: x, y, size, angle, response, octave, class_id */
+    static final int KEYPOINT_FIELDS = 7;
+
+    int size;
+    final int[] queryIdx;
+    final int[] trainIdx;
+    final float[] distance;
+    /** Distance to the second best neighbour, or infinity if there is none */
+    final float[] secondDistance;
+
+    MatchArrays(int capacity) {
+        queryIdx = new int[capacity];
+        trainIdx = new int[capacity];
+        distance = new float[capacity];
+        secondDistance = new float[capacity];
+    }
+
+    /**
+     * Copies the output of knnMatch with k = 2. Each element of the list is read with a single call.
+     *
+     * @param knnMatches for each query descriptor, its best and second best matches
+     * @return the matches with the best neighbour and the distance to the second one
+     */
+    static MatchArrays fromKnnMatches(List<MatOfDMatch> knnMatches) {
+        MatchArrays result = new MatchArrays(knnMatches.size());
+        float[] buffer = new float[2 * DMATCH_FIELDS];
+        for (MatOfDMatch knn : knnMatches) {
+            int neighbours = knn.rows();
+            if (neighbours == 0)
+                continue;
+            knn.get(0, 0, buffer);
+            int i = result.size++;
+            result.queryIdx[i] = (int) buffer[0];
+            result.trainIdx[i] = (int) buffer[1];
+            result.distance[i] = buffer[3];
+            result.secondDistance[i] = neighbours > 1 ? buffer[DMATCH_FIELDS + 3] : Float.POSITIVE_INFINITY;
+            knn.release();
+        }
+        return result;
+    }
+
+    /**
+     * Copies the coordinates of the key points with a single call.
+     *
+     * @param keyPoints the key points
+     * @return array of 2n floats: x0, y0, x1, y1, ...
+     */
+    static float[] coordinates(MatOfKeyPoint keyPoints) {
+        int n = keyPoints.rows();
+        float[] raw = new float[n * KEYPOINT_FIELDS];
+        if (n > 0)
+            keyPoints.get(0, 0, raw);
+        float[] xy = new float[2 * n];
+        for (int i = 0; i < n; i++) {
+            xy[2 * i] = raw[i * KEYPOINT_FIELDS];
+            xy[2 * i + 1] = raw[i * KEYPOINT_FIELDS + 1];
+        }
+        return xy;
+    }
+
+    /**
+     * Appends a match.
+     */
+    void add(int query, int train, float dist, float secondDist) {
+        queryIdx[size] = query;
+        trainIdx[size] = train;
+        distance[size] = dist;
+        secondDistance[size] = secondDist;
+        size++;
+    }
+}
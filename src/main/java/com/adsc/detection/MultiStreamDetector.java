@@ -0,0 +1,525 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.xfeatures2d.SIFT;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Detects logos on several videos at once, on one pool of worker threads shared by all streams.
+ * <p>Each stream is processed frame by frame by a task which, once its frame is done, submits the task of the next
+ * frame to the tail of the queue of the pool. A stream therefore never has more than one frame in progress, which
+ * keeps its learned templates, planner and change detector in frame order, and streams take turns on the workers,
+ * so a busy stream cannot starve the others. The frames of each stream are decoded ahead by its own
+ * {@link FramePrefetcher}. A task never waits for a frame: if the next frame is not decoded yet, it ends without
+ * queuing a new one, and the source of the stream queues the task again once the frame is ready, so a slow source
+ * does not hold a worker.</p>
+ * <p>The original templates are read once into a {@link TemplateBundle} and every detector gets a copy sharing
+ * their Mats. By default each stream has its own detectors and learns its own templates. If
+ * {@link Parameters.ExecutionParameters#isShareLearnedTemplates()} is set, all streams use the same detectors, so a
+ * template learned on one stream is used on all of them; this relies on
+ * {@link logoDetectorBeta#detectLogosByFeatures(SIFTfeatures)} being safe to call from several threads.</p>
+ * <p>If {@link Parameters.ExecutionParameters#isLive()} is set, the streams are read by a {@link LiveFrameSource}
+ * instead, which keeps only the newest frame: a stream then picks up the freshest frame each time its previous one
+ * is done, the frames read in between are dropped, and the report gives the dropped frames and the latency from
+ * reading a frame to its results. The sample rate then counts the frames read, dropped or not, so logos are
+ * detected at most once every sampleRate frames of the source.</p>
+ * <p>{@link Parameters.AdaptiveParameters} are not supported: the streams share one patch grid and may share their
+ * detectors, so the settings of one stream cannot be changed alone.</p>
+ * <p>Learned templates are identified by the patch they were extracted from. The frame id of these identifiers is
+ * taken from a counter shared by the streams, so templates learned by different streams never collide.</p>
+ */
+public class MultiStreamDetector {
+
+    /** Size the frames are resized to, as in the single stream runners */
+    private static final int WIDTH = 640, HEIGHT = 480;
+
+    private final Parameters params;
+    private final TemplateBundle templates;
+    private final int maxAdditionTemp;
+    private final ExecutorService pool;
+    private final ThreadLocal<SIFT> sift;
+    private final List<SerializablePatchIdentifier> patchIdentifierList;
+    private final List<logoDetectorBeta> sharedDetectors;
+    private final List<Stream> streams = new ArrayList<>();
+    private final AtomicInteger templateFrameIds = new AtomicInteger();
+    /** Held for reading by every frame being detected, see {@link #releaseEvicted(Stream)} */
+    private final ReadWriteLock detecting = new ReentrantReadWriteLock();
+    private CountDownLatch remaining;
+
+    /**
+     * Creates the worker pool, of {@link Parameters.ExecutionParameters#getNumThreads()} threads.
+     *
+     * @param params          The parameters for logo detection and matching.
+     * @param templates       The templates of the logos, shared by all streams
+     * @param maxAdditionTemp The number of dynamic templates kept per logo
+     * @throws IllegalArgumentException if {@link Parameters.AdaptiveParameters#isEnabled()} is set
+     */
+    public MultiStreamDetector(final Parameters params, TemplateBundle templates, int maxAdditionTemp) {
+        if (params.getAdaptiveParameters().isEnabled())
+            throw new IllegalArgumentException("Adaptive parameters are not supported on several streams");
+        this.params = params;
+        this.templates = templates;
+        this.maxAdditionTemp = maxAdditionTemp;
+        final AtomicInteger threadCount = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Math.max(1, params.getExecutionParameters().getNumThreads()), r -> {
+            Thread t = new Thread(r, "stream-detector-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        sift = ThreadLocal.withInitial(() -> logoDetectorRunner.createSift(params));
+        patchIdentifierList = logoDetectorRunner.buildPatchGrid(WIDTH, HEIGHT, .25, .25, .5, .5);
+        sharedDetectors = params.getExecutionParameters().isShareLearnedTemplates() ? createDetectors() : null;
+    }
+
+    /**
+     * Adds a video, to be processed by {@link #run()}.
+     *
+     * @param sourceFile The video file or stream URL
+     * @param startFrame The number of the first frame, as in the single stream runners
+     * @param endFrame   The number of the last frame
+     * @param sampleRate Logos are detected on one frame out of sampleRate, the others keep the last results
+     */
+    public void addStream(String sourceFile, int startFrame, int endFrame, int sampleRate) {
+        streams.add(new Stream(streams.size(), sourceFile, startFrame, endFrame - startFrame + 1, sampleRate));
+    }
+
+    /**
+     * Processes all streams added so far and waits until they are done.
+     *
+     * @throws IllegalStateException if a stream failed, after all others are done
+     */
+    public void run() {
+        remaining = new CountDownLatch(streams.size());
+        long start = System.currentTimeMillis();
+        for (Stream stream : streams) {
+            stream.startMillis = start;
+            stream.open();
+            schedule(stream);
+        }
+        try {
+            remaining.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the streams", e);
+        }
+        for (Stream stream : streams) {
+            for (logoDetectorBeta detector : stream.detectors) {
+                detector.releaseEvicted();
+            }
+        }
+        for (Stream stream : streams) {
+            if (stream.failure != null)
+                throw new IllegalStateException("Stream " + stream.sourceFile + " failed", stream.failure);
+        }
+    }
+
+    /**
+     * Stops the worker threads. The detector cannot be used afterwards.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * @return the streams, with their statistics
+     */
+    public List<Stream> getStreams() {
+        return Collections.unmodifiableList(streams);
+    }
+
+    /**
+     * @return the templates learned by all streams together, or null if each stream learned its own
+     */
+    public TemplateBundle getSharedTemplates() {
+        if (sharedDetectors == null)
+            return null;
+        List<LogoTemplate> originals = new ArrayList<>();
+        List<List<LogoTemplate>> added = new ArrayList<>();
+        for (logoDetectorBeta detector : sharedDetectors) {
+            originals.add(detector.getOriginalTemplate());
+            added.add(detector.getAddedTemplates());
+        }
+        return new TemplateBundle(originals, added);
+    }
+
+    /**
+     * @return the throughput of every stream and of all of them together, one line each
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        long frames = 0, busyMillis = 0, endMillis = 0, startMillis = Long.MAX_VALUE;
+        for (Stream stream : streams) {
+            report.append(stream).append(System.lineSeparator());
+            frames += stream.frames;
+            busyMillis += stream.busyMillis;
+            startMillis = Math.min(startMillis, stream.startMillis);
+            endMillis = Math.max(endMillis, stream.endMillis);
+        }
+        double seconds = Math.max(1, endMillis - startMillis) / 1000.0;
+        report.append("All streams: ").append(streams.size()).append(" streams, frames: ").append(frames)
+                .append(", busyUsed: ").append(busyMillis)
+                .append(", fps: ").append(String.format("%.2f", frames / seconds));
+        return report.toString();
+    }
+
+    /**
+     * Queues the task of the stream unless it is queued or running already. Called by the workers and by the
+     * source of the stream when a frame is ready.
+     */
+    private void schedule(Stream stream) {
+        if (stream.scheduled.compareAndSet(false, true)) {
+            pool.execute(() -> step(stream));
+        }
+    }
+
+    /**
+     * Ends the task of a stream whose next frame is not ready. The source schedules the stream again when it is.
+     */
+    private void idle(Stream stream) {
+        stream.scheduled.set(false);
+        // The frame may have become ready before the flag was cleared, when scheduling it again did nothing, so the
+        // source is only checked now
+        if (stream.isSourceReady()) {
+            schedule(stream);
+        }
+    }
+
+    /**
+     * Processes the next frame of the stream and queues the task of the frame after it.
+     */
+    private void step(Stream stream) {
+        if (stream.live != null) {
+            stepLive(stream);
+            return;
+        }
+        try {
+            Mat mat = stream.frameId < stream.frameCount ? stream.prefetcher.poll() : null;
+            if (mat == null) {
+                if (stream.frameId < stream.frameCount && !stream.prefetcher.isFinished()) {
+                    idle(stream);
+                    return;
+                }
+                finish(stream);
+                return;
+            }
+            long frameStart = System.currentTimeMillis();
+            if (stream.frameId % stream.sampleRate == 0) {
+                stream.foundedRectList = detectFrame(stream, mat);
+                stream.detectionFrames++;
+            }
+            stream.prefetcher.recycle(mat);
+            stream.busyMillis += System.currentTimeMillis() - frameStart;
+            stream.frames++;
+            stream.frameId++;
+            pool.execute(() -> step(stream));
+        } catch (Throwable t) {
+            stream.failure = t;
+            finish(stream);
+        }
+    }
+
+    /**
+     * Processes the newest frame of a live stream and queues the task of the next one.
+     */
+    private void stepLive(Stream stream) {
+        try {
+            LiveFrameSource.Frame frame = stream.live.poll();
+            if (frame == null) {
+                if (!stream.live.isFinished()) {
+                    idle(stream);
+                    return;
+                }
+                finish(stream);
+                return;
+            }
+            long frameStart = System.currentTimeMillis();
+            stream.frameId = frame.getNumber();
+            if (stream.frameId - stream.lastDetectedFrameId >= stream.sampleRate) {
+                stream.foundedRectList = detectFrame(stream, frame.getMat());
+                stream.lastDetectedFrameId = stream.frameId;
+                stream.detectionFrames++;
+            }
+            stream.live.recycle(frame);
+            stream.busyMillis += System.currentTimeMillis() - frameStart;
+            stream.frames++;
+            pool.execute(() -> step(stream));
+        } catch (Throwable t) {
+            stream.failure = t;
+            finish(stream);
+        }
+    }
+
+    /**
+     * Ends a stream. Its task stays marked as scheduled, so a late signal of its source does not queue it again.
+     */
+    private void finish(Stream stream) {
+        stream.endMillis = System.currentTimeMillis();
+        stream.close();
+        remaining.countDown();
+    }
+
+    /**
+     * Detects the logos on one frame of the stream, the same way as
+     * {@link logoDetectorRunner#LogoDetectionForOneFrame(int, Mat, List, List, SIFT, ScanPlanner, PatchChangeDetector)}
+     * but with the results returned by the detectors, which may be shared with other streams.
+     */
+    private List<List<SerializableRect>> detectFrame(Stream stream, Mat mat) {
+        List<List<SerializableRect>> foundedRectList;
+        detecting.readLock().lock();
+        try {
+            foundedRectList = detectFrameLocked(stream, mat);
+        } finally {
+            detecting.readLock().unlock();
+        }
+        releaseEvicted(stream);
+        return foundedRectList;
+    }
+
+    /**
+     * Releases the templates the detectors of the stream evicted, once no frame reads them. Detectors of the stream
+     * alone are released right away, shared ones only when no other stream is detecting a frame.
+     */
+    private void releaseEvicted(Stream stream) {
+        if (sharedDetectors == null) {
+            for (logoDetectorBeta detector : stream.detectors) {
+                detector.releaseEvicted();
+            }
+        } else if (detecting.writeLock().tryLock()) {
+            try {
+                for (logoDetectorBeta detector : sharedDetectors) {
+                    detector.releaseEvicted();
+                }
+            } finally {
+                detecting.writeLock().unlock();
+            }
+        }
+    }
+
+    private List<List<SerializableRect>> detectFrameLocked(Stream stream, Mat mat) {
+        List<logoDetectorBeta> detectors = stream.detectors;
+        List<List<SerializableRect>> foundedRectList = new ArrayList<>();
+        for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
+            foundedRectList.add(new ArrayList<>());
+        }
+
+        FrameFeatures frameFeatures = params.getSiftParameters().isWholeFrameExtraction()
+                ? new FrameFeatures(sift.get(), mat) : null;
+        SIFTfeatures[] patchFeatures = new SIFTfeatures[patchIdentifierList.size()];
+        // Holds the features of the patches until the end of the frame
+        MatArena arena = new MatArena();
+        int templateFrameId = templateFrameIds.getAndIncrement();
+
+        boolean[][] plan = stream.planner != null ? stream.planner.firstPass(stream.frameId) : null;
+        if (stream.changes != null) {
+            stream.changes.beginFrame(mat);
+            plan = stream.changes.reuse(plan, foundedRectList);
+        }
+        scanPatches(stream, templateFrameId, mat, frameFeatures, patchFeatures, arena, plan, foundedRectList);
+        if (stream.planner != null) {
+            boolean[][] rest = stream.planner.fallback(foundedRectList);
+            if (rest != null && stream.changes != null) {
+                rest = stream.changes.reuse(rest, foundedRectList);
+            }
+            if (rest != null) {
+                scanPatches(stream, templateFrameId, mat, frameFeatures, patchFeatures, arena, rest, foundedRectList);
+            }
+            stream.planner.record(foundedRectList);
+        }
+        arena.release();
+        return foundedRectList;
+    }
+
+    private void scanPatches(Stream stream, int templateFrameId, Mat mat, FrameFeatures frameFeatures,
+                             SIFTfeatures[] patchFeatures, MatArena arena, boolean[][] plan,
+                             List<List<SerializableRect>> foundedRectList) {
+        for (int patchIndex = 0; patchIndex < patchIdentifierList.size(); patchIndex++) {
+            if (!ScanPlanner.includesAny(plan, patchIndex)) {
+                continue;
+            }
+            SerializablePatchIdentifier hostPatch = patchIdentifierList.get(patchIndex);
+            if (patchFeatures[patchIndex] == null) {
+                patchFeatures[patchIndex] = frameFeatures != null
+                        ? frameFeatures.slice(hostPatch.roi.toJavaCVRect())
+                        : new SIFTfeatures(sift.get(), mat, hostPatch.roi.toJavaCVRect(), true);
+                patchFeatures[patchIndex].addTo(arena);
+            }
+
+            for (int logoIndex = 0; logoIndex < stream.detectors.size(); logoIndex++) {
+                if (!ScanPlanner.includes(plan, logoIndex, patchIndex)) {
+                    continue;
+                }
+                logoDetectorBeta detector = stream.detectors.get(logoIndex);
+                DetectionResult result = detector.detectLogosByFeatures(patchFeatures[patchIndex]);
+                if (stream.changes != null) {
+                    stream.changes.store(logoIndex, patchIndex, result != null ? result.getFoundRect() : null);
+                }
+                if (result != null) {
+                    detector.addTemplate(new SerializablePatchIdentifier(templateFrameId, hostPatch.roi),
+                            result.getExtractedTemplate());
+                    detector.incrementPriority(result.getParentIdentifier(), 1);
+
+                    foundedRectList.get(logoIndex).add(result.getFoundRect());
+                }
+            }
+        }
+    }
+
+    private List<logoDetectorBeta> createDetectors() {
+        List<logoDetectorBeta> detectors = new ArrayList<>();
+        for (int logoIndex = 0; logoIndex < templates.getLogoCount(); logoIndex++) {
+            // Each detector has its own SIFT for the templates it adds, as shared detectors add them concurrently
+            detectors.add(new logoDetectorBeta(params, templates.getOriginal(logoIndex),
+                    templates.getAdded(logoIndex), maxAdditionTemp, logoDetectorRunner.createSift(params)));
+        }
+        return detectors;
+    }
+
+    /**
+     * One video and the state of its detection. Only the task of its current frame touches it.
+     */
+    public class Stream {
+        private final int index;
+        private final String sourceFile;
+        private final int startFrame, frameCount, sampleRate;
+        private final List<logoDetectorBeta> detectors;
+        private final ScanPlanner planner;
+        private final PatchChangeDetector changes;
+        private VideoCapture capture;
+        private FramePrefetcher prefetcher;
+        private LiveFrameSource live;
+        private List<List<SerializableRect>> foundedRectList = new ArrayList<>();
+        private int frameId, lastDetectedFrameId;
+        private volatile long frames, detectionFrames, busyMillis, startMillis, endMillis;
+        private volatile Throwable failure;
+        /** Set while the task of the stream is queued or running, and for good once the stream is done */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Stream(int index, String sourceFile, int startFrame, int frameCount, int sampleRate) {
+            this.index = index;
+            this.sourceFile = sourceFile;
+            this.startFrame = startFrame;
+            this.frameCount = frameCount;
+            this.sampleRate = Math.max(1, sampleRate);
+            detectors = sharedDetectors != null ? sharedDetectors : createDetectors();
+            planner = params.getScanParameters().isRoiPrior()
+                    ? new ScanPlanner(params.getScanParameters(), patchIdentifierList, detectors.size()) : null;
+            changes = params.getChangeParameters().isEnabled()
+                    ? new PatchChangeDetector(params.getChangeParameters(), patchIdentifierList, detectors.size())
+                    : null;
+        }
+
+        private void open() {
+            capture = new VideoCapture(sourceFile);
+            if (params.getExecutionParameters().isLive()) {
+                // Live streams are read from their current position
+                live = new LiveFrameSource(capture, frameCount, new Size(WIDTH, HEIGHT), "live-ingest-" + index);
+                lastDetectedFrameId = -sampleRate;
+                live.setReadyListener(() -> schedule(this));
+                live.start();
+                return;
+            }
+            prefetcher = new FramePrefetcher(capture, Math.max(startFrame - 1, 0), frameCount,
+                    new Size(WIDTH, HEIGHT), params.getExecutionParameters().getPrefetchFrames());
+            prefetcher.setReadyListener(() -> schedule(this));
+            prefetcher.start();
+        }
+
+        /**
+         * @return true if the next frame or the end of the stream can be taken without waiting
+         */
+        private boolean isSourceReady() {
+            return live != null ? live.isReady() : prefetcher.isReady();
+        }
+
+        private void close() {
+            if (live != null) {
+                live.close();
+            } else {
+                prefetcher.close();
+            }
+            capture.release();
+        }
+
+        /**
+         * @return the results of the last frame processed, for each logo the rectangles where it was found
+         */
+        public List<List<SerializableRect>> getFoundedRectList() {
+            return foundedRectList;
+        }
+
+        /**
+         * @return the number of frames processed
+         */
+        public long getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return the number of frames on which logos were detected, the others kept the previous results
+         */
+        public long getDetectionFrames() {
+            return detectionFrames;
+        }
+
+        /**
+         * @return the time the workers spent on the frames of this stream, in milliseconds
+         */
+        public long getBusyMillis() {
+            return busyMillis;
+        }
+
+        /**
+         * @return the number of frames of a live stream dropped as newer ones were read, 0 if not live
+         */
+        public long getDroppedFrames() {
+            return live != null ? live.getDropped() : 0;
+        }
+
+        /**
+         * @return the mean time from reading a frame of a live stream to its results in milliseconds, 0 if not live
+         */
+        public double getMeanLatencyMillis() {
+            return live != null ? live.getMeanLatencyMillis() : 0;
+        }
+
+        /**
+         * @return the longest time from reading a frame of a live stream to its results in milliseconds, 0 if not
+         * live
+         */
+        public double getMaxLatencyMillis() {
+            return live != null ? live.getMaxLatencyMillis() : 0;
+        }
+
+        /**
+         * @return the frames processed per second of wall time, since the streams were started
+         */
+        public double getFps() {
+            long end = endMillis > 0 ? endMillis : System.currentTimeMillis();
+            return frames * 1000.0 / Math.max(1, end - startMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "Stream " + index + ": " + sourceFile + ", frames: " + frames + ", detectionFrames: "
+                    + detectionFrames + ", busyUsed: " + busyMillis + ", fps: " + String.format("%.2f", getFps())
+                    + (live != null ? ", ingested: " + live.getIngested() + ", dropped: " + live.getDropped()
+                    + String.format(", latencyMs: %.1f mean, %.1f max", live.getMeanLatencyMillis(),
+                    live.getMaxLatencyMillis()) : "")
+                    + (failure != null ? ", failed: " + failure : "");
+        }
+    }
+}
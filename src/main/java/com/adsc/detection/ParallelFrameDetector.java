@@ -0,0 +1,217 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.Mat;
+import org.opencv.features2d.BFMatcher;
+import org.opencv.xfeatures2d.SIFT;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Detects all logos on all patches of a frame using a fixed pool of worker threads.
+ * <p>
+ * Every patch is a separate task. Neither {@link SIFT} nor {@link RobustMatcher} may be shared between threads,
+ * so each worker extracts the features of its patch with its own SIFT and matches them against every logo with
+ * its own matcher.
+ * <p>
+ * All patches of a frame are matched against the templates the detectors had at the beginning of the frame
+ * (see {@link logoDetectorGamma#getTemplateSnapshot()}). New templates and priority updates are applied once all
+ * patches are done, in the order of the patch list, so the result does not depend on how the tasks were scheduled.
+ * <p>
+ * If {@link Parameters.SIFTParameters#isWholeFrameExtraction()} is set, the features of the frame are extracted
+ * once before the patches are handed out, see {@link FrameFeatures}.
+ * <p>
+ * If {@link Parameters.MatchingParameters#isTemplateIndex()} is set, the templates of all logos are put into one
+ * {@link TemplateIndex} at the beginning of the frame, and only the best candidates it returns for a patch are
+ * verified, instead of every template of every logo.
+ *
+ * @see logoDetectorGamma
+ */
+public class ParallelFrameDetector {
+
+    private final Parameters params;
+    private final ExecutorService pool;
+    private final ThreadLocal<SIFT> sift;
+    private final ThreadLocal<RobustMatcher> matcher;
+    private final ThreadLocal<BFMatcher> indexMatcher;
+
+    /**
+     * Creates the worker pool.
+     *
+     * @param params     The parameters for logo detection and matching.
+     * @param numThreads The number of worker threads
+     */
+    public ParallelFrameDetector(final Parameters params, int numThreads) {
+        this.params = params;
+        final AtomicInteger threadCount = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread t = new Thread(r, "frame-detector-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        sift = ThreadLocal.withInitial(() -> SIFT.create(0, 3, params.getSiftParameters().getContrastThreshold(),
+                params.getSiftParameters().getEdgeThreshold(), params.getSiftParameters().getSigma()));
+        matcher = ThreadLocal.withInitial(() -> new RobustMatcher(params));
+        indexMatcher = ThreadLocal.withInitial(BFMatcher::new);
+    }
+
+    /**
+     * Looks for every logo on every patch of the frame.
+     *
+     * @param frameId             The id of the frame
+     * @param mat                 The image of the whole frame
+     * @param detectors           One detector per logo
+     * @param patchIdentifierList The patches to check
+     * @return for each logo, the rectangles where it was found, in the order of the patch list
+     */
+    public List<List<SerializableRect>> detect(int frameId, final Mat mat, final List<logoDetectorGamma> detectors,
+                                               List<SerializablePatchIdentifier> patchIdentifierList) {
+        return detect(frameId, mat, detectors, patchIdentifierList, null, null);
+    }
+
+    /**
+     * Looks for the logos on the patches chosen by the planner, in two rounds: the patches of its first pass, then
+     * the rest of the grid for the logos not found by the first one.
+     *
+     * @param planner If not null, chooses the patches checked for each logo, otherwise the whole grid is checked
+     * @param changes If not null, the results of the patches that did not change are reused instead of checked again
+     * @return for each logo, the rectangles where it was found, in the order of the rounds and then of the patch list
+     * @see ScanPlanner
+     * @see PatchChangeDetector
+     */
+    public List<List<SerializableRect>> detect(int frameId, final Mat mat, final List<logoDetectorGamma> detectors,
+                                               List<SerializablePatchIdentifier> patchIdentifierList,
+                                               ScanPlanner planner, PatchChangeDetector changes) {
+        final List<List<LogoTemplate>> templates = new ArrayList<>();
+        for (logoDetectorGamma detector : detectors) {
+            templates.add(detector.getTemplateSnapshot());
+        }
+
+        // In whole frame mode the features are extracted once here and the workers only slice them.
+        final FrameFeatures frameFeatures = params.getSiftParameters().isWholeFrameExtraction()
+                ? new FrameFeatures(sift.get(), mat) : null;
+
+        final TemplateIndex index = params.getMatchingParameters().isTemplateIndex()
+                ? new TemplateIndex(templates) : null;
+
+        List<List<SerializableRect>> foundedRectList = new ArrayList<>();
+        for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
+            foundedRectList.add(new ArrayList<>());
+        }
+
+        boolean[][] plan = planner != null ? planner.firstPass(frameId) : null;
+        if (changes != null) {
+            changes.beginFrame(mat);
+            plan = changes.reuse(plan, foundedRectList);
+        }
+        detectRound(frameId, mat, frameFeatures, index, detectors, templates, patchIdentifierList, plan, changes,
+                foundedRectList);
+        if (planner != null) {
+            boolean[][] rest = planner.fallback(foundedRectList);
+            if (rest != null && changes != null) {
+                rest = changes.reuse(rest, foundedRectList);
+            }
+            if (rest != null) {
+                detectRound(frameId, mat, frameFeatures, index, detectors, templates, patchIdentifierList, rest,
+                        changes, foundedRectList);
+            }
+            planner.record(foundedRectList);
+        }
+
+        if (index != null) {
+            index.release();
+        }
+        // The workers are done with the template snapshots of this frame
+        for (logoDetectorGamma detector : detectors) {
+            detector.releaseEvicted();
+        }
+        return foundedRectList;
+    }
+
+    /**
+     * Stops the worker threads. The detector cannot be used afterwards.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Checks the patches of the plan in parallel and merges the results into foundedRectList.
+     */
+    private void detectRound(int frameId, final Mat mat, final FrameFeatures frameFeatures, final TemplateIndex index,
+                             final List<logoDetectorGamma> detectors, final List<List<LogoTemplate>> templates,
+                             List<SerializablePatchIdentifier> patchIdentifierList, final boolean[][] plan,
+                             PatchChangeDetector changes, List<List<SerializableRect>> foundedRectList) {
+        List<Future<DetectionResult[]>> futures = new ArrayList<>(patchIdentifierList.size());
+        for (int patchIndex = 0; patchIndex < patchIdentifierList.size(); patchIndex++) {
+            final SerializablePatchIdentifier hostPatch = patchIdentifierList.get(patchIndex);
+            final int p = patchIndex;
+            futures.add(ScanPlanner.includesAny(plan, patchIndex)
+                    ? pool.submit(() -> detectPatch(mat, frameFeatures, index, hostPatch, p, plan, detectors, templates))
+                    : null);
+        }
+
+        // Merge in the order of the patch list, exactly as the serial loop would update the detectors.
+        for (int patchIndex = 0; patchIndex < futures.size(); patchIndex++) {
+            if (futures.get(patchIndex) == null)
+                continue;
+            DetectionResult[] results = waitFor(futures.get(patchIndex));
+            SerializablePatchIdentifier hostPatch = patchIdentifierList.get(patchIndex);
+            for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
+                DetectionResult result = results[logoIndex];
+                if (changes != null && ScanPlanner.includes(plan, logoIndex, patchIndex)) {
+                    changes.store(logoIndex, patchIndex, result != null ? result.getFoundRect() : null);
+                }
+                if (result != null) {
+                    logoDetectorGamma detector = detectors.get(logoIndex);
+                    detector.addTemplate(new SerializablePatchIdentifier(frameId, hostPatch.roi), result.getExtractedTemplate());
+                    detector.incrementPriority(result.getParentIdentifier(), 1);
+
+                    foundedRectList.get(logoIndex).add(result.getFoundRect());
+                }
+            }
+        }
+    }
+
+    private DetectionResult[] detectPatch(Mat mat, FrameFeatures frameFeatures, TemplateIndex index,
+                                          SerializablePatchIdentifier hostPatch, int patchIndex, boolean[][] plan,
+                                          List<logoDetectorGamma> detectors, List<List<LogoTemplate>> templates) {
+        DetectionResult[] results = new DetectionResult[detectors.size()];
+        SIFTfeatures features = frameFeatures != null
+                ? frameFeatures.slice(hostPatch.roi.toJavaCVRect())
+                : new SIFTfeatures(sift.get(), mat, hostPatch.roi.toJavaCVRect(), true);
+        try {
+            List<List<LogoTemplate>> toCheck = index == null ? templates
+                    : index.candidates(features.testDescriptors, indexMatcher.get(),
+                    params.getMatchingParameters().getMinimalNumberOfMatches(),
+                    params.getMatchingParameters().getMaxCandidateTemplates());
+            for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
+                if (!ScanPlanner.includes(plan, logoIndex, patchIndex))
+                    continue;
+                results[logoIndex] = detectors.get(logoIndex).detectLogosByFeatures(features,
+                        toCheck.get(logoIndex), matcher.get());
+            }
+        } finally {
+            features.release();
+        }
+        return results;
+    }
+
+    private static DetectionResult[] waitFor(Future<DetectionResult[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for patch detection", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Patch detection failed", e.getCause());
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.adsc.detection;
 
+import java.io.Serializable;
+
 /**
- * Parameters for detection.
+ * Parameters for detection. They are serializable, so that they can be handed to worker processes.
  */
-public class Parameters {
+public class Parameters implements Serializable {
     public SIFTParameters getSiftParameters() {
         return siftParameters;
     }
@@ -36,13 +38,63 @@ public class Parameters {
         this.windowParameters = windowParameters;
     }
 
+    public ExecutionParameters getExecutionParameters() {
+        return executionParameters;
+    }
+
+    public void setExecutionParameters(ExecutionParameters executionParameters) {
+        this.executionParameters = executionParameters;
+    }
+
+    public TrackingParameters getTrackingParameters() {
+        return trackingParameters;
+    }
+
+    public void setTrackingParameters(TrackingParameters trackingParameters) {
+        this.trackingParameters = trackingParameters;
+    }
+
+    public ScanParameters getScanParameters() {
+        return scanParameters;
+    }
+
+    public void setScanParameters(ScanParameters scanParameters) {
+        this.scanParameters = scanParameters;
+    }
+
+    public ChangeParameters getChangeParameters() {
+        return changeParameters;
+    }
+
+    public void setChangeParameters(ChangeParameters changeParameters) {
+        this.changeParameters = changeParameters;
+    }
+
+    public OutputParameters getOutputParameters() {
+        return outputParameters;
+    }
+
+    public void setOutputParameters(OutputParameters outputParameters) {
+        this.outputParameters = outputParameters;
+    }
+
+    public AdaptiveParameters getAdaptiveParameters() {
+        return adaptiveParameters;
+    }
+
+    public void setAdaptiveParameters(AdaptiveParameters adaptiveParameters) {
+        this.adaptiveParameters = adaptiveParameters;
+    }
 
-    public static class SIFTParameters {
+
+    public static class SIFTParameters implements Serializable {
         private double contrastThreshold, edgeThreshold, sigma;
+        private boolean wholeFrameExtraction;
         public SIFTParameters() {
             contrastThreshold = 0.04;
             edgeThreshold = 10;
             sigma = 2.0;
+            wholeFrameExtraction = false; // extract features patch by patch
         }
         public SIFTParameters withContrastThreshold(double threshold) {
             this.contrastThreshold = threshold;
@@ -56,6 +108,10 @@ public class Parameters {
             this.sigma = sigma;
             return this;
         }
+        public SIFTParameters withWholeFrameExtraction(boolean wholeFrameExtraction) {
+            this.wholeFrameExtraction = wholeFrameExtraction;
+            return this;
+        }
 
         public double getContrastThreshold() {
             return contrastThreshold;
@@ -80,16 +136,54 @@ public class Parameters {
         public void setSigma(double sigma) {
             this.sigma = sigma;
         }
+
+        public boolean isWholeFrameExtraction() {
+            return wholeFrameExtraction;
+        }
+
+        public void setWholeFrameExtraction(boolean wholeFrameExtraction) {
+            this.wholeFrameExtraction = wholeFrameExtraction;
+        }
     }
-    public static class RANSACParameters {
+    public static class RANSACParameters implements Serializable {
         private double reprojectionThreshold;
+        private boolean leastSquaresRefit;
+        private int maxIterations;
+        private double confidence;
+        private double minInlierRatio;
+        private double skipRefinementRatio;
         public RANSACParameters() {
             reprojectionThreshold = 1.0;
+            leastSquaresRefit = false; // the second pass runs RANSAC again on the inliers
+            maxIterations = 2000;
+            confidence = 0.995;
+            minInlierRatio = 0.0; // 0 to keep every homography the first pass finds
+            skipRefinementRatio = 0.0; // 0 to always run the second pass
         }
         public RANSACParameters withReprojectionThreshold(double threshold) {
             this.reprojectionThreshold = threshold;
             return this;
         }
+        public RANSACParameters withLeastSquaresRefit(boolean leastSquaresRefit) {
+            this.leastSquaresRefit = leastSquaresRefit;
+            return this;
+        }
+        public RANSACParameters withMaxIterations(int maxIterations) {
+            this.maxIterations = maxIterations;
+            return this;
+        }
+        public RANSACParameters withConfidence(double confidence) {
+            this.confidence = confidence;
+            return this;
+        }
+        public RANSACParameters withMinInlierRatio(double minInlierRatio) {
+            this.minInlierRatio = minInlierRatio;
+            return this;
+        }
+        public RANSACParameters withSkipRefinementRatio(double skipRefinementRatio) {
+            this.skipRefinementRatio = skipRefinementRatio;
+            return this;
+        }
 
         public double getReprojectionThreshold() {
             return reprojectionThreshold;
@@ -98,23 +192,99 @@ public class Parameters {
         public void setReprojectionThreshold(double reprojectionThreshold) {
             this.reprojectionThreshold = reprojectionThreshold;
         }
+
+        public boolean isLeastSquaresRefit() {
+            return leastSquaresRefit;
+        }
+
+        public void setLeastSquaresRefit(boolean leastSquaresRefit) {
+            this.leastSquaresRefit = leastSquaresRefit;
+        }
+
+        public int getMaxIterations() {
+            return maxIterations;
+        }
+
+        public void setMaxIterations(int maxIterations) {
+            this.maxIterations = maxIterations;
+        }
+
+        public double getConfidence() {
+            return confidence;
+        }
+
+        public void setConfidence(double confidence) {
+            this.confidence = confidence;
+        }
+
+        public double getMinInlierRatio() {
+            return minInlierRatio;
+        }
+
+        public void setMinInlierRatio(double minInlierRatio) {
+            this.minInlierRatio = minInlierRatio;
+        }
+
+        public double getSkipRefinementRatio() {
+            return skipRefinementRatio;
+        }
+
+        public void setSkipRefinementRatio(double skipRefinementRatio) {
+            this.skipRefinementRatio = skipRefinementRatio;
+        }
     }
-    public static class MatchingParameters {
+    public static class MatchingParameters implements Serializable {
         private int minimalNumberOfMatches;
         private double ratioOfDistances;
         private int minimalResolution;
         private double boxAccuracy;
+        private boolean templateIndex;
+        private int maxCandidateTemplates;
+        private String templateFormat;
+        private int templateQuality;
+        private boolean templateFeatures;
+        private String templateBundle;
         public MatchingParameters() {
             minimalNumberOfMatches = 8;
             ratioOfDistances = 0.8;
             minimalResolution = 5; //pixels
             boxAccuracy = 0.9;
+            templateIndex = false; // verify every template
+            maxCandidateTemplates = 3; // per logo, if templateIndex is on
+            templateFormat = null; // extracted templates keep raw pixels
+            templateQuality = 95; // for ".jpg" and ".webp"
+            templateFeatures = false; // receivers extract the features of extracted templates
+            templateBundle = null; // templates are read from their images on every run
         }
 
         public MatchingParameters withMinimalNumberOfMatches(int minimalNumberOfMatches) {
             this.minimalNumberOfMatches = minimalNumberOfMatches;
             return this;
         }
+        public MatchingParameters withTemplateIndex(boolean templateIndex) {
+            this.templateIndex = templateIndex;
+            return this;
+        }
+        public MatchingParameters withMaxCandidateTemplates(int maxCandidateTemplates) {
+            this.maxCandidateTemplates = maxCandidateTemplates;
+            return this;
+        }
+        public MatchingParameters withTemplateFormat(String templateFormat) {
+            this.templateFormat = templateFormat;
+            return this;
+        }
+        public MatchingParameters withTemplateQuality(int templateQuality) {
+            this.templateQuality = templateQuality;
+            return this;
+        }
+        public MatchingParameters withTemplateFeatures(boolean templateFeatures) {
+            this.templateFeatures = templateFeatures;
+            return this;
+        }
+        public MatchingParameters withTemplateBundle(String templateBundle) {
+            this.templateBundle = templateBundle;
+            return this;
+        }
 
         public int getMinimalNumberOfMatches() {
             return minimalNumberOfMatches;
@@ -147,8 +317,56 @@ public class Parameters {
         public void setBoxAccuracy(double boxAccuracy) {
             this.boxAccuracy = boxAccuracy;
         }
+
+        public boolean isTemplateIndex() {
+            return templateIndex;
+        }
+
+        public void setTemplateIndex(boolean templateIndex) {
+            this.templateIndex = templateIndex;
+        }
+
+        public int getMaxCandidateTemplates() {
+            return maxCandidateTemplates;
+        }
+
+        public void setMaxCandidateTemplates(int maxCandidateTemplates) {
+            this.maxCandidateTemplates = maxCandidateTemplates;
+        }
+
+        public String getTemplateFormat() {
+            return templateFormat;
+        }
+
+        public void setTemplateFormat(String templateFormat) {
+            this.templateFormat = templateFormat;
+        }
+
+        public int getTemplateQuality() {
+            return templateQuality;
+        }
+
+        public void setTemplateQuality(int templateQuality) {
+            this.templateQuality = templateQuality;
+        }
+
+        public boolean isTemplateFeatures() {
+            return templateFeatures;
+        }
+
+        public void setTemplateFeatures(boolean templateFeatures) {
+            this.templateFeatures = templateFeatures;
+        }
+
+        public String getTemplateBundle() {
+            return templateBundle;
+        }
+
+        public void setTemplateBundle(String templateBundle) {
+            this.templateBundle = templateBundle;
+        }
     }
-    public static class WindowParameters {
+    public static class WindowParameters implements Serializable {
         private double [] windowSizes;
         private double xStep, yStep;
         public WindowParameters() {
@@ -181,18 +399,519 @@ public class Parameters {
             this.xStep = xStep;
         }
     }
+    public static class ExecutionParameters implements Serializable {
+        private int numThreads, prefetchFrames, readerThreads;
+        private boolean shareLearnedTemplates, live;
+        public ExecutionParameters() {
+            numThreads = 1; // detect on the calling thread
+            prefetchFrames = 4; // decoded frames waiting for detection at most
+            readerThreads = 2; // decoding the files of an image folder
+            shareLearnedTemplates = false; // every stream learns its own templates
+            live = false; // process every frame, however late
+        }
+        public ExecutionParameters withNumThreads(int numThreads) {
+            this.numThreads = numThreads;
+            return this;
+        }
+        public ExecutionParameters withPrefetchFrames(int prefetchFrames) {
+            this.prefetchFrames = prefetchFrames;
+            return this;
+        }
+        public ExecutionParameters withReaderThreads(int readerThreads) {
+            this.readerThreads = readerThreads;
+            return this;
+        }
+        public ExecutionParameters withShareLearnedTemplates(boolean shareLearnedTemplates) {
+            this.shareLearnedTemplates = shareLearnedTemplates;
+            return this;
+        }
+        public ExecutionParameters withLive(boolean live) {
+            this.live = live;
+            return this;
+        }
+
+        public int getNumThreads() {
+            return numThreads;
+        }
+
+        public void setNumThreads(int numThreads) {
+            this.numThreads = numThreads;
+        }
+
+        public int getPrefetchFrames() {
+            return prefetchFrames;
+        }
+
+        public void setPrefetchFrames(int prefetchFrames) {
+            this.prefetchFrames = prefetchFrames;
+        }
+
+        public int getReaderThreads() {
+            return readerThreads;
+        }
+
+        public void setReaderThreads(int readerThreads) {
+            this.readerThreads = readerThreads;
+        }
+
+        public boolean isShareLearnedTemplates() {
+            return shareLearnedTemplates;
+        }
+
+        public void setShareLearnedTemplates(boolean shareLearnedTemplates) {
+            this.shareLearnedTemplates = shareLearnedTemplates;
+        }
+
+        public boolean isLive() {
+            return live;
+        }
+
+        public void setLive(boolean live) {
+            this.live = live;
+        }
+    }
+
+    public static class TrackingParameters implements Serializable {
+        private boolean enabled;
+        private int maxPointsPerRect, minTrackedPoints;
+        private double minTrackedRatio;
+        public TrackingParameters() {
+            enabled = false; // keep the rectangles of the last sampled frame
+            maxPointsPerRect = 50;
+            minTrackedPoints = 4;
+            minTrackedRatio = 0.5;
+        }
+        public TrackingParameters withEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return this;
+        }
+        public TrackingParameters withMaxPointsPerRect(int maxPointsPerRect) {
+            this.maxPointsPerRect = maxPointsPerRect;
+            return this;
+        }
+        public TrackingParameters withMinTrackedPoints(int minTrackedPoints) {
+            this.minTrackedPoints = minTrackedPoints;
+            return this;
+        }
+        public TrackingParameters withMinTrackedRatio(double minTrackedRatio) {
+            this.minTrackedRatio = minTrackedRatio;
+            return this;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxPointsPerRect() {
+            return maxPointsPerRect;
+        }
+
+        public void setMaxPointsPerRect(int maxPointsPerRect) {
+            this.maxPointsPerRect = maxPointsPerRect;
+        }
+
+        public int getMinTrackedPoints() {
+            return minTrackedPoints;
+        }
+
+        public void setMinTrackedPoints(int minTrackedPoints) {
+            this.minTrackedPoints = minTrackedPoints;
+        }
+
+        public double getMinTrackedRatio() {
+            return minTrackedRatio;
+        }
+
+        public void setMinTrackedRatio(double minTrackedRatio) {
+            this.minTrackedRatio = minTrackedRatio;
+        }
+    }
+
+    public static class ScanParameters implements Serializable {
+        private boolean roiPrior;
+        private int fullSweepInterval;
+        private double searchMargin;
+        public ScanParameters() {
+            roiPrior = false; // check the whole grid on every detection frame
+            fullSweepInterval = 40; // frames
+            searchMargin = 0.5; // of the size of the previous rectangle, on each side
+        }
+        public ScanParameters withRoiPrior(boolean roiPrior) {
+            this.roiPrior = roiPrior;
+            return this;
+        }
+        public ScanParameters withFullSweepInterval(int fullSweepInterval) {
+            this.fullSweepInterval = fullSweepInterval;
+            return this;
+        }
+        public ScanParameters withSearchMargin(double searchMargin) {
+            this.searchMargin = searchMargin;
+            return this;
+        }
+
+        public boolean isRoiPrior() {
+            return roiPrior;
+        }
+
+        public void setRoiPrior(boolean roiPrior) {
+            this.roiPrior = roiPrior;
+        }
+
+        public int getFullSweepInterval() {
+            return fullSweepInterval;
+        }
+
+        public void setFullSweepInterval(int fullSweepInterval) {
+            this.fullSweepInterval = fullSweepInterval;
+        }
+
+        public double getSearchMargin() {
+            return searchMargin;
+        }
+
+        public void setSearchMargin(double searchMargin) {
+            this.searchMargin = searchMargin;
+        }
+    }
+
+    public static class ChangeParameters implements Serializable {
+        private boolean enabled;
+        private int signatureSize;
+        private double changeThreshold, sceneCutThreshold;
+        public ChangeParameters() {
+            enabled = false; // check every patch on every detection frame
+            signatureSize = 8; // pixels on each side of the shrunk patch
+            changeThreshold = 4.0; // mean absolute difference of gray levels
+            sceneCutThreshold = 30.0;
+        }
+        public ChangeParameters withEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return this;
+        }
+        public ChangeParameters withSignatureSize(int signatureSize) {
+            this.signatureSize = signatureSize;
+            return this;
+        }
+        public ChangeParameters withChangeThreshold(double changeThreshold) {
+            this.changeThreshold = changeThreshold;
+            return this;
+        }
+        public ChangeParameters withSceneCutThreshold(double sceneCutThreshold) {
+            this.sceneCutThreshold = sceneCutThreshold;
+            return this;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getSignatureSize() {
+            return signatureSize;
+        }
+
+        public void setSignatureSize(int signatureSize) {
+            this.signatureSize = signatureSize;
+        }
+
+        public double getChangeThreshold() {
+            return changeThreshold;
+        }
+
+        public void setChangeThreshold(double changeThreshold) {
+            this.changeThreshold = changeThreshold;
+        }
+
+        public double getSceneCutThreshold() {
+            return sceneCutThreshold;
+        }
+
+        public void setSceneCutThreshold(double sceneCutThreshold) {
+            this.sceneCutThreshold = sceneCutThreshold;
+        }
+    }
+
+    public static class OutputParameters implements Serializable {
+        private int writerThreads, queueSize, segmentFrames;
+        private boolean dropWhenBehind, videoOutput;
+        private double fps;
+        public OutputParameters() {
+            writerThreads = 2;
+            queueSize = 8; // frames waiting for a writer thread
+            dropWhenBehind = false; // wait for the writer instead
+            videoOutput = false; // one JPEG file per frame
+            segmentFrames = 0; // a single video file
+            fps = 0; // frame rate of the source
+        }
+        public OutputParameters withWriterThreads(int writerThreads) {
+            this.writerThreads = writerThreads;
+            return this;
+        }
+        public OutputParameters withQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+        public OutputParameters withDropWhenBehind(boolean dropWhenBehind) {
+            this.dropWhenBehind = dropWhenBehind;
+            return this;
+        }
+        public OutputParameters withVideoOutput(boolean videoOutput) {
+            this.videoOutput = videoOutput;
+            return this;
+        }
+        public OutputParameters withSegmentFrames(int segmentFrames) {
+            this.segmentFrames = segmentFrames;
+            return this;
+        }
+        public OutputParameters withFps(double fps) {
+            this.fps = fps;
+            return this;
+        }
+
+        public int getWriterThreads() {
+            return writerThreads;
+        }
+
+        public void setWriterThreads(int writerThreads) {
+            this.writerThreads = writerThreads;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public boolean isDropWhenBehind() {
+            return dropWhenBehind;
+        }
+
+        public void setDropWhenBehind(boolean dropWhenBehind) {
+            this.dropWhenBehind = dropWhenBehind;
+        }
+
+        public boolean isVideoOutput() {
+            return videoOutput;
+        }
+
+        public void setVideoOutput(boolean videoOutput) {
+            this.videoOutput = videoOutput;
+        }
+
+        public int getSegmentFrames() {
+            return segmentFrames;
+        }
+
+        public void setSegmentFrames(int segmentFrames) {
+            this.segmentFrames = segmentFrames;
+        }
+
+        public double getFps() {
+            return fps;
+        }
+
+        public void setFps(double fps) {
+            this.fps = fps;
+        }
+    }
+
+    public static class AdaptiveParameters implements Serializable {
+        private boolean enabled;
+        private int adjustInterval, minSampleRate, maxSampleRate, minAddedTemplates, maxAddedTemplates;
+        private double frameBudgetMillis, tolerance;
+        private double minPatchFraction, maxPatchFraction, minPatchStride, maxPatchStride;
+        public AdaptiveParameters() {
+            enabled = false; // keep the values given to the runner
+            frameBudgetMillis = 40; // mean detection time per frame aimed at
+            tolerance = 0.15; // fraction of the budget within which nothing changes
+            adjustInterval = 25; // frames measured before a change, at least two sampled frames
+            minSampleRate = 1;
+            maxSampleRate = 16;
+            minPatchFraction = .25; // size of the patches, as a fraction of the frame
+            maxPatchFraction = .5;
+            minPatchStride = .5; // move between patches, as a fraction of their size
+            maxPatchStride = 1;
+            minAddedTemplates = 1; // dynamic templates kept per logo
+            maxAddedTemplates = 8;
+        }
+        public AdaptiveParameters withEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return this;
+        }
+        public AdaptiveParameters withFrameBudgetMillis(double frameBudgetMillis) {
+            this.frameBudgetMillis = frameBudgetMillis;
+            return this;
+        }
+        public AdaptiveParameters withTolerance(double tolerance) {
+            this.tolerance = tolerance;
+            return this;
+        }
+        public AdaptiveParameters withAdjustInterval(int adjustInterval) {
+            this.adjustInterval = adjustInterval;
+            return this;
+        }
+        public AdaptiveParameters withMinSampleRate(int minSampleRate) {
+            this.minSampleRate = minSampleRate;
+            return this;
+        }
+        public AdaptiveParameters withMaxSampleRate(int maxSampleRate) {
+            this.maxSampleRate = maxSampleRate;
+            return this;
+        }
+        public AdaptiveParameters withMinPatchFraction(double minPatchFraction) {
+            this.minPatchFraction = minPatchFraction;
+            return this;
+        }
+        public AdaptiveParameters withMaxPatchFraction(double maxPatchFraction) {
+            this.maxPatchFraction = maxPatchFraction;
+            return this;
+        }
+        public AdaptiveParameters withMinPatchStride(double minPatchStride) {
+            this.minPatchStride = minPatchStride;
+            return this;
+        }
+        public AdaptiveParameters withMaxPatchStride(double maxPatchStride) {
+            this.maxPatchStride = maxPatchStride;
+            return this;
+        }
+        public AdaptiveParameters withMinAddedTemplates(int minAddedTemplates) {
+            this.minAddedTemplates = minAddedTemplates;
+            return this;
+        }
+        public AdaptiveParameters withMaxAddedTemplates(int maxAddedTemplates) {
+            this.maxAddedTemplates = maxAddedTemplates;
+            return this;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getFrameBudgetMillis() {
+            return frameBudgetMillis;
+        }
+
+        public void setFrameBudgetMillis(double frameBudgetMillis) {
+            this.frameBudgetMillis = frameBudgetMillis;
+        }
+
+        public double getTolerance() {
+            return tolerance;
+        }
+
+        public void setTolerance(double tolerance) {
+            this.tolerance = tolerance;
+        }
+
+        public int getAdjustInterval() {
+            return adjustInterval;
+        }
+
+        public void setAdjustInterval(int adjustInterval) {
+            this.adjustInterval = adjustInterval;
+        }
+
+        public int getMinSampleRate() {
+            return minSampleRate;
+        }
+
+        public void setMinSampleRate(int minSampleRate) {
+            this.minSampleRate = minSampleRate;
+        }
+
+        public int getMaxSampleRate() {
+            return maxSampleRate;
+        }
+
+        public void setMaxSampleRate(int maxSampleRate) {
+            this.maxSampleRate = maxSampleRate;
+        }
+
+        public double getMinPatchFraction() {
+            return minPatchFraction;
+        }
+
+        public void setMinPatchFraction(double minPatchFraction) {
+            this.minPatchFraction = minPatchFraction;
+        }
+
+        public double getMaxPatchFraction() {
+            return maxPatchFraction;
+        }
+
+        public void setMaxPatchFraction(double maxPatchFraction) {
+            this.maxPatchFraction = maxPatchFraction;
+        }
+
+        public double getMinPatchStride() {
+            return minPatchStride;
+        }
+
+        public void setMinPatchStride(double minPatchStride) {
+            this.minPatchStride = minPatchStride;
+        }
+
+        public double getMaxPatchStride() {
+            return maxPatchStride;
+        }
+
+        public void setMaxPatchStride(double maxPatchStride) {
+            this.maxPatchStride = maxPatchStride;
+        }
+
+        public int getMinAddedTemplates() {
+            return minAddedTemplates;
+        }
+
+        public void setMinAddedTemplates(int minAddedTemplates) {
+            this.minAddedTemplates = minAddedTemplates;
+        }
+
+        public int getMaxAddedTemplates() {
+            return maxAddedTemplates;
+        }
+
+        public void setMaxAddedTemplates(int maxAddedTemplates) {
+            this.maxAddedTemplates = maxAddedTemplates;
+        }
+    }
 
 
     private SIFTParameters siftParameters;
     private RANSACParameters ransacParameters;
     private MatchingParameters matchingParameters;
     private WindowParameters windowParameters;
+    private ExecutionParameters executionParameters;
+    private TrackingParameters trackingParameters;
+    private ScanParameters scanParameters;
+    private ChangeParameters changeParameters;
+    private OutputParameters outputParameters;
+    private AdaptiveParameters adaptiveParameters;
 
     public Parameters() {
         siftParameters = new SIFTParameters();
         ransacParameters = new RANSACParameters();
         matchingParameters = new MatchingParameters();
         windowParameters = new WindowParameters();
+        executionParameters = new ExecutionParameters();
+        trackingParameters = new TrackingParameters();
+        scanParameters = new ScanParameters();
+        changeParameters = new ChangeParameters();
+        outputParameters = new OutputParameters();
+        adaptiveParameters = new AdaptiveParameters();
     }
     public Parameters withSIFTParameters(SIFTParameters siftParameters) {
         this.siftParameters = siftParameters;
@@ -210,5 +929,29 @@ public class Parameters {
         this.windowParameters = windowParameters;
         return this;
     }
+    public Parameters withExecutionParameters(ExecutionParameters executionParameters) {
+        this.executionParameters = executionParameters;
+        return this;
+    }
+    public Parameters withTrackingParameters(TrackingParameters trackingParameters) {
+        this.trackingParameters = trackingParameters;
+        return this;
+    }
+    public Parameters withScanParameters(ScanParameters scanParameters) {
+        this.scanParameters = scanParameters;
+        return this;
+    }
+    public Parameters withChangeParameters(ChangeParameters changeParameters) {
+        this.changeParameters = changeParameters;
+        return this;
+    }
+    public Parameters withOutputParameters(OutputParameters outputParameters) {
+        this.outputParameters = outputParameters;
+        return this;
+    }
+    public Parameters withAdaptiveParameters(AdaptiveParameters adaptiveParameters) {
+        this.adaptiveParameters = adaptiveParameters;
+        return this;
+    }
 
 }
@@ -0,0 +1,171 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+/**
+ * Remembers the result of every (logo, patch) check and tells which of them can be reused because the patch has
+ * not changed since.
+ * <p>The signature of a patch is its gray image shrunk to signatureSize x signatureSize pixels. A patch counts as
+ * unchanged while the mean absolute difference between its current signature and the signature it had when its
+ * results were computed stays below the change threshold. Comparing with that reference, and not with the previous
+ * frame, keeps a slow drift from going unnoticed forever. A scene cut, detected on a shrunk image of the whole
+ * frame compared with the previous frame, drops all results.</p>
+ * <p>Reused hits are reported again but not learned again: no template is added and no priority changed.</p>
+ */
+public class PatchChangeDetector {
+
+    /** Size of the shrunk whole frame used to detect scene cuts */
+    private static final int FRAME_SIGNATURE_WIDTH = 32, FRAME_SIGNATURE_HEIGHT = 24;
+
+    private final Parameters.ChangeParameters params;
+    private final List<SerializablePatchIdentifier> patchIdentifierList;
+    private final int logoCount;
+
+    /** For each patch, its signature when its results were computed */
+    private final float[][] reference;
+    /** For each patch and logo, whether the result is known and still valid */
+    private final boolean[][] known;
+    /** For each patch and logo, the rectangle found, or null for a miss */
+    private final SerializableRect[][] results;
+    private float[] previousFrame;
+    private boolean lastSceneCut;
+    private int lastReused;
+    private long totalReused;
+
+    /**
+     * @param params              The parameters of the change detection
+     * @param patchIdentifierList The grid of patches
+     * @param logoCount           The number of logos
+     */
+    public PatchChangeDetector(Parameters.ChangeParameters params,
+                               List<SerializablePatchIdentifier> patchIdentifierList, int logoCount) {
+        this.params = params;
+        this.patchIdentifierList = patchIdentifierList;
+        this.logoCount = logoCount;
+        reference = new float[patchIdentifierList.size()][];
+        known = new boolean[patchIdentifierList.size()][logoCount];
+        results = new SerializableRect[patchIdentifierList.size()][logoCount];
+    }
+
+    /**
+     * Compares the frame with the reference signatures and drops the results of the patches that changed, or all of
+     * them on a scene cut.
+     *
+     * @param frame The image of the detection frame
+     */
+    public void beginFrame(Mat frame) {
+        Mat gray = new Mat();
+        if (frame.channels() > 1)
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+        else
+            frame.copyTo(gray);
+
+        float[] frameSignature = signature(gray, FRAME_SIGNATURE_WIDTH, FRAME_SIGNATURE_HEIGHT);
+        lastSceneCut = previousFrame != null
+                && meanAbsDiff(previousFrame, frameSignature) > params.getSceneCutThreshold();
+        previousFrame = frameSignature;
+
+        int size = params.getSignatureSize();
+        for (int patchIndex = 0; patchIndex < patchIdentifierList.size(); patchIndex++) {
+            Mat patch = new Mat(gray, patchIdentifierList.get(patchIndex).roi.toJavaCVRect());
+            float[] current = signature(patch, size, size);
+            patch.release();
+            if (lastSceneCut || reference[patchIndex] == null
+                    || meanAbsDiff(reference[patchIndex], current) > params.getChangeThreshold()) {
+                reference[patchIndex] = current;
+                for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+                    known[patchIndex][logoIndex] = false;
+                    results[patchIndex][logoIndex] = null;
+                }
+            }
+        }
+        gray.release();
+        lastReused = 0;
+    }
+
+    /**
+     * Takes the reusable checks out of the plan and adds their hits to found.
+     *
+     * @param plan  The checks to do, null meaning the whole grid
+     * @param found For each logo, the rectangles found on this frame so far
+     * @return the checks still to do
+     */
+    public boolean[][] reuse(boolean[][] plan, List<List<SerializableRect>> found) {
+        boolean[][] rest = new boolean[logoCount][patchIdentifierList.size()];
+        for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+            for (int patchIndex = 0; patchIndex < patchIdentifierList.size(); patchIndex++) {
+                if (!ScanPlanner.includes(plan, logoIndex, patchIndex))
+                    continue;
+                if (known[patchIndex][logoIndex]) {
+                    if (results[patchIndex][logoIndex] != null)
+                        found.get(logoIndex).add(results[patchIndex][logoIndex]);
+                    lastReused++;
+                    totalReused++;
+                } else {
+                    rest[logoIndex][patchIndex] = true;
+                }
+            }
+        }
+        return rest;
+    }
+
+    /**
+     * Remembers the result of a check done on this frame.
+     *
+     * @param logoIndex  The index of the logo
+     * @param patchIndex The index of the patch
+     * @param foundRect  The rectangle found, or null if the logo was not found
+     */
+    public void store(int logoIndex, int patchIndex, SerializableRect foundRect) {
+        known[patchIndex][logoIndex] = true;
+        results[patchIndex][logoIndex] = foundRect;
+    }
+
+    /**
+     * @return true if the last frame given to {@link #beginFrame(Mat)} was a scene cut
+     */
+    public boolean isLastSceneCut() {
+        return lastSceneCut;
+    }
+
+    /**
+     * @return the number of (logo, patch) checks reused on the last frame
+     */
+    public int getLastReused() {
+        return lastReused;
+    }
+
+    /**
+     * @return the number of (logo, patch) checks reused on all frames
+     */
+    public long getTotalReused() {
+        return totalReused;
+    }
+
+    private static float[] signature(Mat gray, int width, int height) {
+        Mat small = new Mat();
+        Imgproc.resize(gray, small, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        byte[] pixels = new byte[width * height];
+        small.get(0, 0, pixels);
+        small.release();
+        float[] result = new float[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            result[i] = pixels[i] & 0xFF;
+        }
+        return result;
+    }
+
+    private static double meanAbsDiff(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum / a.length;
+    }
+}
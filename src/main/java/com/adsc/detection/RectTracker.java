@@ -0,0 +1,271 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Moves detected logo rectangles along with the video between the frames on which detection runs.
+ * <p>On a detection frame, {@link #reset(Mat, List)} picks corners inside every detected rectangle. On the following
+ * frames, {@link #track(Mat)} follows them with pyramidal Lucas-Kanade optical flow (all points of all rectangles in
+ * one call) and moves every rectangle by the median displacement of its points, scaling it by the median change of
+ * their distances to the centre. When too few points of some rectangle survive, the tracker reports itself lost
+ * and the caller should run the full detection on this frame. A rectangle in which no corner was found, e.g. a flat
+ * logo, cannot be followed: it stays in place and never makes the tracker lost, as detecting again would not find
+ * more corners in it.</p>
+ */
+public class RectTracker {
+
+    private final Parameters.TrackingParameters params;
+
+    /** Gray image of the previous frame */
+    private Mat previousGray;
+    /** Current rectangles, per logo */
+    private List<List<SerializableRect>> rects;
+    /** Coordinates of tracked points, x0, y0, x1, y1, ... */
+    private float[] points;
+    /** For each tracked point, the number of its rectangle in the order of {@link #rects} */
+    private int[] owner;
+    /** For each rectangle, the number of points it had after the last reset, 0 if it cannot be tracked */
+    private int[] initialCount;
+    private int rectCount;
+    private boolean lost;
+
+    public RectTracker(Parameters.TrackingParameters params) {
+        this.params = params;
+        rects = new ArrayList<>();
+        points = new float[0];
+        owner = new int[0];
+        initialCount = new int[0];
+    }
+
+    /**
+     * Starts tracking the detections of this frame.
+     *
+     * @param frame      The image of the frame
+     * @param detections The rectangles detected on this frame, per logo
+     */
+    public void reset(Mat frame, List<List<SerializableRect>> detections) {
+        Mat gray = toGray(frame);
+        rects = new ArrayList<>();
+        rectCount = 0;
+        List<float[]> rectPoints = new ArrayList<>();
+        for (List<SerializableRect> logoRects : detections) {
+            List<SerializableRect> copy = new ArrayList<>();
+            if (logoRects != null) {
+                for (SerializableRect rect : logoRects) {
+                    copy.add(rect);
+                    rectPoints.add(corners(gray, rect));
+                    rectCount++;
+                }
+            }
+            rects.add(copy);
+        }
+
+        int total = 0;
+        for (float[] p : rectPoints)
+            total += p.length / 2;
+        points = new float[2 * total];
+        owner = new int[total];
+        initialCount = new int[rectCount];
+        int k = 0;
+        for (int r = 0; r < rectCount; r++) {
+            float[] p = rectPoints.get(r);
+            System.arraycopy(p, 0, points, 2 * k, p.length);
+            Arrays.fill(owner, k, k + p.length / 2, r);
+            initialCount[r] = p.length / 2;
+            k += p.length / 2;
+        }
+
+        replacePrevious(gray);
+        lost = false;
+    }
+
+    /**
+     * Moves the rectangles to this frame.
+     *
+     * @param frame The image of the frame following the previous call of {@link #reset(Mat, List)} or of this method
+     * @return the moved rectangles, per logo
+     */
+    public List<List<SerializableRect>> track(Mat frame) {
+        Mat gray = toGray(frame);
+        int n = owner.length;
+        if (previousGray == null || n == 0) {
+            // Nothing to follow, the rectangles stay in place
+            replacePrevious(gray);
+            return rects;
+        }
+
+        MatOfPoint2f previousPoints = new MatOfPoint2f();
+        previousPoints.alloc(n);
+        previousPoints.put(0, 0, points);
+        MatOfPoint2f nextPoints = new MatOfPoint2f();
+        MatOfByte status = new MatOfByte();
+        MatOfFloat error = new MatOfFloat();
+        Video.calcOpticalFlowPyrLK(previousGray, gray, previousPoints, nextPoints, status, error);
+
+        float[] next = new float[2 * n];
+        nextPoints.get(0, 0, next);
+        byte[] found = new byte[n];
+        status.get(0, 0, found);
+        previousPoints.release();
+        nextPoints.release();
+        status.release();
+        error.release();
+
+        // Move every rectangle by the motion of its own points
+        float[] keptPoints = new float[2 * n];
+        int[] keptOwner = new int[n];
+        int kept = 0;
+        int first = 0;
+        int r = 0;
+        List<List<SerializableRect>> moved = new ArrayList<>();
+        for (List<SerializableRect> logoRects : rects) {
+            List<SerializableRect> movedRects = new ArrayList<>();
+            for (SerializableRect rect : logoRects) {
+                int last = first;
+                while (last < n && owner[last] == r)
+                    last++;
+                int tracked = 0;
+                for (int i = first; i < last; i++) {
+                    if (found[i] != 0) {
+                        keptPoints[2 * (kept + tracked)] = next[2 * i];
+                        keptPoints[2 * (kept + tracked) + 1] = next[2 * i + 1];
+                        keptOwner[kept + tracked] = r;
+                        tracked++;
+                    }
+                }
+                // Only rectangles losing points they had, untrackable ones stay in place
+                if (initialCount[r] > 0 && (tracked < params.getMinTrackedPoints()
+                        || tracked < params.getMinTrackedRatio() * initialCount[r])) {
+                    lost = true;
+                }
+                movedRects.add(tracked > 0 ? move(rect, first, last, found, next, frame) : rect);
+                kept += tracked;
+                first = last;
+                r++;
+            }
+            moved.add(movedRects);
+        }
+
+        rects = moved;
+        points = Arrays.copyOf(keptPoints, 2 * kept);
+        owner = Arrays.copyOf(keptOwner, kept);
+        replacePrevious(gray);
+        return rects;
+    }
+
+    /**
+     * @return true if some rectangle could not be followed since the last reset, so detection should run again
+     */
+    public boolean isLost() {
+        return lost;
+    }
+
+    /**
+     * Moves the rectangle by the median displacement of its tracked points and scales it by the median change of
+     * their distances to their centroid.
+     */
+    private SerializableRect move(SerializableRect rect, int first, int last, byte[] found, float[] next, Mat frame) {
+        int tracked = 0;
+        double[] dx = new double[last - first], dy = new double[last - first];
+        double oldCx = 0, oldCy = 0, newCx = 0, newCy = 0;
+        for (int i = first; i < last; i++) {
+            if (found[i] == 0)
+                continue;
+            dx[tracked] = next[2 * i] - points[2 * i];
+            dy[tracked] = next[2 * i + 1] - points[2 * i + 1];
+            oldCx += points[2 * i];
+            oldCy += points[2 * i + 1];
+            newCx += next[2 * i];
+            newCy += next[2 * i + 1];
+            tracked++;
+        }
+        oldCx /= tracked;
+        oldCy /= tracked;
+        newCx /= tracked;
+        newCy /= tracked;
+
+        double scale = 1.0;
+        if (tracked > 1) {
+            double[] ratios = new double[tracked];
+            int m = 0;
+            for (int i = first; i < last; i++) {
+                if (found[i] == 0)
+                    continue;
+                double before = Math.hypot(points[2 * i] - oldCx, points[2 * i + 1] - oldCy);
+                double after = Math.hypot(next[2 * i] - newCx, next[2 * i + 1] - newCy);
+                if (before > 1.0)
+                    ratios[m++] = after / before;
+            }
+            if (m > 0)
+                scale = median(ratios, m);
+        }
+
+        double shiftX = median(dx, tracked), shiftY = median(dy, tracked);
+        double cx = rect.x + rect.width / 2.0 + shiftX, cy = rect.y + rect.height / 2.0 + shiftY;
+        double w = rect.width * scale, h = rect.height * scale;
+        int x0 = (int) Math.max(0, Math.round(cx - w / 2)), y0 = (int) Math.max(0, Math.round(cy - h / 2));
+        int x1 = (int) Math.min(frame.cols(), Math.round(cx + w / 2)), y1 = (int) Math.min(frame.rows(), Math.round(cy + h / 2));
+        if (x1 <= x0 || y1 <= y0)
+            return rect;
+        return new SerializableRect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * Picks corners to track inside the rectangle.
+     *
+     * @return coordinates relative to the frame, x0, y0, x1, y1, ...
+     */
+    private float[] corners(Mat gray, SerializableRect rect) {
+        Rect roi = new Rect(Math.max(0, rect.x), Math.max(0, rect.y), 0, 0);
+        roi.width = Math.min(gray.cols(), rect.x + rect.width) - roi.x;
+        roi.height = Math.min(gray.rows(), rect.y + rect.height) - roi.y;
+        if (roi.width <= 0 || roi.height <= 0)
+            return new float[0];
+
+        Mat patch = new Mat(gray, roi);
+        MatOfPoint found = new MatOfPoint();
+        Imgproc.goodFeaturesToTrack(patch, found, params.getMaxPointsPerRect(), 0.01, 3);
+        int n = found.rows();
+        int[] xy = new int[2 * n];
+        if (n > 0)
+            found.get(0, 0, xy);
+        patch.release();
+        found.release();
+
+        float[] result = new float[2 * n];
+        for (int i = 0; i < n; i++) {
+            result[2 * i] = xy[2 * i] + roi.x;
+            result[2 * i + 1] = xy[2 * i + 1] + roi.y;
+        }
+        return result;
+    }
+
+    private void replacePrevious(Mat gray) {
+        if (previousGray != null)
+            previousGray.release();
+        previousGray = gray;
+    }
+
+    private static Mat toGray(Mat frame) {
+        Mat gray = new Mat();
+        if (frame.channels() > 1)
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+        else
+            frame.copyTo(gray);
+        return gray;
+    }
+
+    private static double median(double[] values, int n) {
+        double[] sorted = Arrays.copyOf(values, n);
+        Arrays.sort(sorted);
+        return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+    }
+}
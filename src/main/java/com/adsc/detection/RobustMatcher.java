@@ -5,16 +5,20 @@ import static com.adsc.detection.utils.SerializableStructure.*;
 import com.adsc.detection.utils.Util;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.*;
-import org.opencv.core.Point;
 import org.opencv.features2d.BFMatcher;
-import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Intern04 on 8/8/2014.
  * Implementation of robust matcher described in OpenCV Cookbook ch. 9
+ * <p>The matches of a call are kept in local variables and the result of {@link #match} is an immutable
+ * {@link DetectionResult}. A matcher still reuses native buffers between calls, so it is used by one thread at a
+ * time; {@link #matchImages} additionally keeps its result for {@link #getFoundRect()} and
+ * {@link #getExtractedTemplate()}.</p>
  */
 public class RobustMatcher {
 
@@ -24,109 +28,180 @@ public class RobustMatcher {
     /** Bruteforce matcher which matches two sets of keypoints */
     private BFMatcher matcher;
 
-    /** Lists of matches from template to patch, from patch to template, and matches they have in common.
-     Used for symmetry test (see OpenCV cookbook Ch. 9)*/
-    private List<MatOfDMatch> matches12, matches21, matches;
-
-    /** The rectangle corresponding to detected logo */
+    /** The rectangle corresponding to detected logo, by the last call to {@link #matchImages} */
     private SerializableRect foundRect;
 
     private SerializableMat extractedTemplate;
 
+    /** Temporary Mats of the current match, released when {@link #match} returns */
+    private final MatArena arena = new MatArena();
+
+    /** Number of candidates verified, and dropped at each gate of the verification, over all matchers */
+    private static final AtomicLong candidates = new AtomicLong();
+    private static final AtomicLong fewMatches = new AtomicLong();
+    private static final AtomicLong noHomography = new AtomicLong();
+    private static final AtomicLong lowInlierRatio = new AtomicLong();
+    private static final AtomicLong badShape = new AtomicLong();
+    /** Number of candidates whose second RANSAC iteration was skipped, over all matchers */
+    private static final AtomicLong refinementSkipped = new AtomicLong();
+
+    /** Buffers of {@link #getHomography(MatchArrays, float[], float[])}, reused by all matches of this matcher */
+    private float[] srcPoints, dstPoints;
+    private byte[] inlierMask;
+    private Mat srcBuffer, dstBuffer, maskBuffer;
+    private int bufferCapacity;
+    /** Number of inliers of the homography returned last by {@link #getHomography} */
+    private int inliers;
+
     /**
      * Finds homography between two sets of keypoints using <a href="http://en.wikipedia.org/wiki/RANSAC">RANSAC</a>
      * algorithm. Does two iterations: first separates the outliers from inliers,
-     * the second iteration performs the RANSAC inliers only to achieve better result.
-     * @param logoKeyPoints the key points of the logo template
-     * @param frameRegionKeyPoints key points of the frame patch
-     * @return 3x3 transformation matrix
+     * the second iteration performs the RANSAC inliers only to achieve better result, or a least squares fit on them
+     * if {@link Parameters.RANSACParameters#isLeastSquaresRefit()} is set.
+     * <p>Candidates whose first iteration keeps less than {@link Parameters.RANSACParameters#getMinInlierRatio()} of
+     * the matches as inliers are rejected right away, and the second iteration is skipped when the first one keeps
+     * at least {@link Parameters.RANSACParameters#getSkipRefinementRatio()} of them.</p>
+     * <p>The points and the mask go through buffers kept by the matcher: each set of points is copied into native
+     * memory with a single put, the mask is read back with a single get, and the inliers are compacted in the Java
+     * arrays before the second iteration.</p>
+     * @param matches the symmetric matches from the logo template to the patch
+     * @param logoPoints coordinates of the key points of the logo template, see {@link MatchArrays#coordinates}
+     * @param frameRegionPoints coordinates of the key points of the frame patch
+     * @return 3x3 transformation matrix, released with the other temporaries at the end of the match, or null if
+     * the candidate was rejected
      */
-    private Mat getHomography(MatOfKeyPoint logoKeyPoints, MatOfKeyPoint frameRegionKeyPoints) {
+    private Mat getHomography(MatchArrays matches, float[] logoPoints, float[] frameRegionPoints) {
 
         // First iteration: find homography matrix and outliers
-        int size = matches.size();
-        Mat _src = new Mat(size, 2, CvType.CV_32FC1);
-        Mat _dst = new Mat(size, 2, CvType.CV_32FC1);
+        int size = matches.size;
+        inliers = size;
+        reserve(size);
         for (int i = 0 ; i < size ; i ++) {
-            int queryIndex = (int) matches.get(i).toList().get(0).queryIdx;
-            int trainIndex = (int) matches.get(i).toList().get(0).trainIdx;
-            Point logoPoint = logoKeyPoints.toList().get(queryIndex).pt;
-            Point frameRegionPoint = frameRegionKeyPoints.toList().get(trainIndex).pt;
-            //logoKeyPoints.position(0);
-            //frameRegionKeyPoints.position(0);
-            _src.put(i, 0, logoPoint.x);
-            _src.put(i, 1, logoPoint.y);
-            _dst.put(i, 0, frameRegionPoint.x);
-            _dst.put(i, 1, frameRegionPoint.y);
+            int logoIndex = matches.queryIdx[i];
+            int frameRegionIndex = matches.trainIdx[i];
+            srcPoints[2 * i] = logoPoints[2 * logoIndex];
+            srcPoints[2 * i + 1] = logoPoints[2 * logoIndex + 1];
+            dstPoints[2 * i] = frameRegionPoints[2 * frameRegionIndex];
+            dstPoints[2 * i + 1] = frameRegionPoints[2 * frameRegionIndex + 1];
         }
-        MatOfPoint2f src = new MatOfPoint2f(_src);
-        MatOfPoint2f dst = new MatOfPoint2f(_dst);
-        Mat mask = new Mat(src.rows(), 1, CvType.CV_32FC1, new Scalar(0));
+        MatOfPoint2f src = points(srcBuffer, srcPoints, size);
+        MatOfPoint2f dst = points(dstBuffer, dstPoints, size);
+        Mat mask = arena.add(maskBuffer.rowRange(0, size));
 
         // Information about outliers will be stored in mask
-        Mat h = Calib3d.findHomography(src, dst, Calib3d.RANSAC, params.getRansacParameters().getReprojectionThreshold(), mask, 2000, 0.995);
-
-
-        // Second iteration: using only inliers
-        Mat __src = new Mat(0, 2, CvType.CV_32FC1);
-        Mat __dst = new Mat(0, 2, CvType.CV_32FC1);
+        Parameters.RANSACParameters ransac = params.getRansacParameters();
+        double threshold = ransac.getReprojectionThreshold();
+        Mat h = arena.add(Calib3d.findHomography(src, dst, Calib3d.RANSAC, threshold, mask,
+                ransac.getMaxIterations(), ransac.getConfidence()));
+        if (h == null || h.empty()) {
+            noHomography.incrementAndGet();
+            return h;
+        }
 
-        for (int i = 0 ; i < mask.rows() ; i ++) {
-            if (mask.get(i, 0)[0] == 1.0) { // discard outliers
-                __src.push_back(src.row(i));
-                __dst.push_back(dst.row(i));
+        // Second iteration: using only inliers, moved to the front of the arrays
+        mask.get(0, 0, inlierMask);
+        inliers = 0;
+        for (int i = 0 ; i < size ; i ++) {
+            if (inlierMask[i] != 0) { // discard outliers
+                System.arraycopy(srcPoints, 2 * i, srcPoints, 2 * inliers, 2);
+                System.arraycopy(dstPoints, 2 * i, dstPoints, 2 * inliers, 2);
+                inliers++;
             }
         }
+        double inlierRatio = (double) inliers / size;
+        if (inlierRatio < ransac.getMinInlierRatio()) {
+            lowInlierRatio.incrementAndGet();
+            return null;
+        }
+        // A homography needs four points, keep the first one otherwise
+        if (inliers < 4)
+            return h;
+        if (ransac.getSkipRefinementRatio() > 0 && inlierRatio >= ransac.getSkipRefinementRatio()) {
+            refinementSkipped.incrementAndGet();
+            return h;
+        }
 
-        src = new MatOfPoint2f(__src);
-        dst = new MatOfPoint2f(__dst);
-        mask = new Mat(__src.rows(), 1, CvType.CV_32FC1, new Scalar(0));
+        src = points(srcBuffer, srcPoints, inliers);
+        dst = points(dstBuffer, dstPoints, inliers);
+
+        // Find a homography matrix based on only inliers, released with the other temporaries of the match
+        if (params.getRansacParameters().isLeastSquaresRefit()) {
+            // The default method, 0, is a least-squares fit of all points
+            h = arena.add(Calib3d.findHomography(src, dst));
+        } else {
+            mask = arena.add(maskBuffer.rowRange(0, inliers));
+            h = arena.add(Calib3d.findHomography(src, dst, Calib3d.RANSAC, threshold, mask,
+                    ransac.getMaxIterations(), ransac.getConfidence()));
+        }
+        return h;
+    }
 
-        // Find a homography matrix based on only inliers
-        h = Calib3d.findHomography(src, dst, Calib3d.RANSAC,
-                params.getRansacParameters().getReprojectionThreshold(), mask, 2000, 0.995);
+    /**
+     * Makes the buffers of {@link #getHomography(MatchArrays, float[], float[])} large enough for the given number of matches.
+     * They only grow, so after the first few matches no more memory is allocated.
+     */
+    private void reserve(int size) {
+        if (size <= bufferCapacity)
+            return;
+        int capacity = Math.max(size, 2 * bufferCapacity);
+        srcPoints = new float[2 * capacity];
+        dstPoints = new float[2 * capacity];
+        inlierMask = new byte[capacity];
+        if (srcBuffer != null) {
+            srcBuffer.release();
+            dstBuffer.release();
+            maskBuffer.release();
+        }
+        srcBuffer = new Mat(capacity, 1, CvType.CV_32FC2);
+        dstBuffer = new Mat(capacity, 1, CvType.CV_32FC2);
+        // The mask findHomography writes, so that it fills the buffer instead of allocating one
+        maskBuffer = new Mat(capacity, 1, CvType.CV_8UC1);
+        bufferCapacity = capacity;
+    }
 
-        // Force release
-        __src.release();
-        __dst.release();
-        mask.release();
-        return h;
+    /**
+     * Copies the first n points into the buffer with a single put.
+     * @return the points, a view of the first n rows of the buffer
+     */
+    private MatOfPoint2f points(Mat buffer, float[] coordinates, int n) {
+        Mat rows = arena.add(buffer.rowRange(0, n));
+        MatOfPoint2f points = arena.add(new MatOfPoint2f(rows));
+        // put stops at the end of the view, the rest of the array is ignored
+        points.put(0, 0, coordinates);
+        return points;
     }
 
     /**
      * Performs symmetry test as described in OpenCV cookbook pp 239-246, given two sets of matches:
      * from logo to image and from image to logo.
+     * <p>A match i -> j from logo to image is symmetric if there is a match j -> i from image to logo. Every image
+     * key point is the query of at most one match from image to logo, so the matches from image to logo are put into
+     * a table indexed by the image key point, and each match from logo to image is checked with a single lookup.
+     * This takes linear time and gives the same matches, in the same order, as checking every pair.</p>
      * @param matches12
      * @param matches21
-     * @return vector of refined matches
+     * @return refined matches, oriented from logo to image
      */
-    private List<MatOfDMatch> symmetryTest(
-            List<MatOfDMatch> matches12,
-            List<MatOfDMatch> matches21)
+    private MatchArrays symmetryTest(MatchArrays matches12, MatchArrays matches21)
     {
-        List<MatOfDMatch> matches = new ArrayList<MatOfDMatch>();
-        // Checking every pair of matches and choosing symmetric ones.
-        for (int i = 0 ; i < matches12.size(); i ++) {
-            for (int j = 0 ; j < matches21.size(); j ++) {
-                MatOfDMatch matOfDMatch12 = matches12.get(i);
-                double[] tmpDMatch = matOfDMatch12.get(0, 0);
-                DMatch dMatch12 = new DMatch();
-                dMatch12.queryIdx = (int) tmpDMatch[0];
-                dMatch12.trainIdx = (int) tmpDMatch[1];
-                dMatch12.imgIdx = (int) tmpDMatch[2];
-                dMatch12.distance = (int) tmpDMatch[3];
-                ;
-                MatOfDMatch matOfDMatch21 = matches21.get(j);
-                tmpDMatch = matOfDMatch21.get(0, 0);
-                DMatch dMatch21 = new DMatch();
-                dMatch21.queryIdx = (int) tmpDMatch[0];
-                dMatch21.trainIdx = (int) tmpDMatch[1];
-                dMatch21.imgIdx = (int) tmpDMatch[2];
-                dMatch21.distance = (int) tmpDMatch[3];
-                if (dMatch12.queryIdx == dMatch21.trainIdx && dMatch12.trainIdx == dMatch21.queryIdx) {
-                    matches.add(new MatOfDMatch(dMatch21));
-                    break;
-                }
+        MatchArrays matches = new MatchArrays(matches12.size);
+
+        // For every image key point, the logo key point it is matched to, or -1
+        int imageKeyPoints = 0;
+        for (int j = 0 ; j < matches21.size; j ++) {
+            imageKeyPoints = Math.max(imageKeyPoints, matches21.queryIdx[j] + 1);
+        }
+        int[] logoIndexOf = new int[imageKeyPoints];
+        Arrays.fill(logoIndexOf, -1);
+        for (int j = 0 ; j < matches21.size; j ++) {
+            logoIndexOf[matches21.queryIdx[j]] = matches21.trainIdx[j];
+        }
+
+        // Choosing symmetric matches.
+        for (int i = 0 ; i < matches12.size; i ++) {
+            int imageIndex = matches12.trainIdx[i];
+            if (imageIndex < imageKeyPoints && logoIndexOf[imageIndex] == matches12.queryIdx[i]) {
+                matches.add(matches12.queryIdx[i], imageIndex, matches12.distance[i], matches12.secondDistance[i]);
             }
         }
         return matches;
@@ -136,18 +211,19 @@ public class RobustMatcher {
      * Perform
      *  <a href = "http://www.cs.ubc.ca/~lowe/papers/ijcv04.pdf#page=20">Lowe's Ratio test</a>
      */
-    private List<MatOfDMatch> refineMatches(List<MatOfDMatch> oldMatches) {
+    private MatchArrays refineMatches(MatchArrays oldMatches) {
         // Ratio of Distances
         double RoD = params.getMatchingParameters().getRatioOfDistances();
-        List<MatOfDMatch> newMatches = new ArrayList<MatOfDMatch>();
+        MatchArrays newMatches = new MatchArrays(oldMatches.size);
 
         // Refine results 1: Accept only those matches, where best dist is < RoD of 2nd best match.
         double maxDist = 0.0, minDist = 1e100; // infinity
 
-        for (int i = 0 ; i < oldMatches.size(); i ++) {
-            if (oldMatches.get(i).toList().get(0).distance < RoD * oldMatches.get(i).toList().get(0).distance) {
-                newMatches.add(oldMatches.get(i));
-                double distance = oldMatches.get(i).toList().get(0).distance; // [3] for distance
+        for (int i = 0 ; i < oldMatches.size; i ++) {
+            double distance = oldMatches.distance[i];
+            if (distance < RoD * oldMatches.secondDistance[i]) {
+                newMatches.add(oldMatches.queryIdx[i], oldMatches.trainIdx[i], oldMatches.distance[i],
+                        oldMatches.secondDistance[i]);
                 if ( distance < minDist )
                     minDist = distance;
                 if ( distance > maxDist )
@@ -156,12 +232,13 @@ public class RobustMatcher {
         }
 
         // Refine results 2: accept only those matches which distance is no more than 3x greater than best match
-        List<MatOfDMatch> brandNewMatches = new ArrayList<MatOfDMatch>();
-        for (int i = 0 ; i < newMatches.size(); i ++) {
+        MatchArrays brandNewMatches = new MatchArrays(newMatches.size);
+        for (int i = 0 ; i < newMatches.size; i ++) {
             // TODO: Move this weights into params
             // Since minDist may be equal to 0.0, add some non-zero value
-            if (newMatches.get(i).toList().get(0).distance <= 3 * minDist + maxDist / 12) {
-                brandNewMatches.add(newMatches.get(i));
+            if (newMatches.distance[i] <= 3 * minDist + maxDist / 12) {
+                brandNewMatches.add(newMatches.queryIdx[i], newMatches.trainIdx[i], newMatches.distance[i],
+                        newMatches.secondDistance[i]);
             }
         }
         return brandNewMatches;
@@ -189,51 +266,95 @@ public class RobustMatcher {
      */
     public boolean matchImages(Mat logoMat, Mat logoDescriptors, MatOfKeyPoint logoKeyPoints,
                                Mat frameRegionMat, Mat frameRegionDescriptors, MatOfKeyPoint frameRegionKeyPoints, Rect roi) {
+        DetectionResult result = match(logoMat, logoDescriptors, logoKeyPoints, null,
+                frameRegionMat, frameRegionDescriptors, frameRegionKeyPoints, roi);
+        if (result == null)
+            return false;
+        foundRect = result.getFoundRect();
+        extractedTemplate = result.getExtractedTemplate();
+        return true;
+    }
+
+    /**
+     * Performs matching of a logo template against the features of a patch.
+     * @param template the logo template
+     * @param features the features of the tested frame patch
+     * @return the result, with the identifier of the template as parent, or null if the logo is not on the patch
+     */
+    public DetectionResult match(LogoTemplate template, SIFTfeatures features) {
+        return match(template.imageMat, template.descriptor, template.keyPoints, template.identifier,
+                features.rr, features.testDescriptors, features.keyPoints, features.roi);
+    }
+
+    /**
+     * Performs matching of two images, see {@link #matchImages}.
+     * @param parentIdentifier the identifier put into the result as parent
+     * @return the result, or null if the logo is not on the patch
+     */
+    public DetectionResult match(Mat logoMat, Mat logoDescriptors, MatOfKeyPoint logoKeyPoints,
+                                 SerializablePatchIdentifier parentIdentifier, Mat frameRegionMat,
+                                 Mat frameRegionDescriptors, MatOfKeyPoint frameRegionKeyPoints, Rect roi) {
+        try {
+            return verify(logoMat, logoDescriptors, logoKeyPoints, parentIdentifier, frameRegionMat,
+                    frameRegionDescriptors, frameRegionKeyPoints, roi);
+        } finally {
+            arena.release();
+        }
+    }
+
+    private DetectionResult verify(Mat logoMat, Mat logoDescriptors, MatOfKeyPoint logoKeyPoints,
+                                   SerializablePatchIdentifier parentIdentifier, Mat frameRegionMat,
+                                   Mat frameRegionDescriptors, MatOfKeyPoint frameRegionKeyPoints, Rect roi) {
 
         // Find matches from the logo to the patch and vice versa
-        matches12 = new ArrayList<MatOfDMatch>();
-        matches21 = new ArrayList<MatOfDMatch>();
+        List<MatOfDMatch> knn12 = new ArrayList<MatOfDMatch>();
+        List<MatOfDMatch> knn21 = new ArrayList<MatOfDMatch>();
         // For each match we need also second best match to perform Ratio Test
-        matcher.knnMatch(logoDescriptors, frameRegionDescriptors, matches12, 2); // Find only two best matches.
-        matcher.knnMatch(frameRegionDescriptors, logoDescriptors, matches21, 2); // Find only two best matches.
+        matcher.knnMatch(logoDescriptors, frameRegionDescriptors, knn12, 2); // Find only two best matches.
+        matcher.knnMatch(frameRegionDescriptors, logoDescriptors, knn21, 2); // Find only two best matches.
+        arena.addAll(knn12);
+        arena.addAll(knn21);
+
+        // Copy the matches out of native memory once
+        MatchArrays matches12 = MatchArrays.fromKnnMatches(knn12);
+        MatchArrays matches21 = MatchArrays.fromKnnMatches(knn21);
 
-        //TODO
         // Performing ratio test
         matches12 = refineMatches(matches12);
         matches21 = refineMatches(matches21);
 
-        // rolling back the vector
-        //matches12.position(0);
-        //matches21.position(0);
-
         // performing symmetry test
-        matches = symmetryTest(matches12, matches21); // updates matches using information from matches12 and matches 21
+        MatchArrays matches = symmetryTest(matches12, matches21); // updates matches using information from matches12 and matches 21
 
         // Return false if too small number of matches defined in params
-        int size = matches.size();
+        candidates.incrementAndGet();
+        int size = matches.size;
         if (size < params.getMatchingParameters().getMinimalNumberOfMatches()) {
-            return false;
+            fewMatches.incrementAndGet();
+            return null;
         }
 
+        // Copy the coordinates of key points once
+        float[] logoPoints = MatchArrays.coordinates(logoKeyPoints);
+        float[] frameRegionPoints = MatchArrays.coordinates(frameRegionKeyPoints);
+
         // Getting homography and checking that it's found
-        Mat homography = getHomography(logoKeyPoints, frameRegionKeyPoints);
+        Mat homography = getHomography(matches, logoPoints, frameRegionPoints);
         if (homography == null || homography.empty()) {
             if (Debuger.logoDetectionDebugOutput)
                 System.out.println("No homography found");
-            return false;
+            return null;
         }
 
         // Choose rectangle where 90% (this number defined in params.getMatchingParameters().getBoxAccuracy())
         // of all matches lie in a logo and extract this rectangle as a new logo template
-        ArrayList<Point> kp = new ArrayList<Point>();
-        for (int i = 0 ; i < matches.size(); i ++) {
-            Point location = logoKeyPoints.toList().get(matches.get(i).toList().get(0).queryIdx).pt;
-            kp.add(location);
-            //logoKeyPoints.position(0);
+        double[] kpX = new double[size], kpY = new double[size];
+        for (int i = 0 ; i < size; i ++) {
+            kpX[i] = logoPoints[2 * matches.queryIdx[i]];
+            kpY[i] = logoPoints[2 * matches.queryIdx[i] + 1];
         }
-        double[][] corners = new double[4][];
         // Find this desired rectanlge
-        Rect best = Util.bestBoundingBoxFast(kp, params.getMatchingParameters().getBoxAccuracy());
+        Rect best = Util.bestBoundingBoxFast(kpX, kpY, size, params.getMatchingParameters().getBoxAccuracy());
         double xMin = best.x, yMin = best.y, xMax = best.x + best.width, yMax = best.y + best.height;
 
 
@@ -244,30 +365,24 @@ public class RobustMatcher {
         xMax = Math.min(xMax + dx, logoMat.cols() - 1);
         yMin = Math.max(yMin - dy, 0.0);
         yMax = Math.min(yMax + dy, logoMat.rows() - 1);
-        corners[0] = new double[]{xMin, yMin};
-        corners[1] = new double[]{xMax, yMin};
-        corners[2] = new double[]{xMax, yMax};
-        corners[3] = new double[]{xMin, yMax};
 
         // map this rectangle to the image to obtain its coordinates relative to the patch
-        Mat objCornersMat = new Mat(4, 2, CvType.CV_32FC2);
-        Mat sceneCornersMat = new Mat(4, 2, CvType.CV_32FC2);
-        objCornersMat.put(0, 0, corners[0][0]);
-        objCornersMat.put(0, 1, corners[0][1]);
-        objCornersMat.put(1, 0, corners[1][0]);
-        objCornersMat.put(1, 1, corners[1][1]);
-        objCornersMat.put(2, 0, corners[2][0]);
-        objCornersMat.put(2, 1, corners[2][1]);
-        objCornersMat.put(3, 0, corners[3][0]);
-        objCornersMat.put(3, 1, corners[3][1]);
+        Mat objCornersMat = arena.add(new Mat(4, 1, CvType.CV_32FC2));
+        Mat sceneCornersMat = arena.add(new Mat(4, 1, CvType.CV_32FC2));
+        objCornersMat.put(0, 0, new float[]{
+                (float) xMin, (float) yMin,
+                (float) xMax, (float) yMin,
+                (float) xMax, (float) yMax,
+                (float) xMin, (float) yMax});
         Core.perspectiveTransform(objCornersMat, sceneCornersMat, homography);
+        float[] sceneCorners = new float[8];
+        sceneCornersMat.get(0, 0, sceneCorners);
         double[][] scene_corners = new double[4][2];
         for(int i = 0; i < 4; i++){
             for(int j = 0; j < 2; j++){
-                scene_corners[i][j] = sceneCornersMat.get(i, j)[0];
+                scene_corners[i][j] = sceneCorners[2 * i + j];
             }
         }
-        homography.release();
 
         // Checking obtained corners for 'regularity'
         if (Util.checkQuadrilateral(scene_corners, roi)) {
@@ -287,27 +402,112 @@ public class RobustMatcher {
             int ymn = Math.max(0, (int)yMin), ymx =  Math.min(frameRegionMat.rows(), (int)yMax);
 
             // Prepare this rectangle as a result of matching
-            foundRect = new SerializableRect(xmn + roi.x, ymn + roi.y, xmx - xmn, ymx - ymn);
+            SerializableRect foundRect = new SerializableRect(xmn + roi.x, ymn + roi.y, xmx - xmn, ymx - ymn);
 
             // Prepare new logo template to push update to other bolts
             Rect newRoi = new Rect(xmn, ymn, xmx - xmn, ymx - ymn);
-            Mat _new = new Mat(frameRegionMat, newRoi);
-            extractedTemplate = new SerializableMat(_new);
-
-            // Deallocating
-            /*
-            for (int i = 0 ; i < matches.size() ; i++)
-                matches.get(i).get(0).deallocate();
-            matches.deallocate();
-            */
-            return true;
+            Mat _new = arena.add(new Mat(frameRegionMat, newRoi));
+            SerializableMat extractedTemplate = extractTemplate(_new, newRoi, frameRegionDescriptors,
+                    frameRegionKeyPoints);
+
+            return new DetectionResult(foundRect, extractedTemplate, parentIdentifier, size, inliers);
+        }
+        badShape.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Prepares the template extracted from the patch, raw or compressed as set by
+     * {@link Parameters.MatchingParameters#getTemplateFormat()}. If
+     * {@link Parameters.MatchingParameters#isTemplateFeatures()} is set, the key points of the patch inside the
+     * template, moved to its coordinates, and their descriptors are attached to it (PNG encoded if no format is
+     * set), so that detectors adding it do not run SIFT again. These features were computed on the whole patch, so
+     * near the border of the template they may differ slightly from the ones SIFT would find on the template alone.
+     */
+    private SerializableMat extractTemplate(Mat template, Rect templateRoi, Mat frameRegionDescriptors,
+                                            MatOfKeyPoint frameRegionKeyPoints) {
+        Parameters.MatchingParameters matching = params.getMatchingParameters();
+        if (matching.getTemplateFormat() == null && !matching.isTemplateFeatures())
+            return new SerializableMat(template);
+
+        String format = matching.getTemplateFormat() != null ? matching.getTemplateFormat() : ".png";
+        EncodedSerializableMat encoded = new EncodedSerializableMat(template, format, matching.getTemplateQuality());
+        if (!matching.isTemplateFeatures())
+            return encoded;
+
+        int n = frameRegionKeyPoints.rows(), cols = frameRegionDescriptors.cols();
+        float[] keyPoints = new float[n * MatchArrays.KEYPOINT_FIELDS];
+        float[] descriptors = new float[n * cols];
+        if (n > 0) {
+            frameRegionKeyPoints.get(0, 0, keyPoints);
+            frameRegionDescriptors.get(0, 0, descriptors);
         }
-        /*
-        for (int i = 0 ; i < matches.size() ; i++)
-            matches.get(i).get(0).deallocate();
-        matches.deallocate();
-        */
-        return false;
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            float x = keyPoints[i * MatchArrays.KEYPOINT_FIELDS], y = keyPoints[i * MatchArrays.KEYPOINT_FIELDS + 1];
+            if (x < templateRoi.x || y < templateRoi.y
+                    || x >= templateRoi.x + templateRoi.width || y >= templateRoi.y + templateRoi.height)
+                continue;
+            System.arraycopy(keyPoints, i * MatchArrays.KEYPOINT_FIELDS, keyPoints,
+                    kept * MatchArrays.KEYPOINT_FIELDS, MatchArrays.KEYPOINT_FIELDS);
+            keyPoints[kept * MatchArrays.KEYPOINT_FIELDS] -= templateRoi.x;
+            keyPoints[kept * MatchArrays.KEYPOINT_FIELDS + 1] -= templateRoi.y;
+            System.arraycopy(descriptors, i * cols, descriptors, kept * cols, cols);
+            kept++;
+        }
+        return encoded.withFeatures(Arrays.copyOf(keyPoints, kept * MatchArrays.KEYPOINT_FIELDS),
+                Arrays.copyOf(descriptors, kept * cols), cols);
+    }
+
+    /**
+     * @return the number of candidates, pairs of a template and a patch, verified by all matchers
+     */
+    public static long getCandidates() {
+        return candidates.get();
+    }
+
+    /**
+     * @return the number of candidates with fewer symmetric matches than the minimal number of matches
+     */
+    public static long getFewMatches() {
+        return fewMatches.get();
+    }
+
+    /**
+     * @return the number of candidates for which the first RANSAC iteration found no homography
+     */
+    public static long getNoHomography() {
+        return noHomography.get();
+    }
+
+    /**
+     * @return the number of candidates rejected by {@link Parameters.RANSACParameters#getMinInlierRatio()}
+     */
+    public static long getLowInlierRatio() {
+        return lowInlierRatio.get();
+    }
+
+    /**
+     * @return the number of candidates whose projected corners did not form a regular quadrilateral
+     */
+    public static long getBadShape() {
+        return badShape.get();
+    }
+
+    /**
+     * @return the number of candidates whose second RANSAC iteration was skipped
+     */
+    public static long getRefinementSkipped() {
+        return refinementSkipped.get();
+    }
+
+    /**
+     * @return the counters of the verification, for the logs
+     */
+    public static String getVerificationStats() {
+        return "candidates: " + candidates.get() + ", fewMatches: " + fewMatches.get()
+                + ", noHomography: " + noHomography.get() + ", lowInlierRatio: " + lowInlierRatio.get()
+                + ", badShape: " + badShape.get() + ", refinementSkipped: " + refinementSkipped.get();
     }
 
     /**
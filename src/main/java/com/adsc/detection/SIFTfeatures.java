@@ -30,10 +30,31 @@ public class SIFTfeatures {
         sift.detectAndCompute(rr, new Mat(), keyPoints, testDescriptors);
     }
 
+    /* Creates features of the patch of the whole frame from key points and descriptors computed elsewhere,
+       see FrameFeatures. Key point coordinates must be relative to the patch. */
+    SIFTfeatures(Mat frame, Rect rec, MatOfKeyPoint keyPoints, Mat testDescriptors) {
+        this.keyPoints = keyPoints;
+        this.testDescriptors = testDescriptors;
+        roi = new Rect(rec.x, rec.y, rec.width, rec.height);
+
+        Mat r = new Mat(frame, roi);
+        rr = r.clone(); // make r continuous
+        r.release();
+    }
+
+    /**
+     * Adds the Mats of the features to the arena, which releases them with the others of its scope.
+     */
+    void addTo(MatArena arena) {
+        arena.add(rr);
+        arena.add(keyPoints);
+        arena.add(testDescriptors);
+    }
+
     public void release(){
         // Manually force JVM to release this.
         rr.release();
-        //keyPoints..deallocate();
+        keyPoints.release();
         testDescriptors.release();
     }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * The sample rate and the patch grid of a single stream runner, with the {@link ScanPlanner} and
+ * {@link PatchChangeDetector} that keep state for each patch of the grid.
+ * <p>If {@link Parameters.AdaptiveParameters#isEnabled()} is set, an {@link AdaptiveController} changes the sample
+ * rate, the grid and the number of dynamic templates while the video is processed. A new grid comes with a new
+ * planner and change detector, as the old ones keep state per patch of the previous grid.</p>
+ */
+class ScanLayout {
+
+    /** Size of the patches, as a fraction of the frame, and move between them, as a fraction of their size */
+    private static final double PATCH_FRACTION = .25, PATCH_STRIDE = .5;
+
+    private final Parameters parameters;
+    private final int width, height, logoCount;
+    private final IntConsumer templateLimit;
+    private final AdaptiveController controller;
+    private int sampleRate;
+    private double patchFraction, patchStride;
+    private List<SerializablePatchIdentifier> patchIdentifierList;
+    private ScanPlanner planner;
+    private PatchChangeDetector changes;
+
+    /**
+     * Builds the grid, within the bounds of the controller from the start if there is one.
+     *
+     * @param width           The width of the frames
+     * @param height          The height of the frames
+     * @param sampleRate      Logos are detected on one frame out of sampleRate, unless adapted
+     * @param maxAdditionTemp The number of dynamic templates kept per logo, unless adapted
+     * @param logoCount       The number of detectors
+     * @param templateLimit   Sets the number of dynamic templates kept on every detector
+     */
+    ScanLayout(Parameters parameters, int width, int height, int sampleRate, int maxAdditionTemp, int logoCount,
+               IntConsumer templateLimit) {
+        this.parameters = parameters;
+        this.width = width;
+        this.height = height;
+        this.logoCount = logoCount;
+        this.templateLimit = templateLimit;
+        controller = parameters.getAdaptiveParameters().isEnabled()
+                ? new AdaptiveController(parameters.getAdaptiveParameters(), sampleRate, PATCH_FRACTION, PATCH_STRIDE,
+                maxAdditionTemp) : null;
+        if (controller != null) {
+            this.sampleRate = controller.getSampleRate();
+            patchFraction = controller.getPatchFraction();
+            patchStride = controller.getPatchStride();
+            templateLimit.accept(controller.getAddedTemplates());
+        } else {
+            this.sampleRate = sampleRate;
+            patchFraction = PATCH_FRACTION;
+            patchStride = PATCH_STRIDE;
+        }
+        buildGrid();
+    }
+
+    /**
+     * Counts the time spent on a frame, and applies the changes of the controller if there is one.
+     *
+     * @param frameId    The number of the frame, for the log
+     * @param frameSpend The time spent on the frame, in milliseconds
+     */
+    void update(int frameId, long frameSpend) {
+        if (controller == null || !controller.update(frameId, frameSpend))
+            return;
+        sampleRate = controller.getSampleRate();
+        templateLimit.accept(controller.getAddedTemplates());
+        if (controller.getPatchFraction() != patchFraction || controller.getPatchStride() != patchStride) {
+            patchFraction = controller.getPatchFraction();
+            patchStride = controller.getPatchStride();
+            buildGrid();
+            System.out.println("Adaptive: total patch: " + patchIdentifierList.size());
+        }
+    }
+
+    /**
+     * @return the number of frames out of which logos are detected on one
+     */
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the patches, column by column
+     */
+    List<SerializablePatchIdentifier> getPatchIdentifierList() {
+        return patchIdentifierList;
+    }
+
+    /**
+     * @return the planner of the patches checked for each logo, null to check the whole grid
+     */
+    ScanPlanner getPlanner() {
+        return planner;
+    }
+
+    /**
+     * @return the detector of the patches whose results are reused, null to check them again on every detection
+     * frame
+     */
+    PatchChangeDetector getChanges() {
+        return changes;
+    }
+
+    private void buildGrid() {
+        patchIdentifierList = logoDetectorRunner.buildPatchGrid(width, height, patchFraction, patchFraction,
+                patchStride, patchStride);
+        // Checks only the neighbourhood of the previous detections when possible
+        planner = parameters.getScanParameters().isRoiPrior()
+                ? new ScanPlanner(parameters.getScanParameters(), patchIdentifierList, logoCount) : null;
+        // Reuses the results of the patches that did not change
+        changes = parameters.getChangeParameters().isEnabled()
+                ? new PatchChangeDetector(parameters.getChangeParameters(), patchIdentifierList, logoCount) : null;
+    }
+}
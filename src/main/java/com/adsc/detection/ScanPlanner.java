@@ -0,0 +1,183 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chooses which patches of the grid are checked for which logo on a detection frame.
+ * <p>Logos in broadcast video tend to stay where they were. So when a logo was found on the previous detection
+ * frame, {@link #firstPass(int)} only selects, for this logo, the patches intersecting its previous rectangles
+ * expanded by {@link Parameters.ScanParameters#getSearchMargin()}. If the logo is not found there,
+ * {@link #fallback(List)} selects the rest of the grid for it on the same frame. Logos without a previous
+ * detection, and all logos every {@link Parameters.ScanParameters#getFullSweepInterval()} frames, are checked on
+ * the whole grid in the first pass.</p>
+ * <p>A plan is an array [logo][patch] where true means that the patch has to be checked for the logo.</p>
+ */
+public class ScanPlanner {
+
+    private final Parameters.ScanParameters params;
+    private final List<SerializablePatchIdentifier> patchIdentifierList;
+    private final int logoCount;
+
+    /** For each logo, the rectangles of its last detection, empty if it was not found */
+    private List<List<SerializableRect>> previous;
+    private int lastFullSweep;
+    /** Patches checked for each logo on the current frame */
+    private boolean[][] scanned;
+    private int lastSkipped;
+    private long totalSkipped, totalChecks;
+
+    /**
+     * @param params              The parameters of the scan
+     * @param patchIdentifierList The grid of patches
+     * @param logoCount           The number of logos
+     */
+    public ScanPlanner(Parameters.ScanParameters params, List<SerializablePatchIdentifier> patchIdentifierList,
+                       int logoCount) {
+        this.params = params;
+        this.patchIdentifierList = patchIdentifierList;
+        this.logoCount = logoCount;
+        previous = new ArrayList<>();
+        for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+            previous.add(new ArrayList<>());
+        }
+        lastFullSweep = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Plans the first pass of a detection frame.
+     *
+     * @param frameId The id of the frame
+     * @return the patches to check for each logo
+     */
+    public boolean[][] firstPass(int frameId) {
+        boolean fullSweep = lastFullSweep == Integer.MIN_VALUE
+                || frameId - lastFullSweep >= params.getFullSweepInterval();
+        if (fullSweep)
+            lastFullSweep = frameId;
+
+        scanned = new boolean[logoCount][patchIdentifierList.size()];
+        for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+            List<SerializableRect> prior = previous.get(logoIndex);
+            if (fullSweep || prior.isEmpty()) {
+                Arrays.fill(scanned[logoIndex], true);
+                continue;
+            }
+            for (int patchIndex = 0; patchIndex < patchIdentifierList.size(); patchIndex++) {
+                SerializableRect patch = patchIdentifierList.get(patchIndex).roi;
+                for (SerializableRect rect : prior) {
+                    if (intersectsExpanded(patch, rect)) {
+                        scanned[logoIndex][patchIndex] = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return copy(scanned);
+    }
+
+    /**
+     * Plans the second pass of a detection frame: the patches not checked yet, for the logos the first pass did
+     * not find.
+     *
+     * @param found For each logo, the rectangles found by the first pass
+     * @return the patches to check for each logo, or null if there is nothing left to check
+     */
+    public boolean[][] fallback(List<List<SerializableRect>> found) {
+        boolean[][] plan = new boolean[logoCount][patchIdentifierList.size()];
+        boolean any = false;
+        for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+            if (found.get(logoIndex) != null && !found.get(logoIndex).isEmpty())
+                continue;
+            for (int patchIndex = 0; patchIndex < patchIdentifierList.size(); patchIndex++) {
+                if (!scanned[logoIndex][patchIndex]) {
+                    plan[logoIndex][patchIndex] = true;
+                    scanned[logoIndex][patchIndex] = true;
+                    any = true;
+                }
+            }
+        }
+        return any ? plan : null;
+    }
+
+    /**
+     * Remembers the detections of the frame for the next one and counts the skipped patches.
+     *
+     * @param found For each logo, all rectangles found on the frame
+     */
+    public void record(List<List<SerializableRect>> found) {
+        int checks = 0;
+        for (boolean[] logoScanned : scanned) {
+            for (boolean s : logoScanned) {
+                if (s)
+                    checks++;
+            }
+        }
+        lastSkipped = logoCount * patchIdentifierList.size() - checks;
+        totalSkipped += lastSkipped;
+        totalChecks += logoCount * patchIdentifierList.size();
+
+        previous = new ArrayList<>();
+        for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+            previous.add(found.get(logoIndex) != null ? new ArrayList<>(found.get(logoIndex)) : new ArrayList<>());
+        }
+    }
+
+    /**
+     * @return the number of (logo, patch) pairs not checked on the last recorded frame
+     */
+    public int getLastSkipped() {
+        return lastSkipped;
+    }
+
+    /**
+     * @return the number of (logo, patch) pairs not checked on all recorded frames
+     */
+    public long getTotalSkipped() {
+        return totalSkipped;
+    }
+
+    /**
+     * @return the number of (logo, patch) pairs of the full grid on all recorded frames
+     */
+    public long getTotalChecks() {
+        return totalChecks;
+    }
+
+    /**
+     * @return true if the patch is to be checked for the logo, a null plan meaning the whole grid
+     */
+    public static boolean includes(boolean[][] plan, int logoIndex, int patchIndex) {
+        return plan == null || plan[logoIndex][patchIndex];
+    }
+
+    /**
+     * @return true if the patch is to be checked for some logo, a null plan meaning the whole grid
+     */
+    public static boolean includesAny(boolean[][] plan, int patchIndex) {
+        if (plan == null)
+            return true;
+        for (boolean[] logoPlan : plan) {
+            if (logoPlan[patchIndex])
+                return true;
+        }
+        return false;
+    }
+
+    private boolean intersectsExpanded(SerializableRect patch, SerializableRect rect) {
+        double mx = rect.width * params.getSearchMargin(), my = rect.height * params.getSearchMargin();
+        return patch.x < rect.x + rect.width + mx && rect.x - mx < patch.x + patch.width
+                && patch.y < rect.y + rect.height + my && rect.y - my < patch.y + patch.height;
+    }
+
+    private static boolean[][] copy(boolean[][] plan) {
+        boolean[][] result = new boolean[plan.length][];
+        for (int i = 0; i < plan.length; i++) {
+            result[i] = plan[i].clone();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,169 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Splits a range of frames of one video into consecutive shards and detects logos on each of them in its own
+ * {@link ShardWorker} process, then merges the results in frame order.
+ * <p>Templates are learned in frame order, which is what keeps a serial run from being split. Here every shard
+ * starts from the same templates: the original ones, plus, if a warm-up is asked for, the templates learned on the
+ * first frames of the range by a short serial pass in this process. The results of the warm-up are kept and the
+ * shards split the frames after it, so no frame is processed twice. Each shard then learns on its own. The workers
+ * run on the class path and native library path of this JVM, so the wall time of a long video goes down with the
+ * number of shards as long as there are cores for them.</p>
+ * <p>The parameters, the template bundle, the result file and the log of every shard are kept in a work folder.</p>
+ * <p>{@link Parameters.AdaptiveParameters} are not supported, see {@link ShardWorker}.</p>
+ */
+public class ShardCoordinator {
+
+    private final Parameters params;
+    private final int shards;
+    private final int maxAdditionTemp;
+    private final int sampleRate;
+
+    /**
+     * @param params          The parameters for logo detection and matching, given to every worker
+     * @param shards          The number of worker processes
+     * @param maxAdditionTemp The number of dynamic templates kept per logo
+     * @param sampleRate      Logos are detected on one frame out of sampleRate
+     * @throws IllegalArgumentException if {@link Parameters.AdaptiveParameters#isEnabled()} is set
+     */
+    public ShardCoordinator(Parameters params, int shards, int maxAdditionTemp, int sampleRate) {
+        ShardWorker.checkParameters(params);
+        this.params = params;
+        this.shards = Math.max(1, shards);
+        this.maxAdditionTemp = maxAdditionTemp;
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * Detects logos on the frames of the video, from startFrame to endFrame as in
+     * {@link logoDetectorRunner#LogoDetectionByInputVideo}.
+     *
+     * @param templates    The templates every shard starts with
+     * @param warmUpFrames The number of first frames processed by the serial pass learning templates before the
+     *                     shards start, 0 for none
+     * @param workFolder   The folder of the files exchanged with the workers, null for a new temporary folder
+     * @return for each processed frame, by its 0-based position in the video, the rectangles found for each logo
+     * @throws IOException           if the files of the workers cannot be written or read
+     * @throws IllegalStateException if a worker failed
+     */
+    public SortedMap<Integer, List<List<SerializableRect>>> run(String sourceFile, int startFrame, int endFrame,
+                                                                TemplateBundle templates, int warmUpFrames,
+                                                                String workFolder) throws IOException {
+        File folder = workFolder != null ? new File(workFolder)
+                : Files.createTempDirectory("logo-shards").toFile();
+        if (!folder.isDirectory() && !folder.mkdirs())
+            throw new IOException("Could not create " + folder);
+
+        // Same frames as the serial runner
+        int origin = Math.max(startFrame - 1, 0);
+        int frameCount = endFrame - startFrame + 1;
+        int warmUpCount = Math.max(0, Math.min(warmUpFrames, frameCount));
+
+        List<File> resultFiles = new ArrayList<>();
+        if (warmUpCount > 0) {
+            long warmUpStart = System.currentTimeMillis();
+            File warmUpFile = new File(folder, "warmup.result");
+            List<logoDetectorBeta> detectors;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(warmUpFile)))) {
+                detectors = ShardWorker.detect(params, templates, sourceFile, origin, origin, warmUpCount, sampleRate,
+                        maxAdditionTemp, out);
+            }
+            resultFiles.add(warmUpFile);
+            List<LogoTemplate> originals = new ArrayList<>();
+            List<List<LogoTemplate>> added = new ArrayList<>();
+            for (logoDetectorBeta detector : detectors) {
+                originals.add(detector.getOriginalTemplate());
+                added.add(detector.getAddedTemplates());
+            }
+            templates = new TemplateBundle(originals, added);
+            System.out.println("Warm-up of " + warmUpCount + " frames used: " + (System.currentTimeMillis() - warmUpStart));
+        }
+
+        File parametersFile = new File(folder, "parameters.ser");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(parametersFile)))) {
+            out.writeObject(params);
+        }
+        File bundleFile = new File(folder, "templates.bundle");
+        templates.save(bundleFile.getPath());
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        List<File> logFiles = new ArrayList<>();
+        // The shards split the frames after the warm-up
+        int shardOrigin = origin + warmUpCount;
+        int shardFrames = frameCount - warmUpCount;
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                // Consecutive ranges, the first ones one frame longer if the frames do not divide evenly
+                int first = shardOrigin + shard * (shardFrames / shards) + Math.min(shard, shardFrames % shards);
+                int count = shardFrames / shards + (shard < shardFrames % shards ? 1 : 0);
+                if (count == 0)
+                    break;
+                File resultFile = new File(folder, String.format("shard%03d.result", shard));
+                File logFile = new File(folder, String.format("shard%03d.log", shard));
+                ProcessBuilder builder = new ProcessBuilder(java,
+                        "-cp", System.getProperty("java.class.path"),
+                        "-Djava.library.path=" + System.getProperty("java.library.path"),
+                        ShardWorker.class.getName(),
+                        parametersFile.getPath(), bundleFile.getPath(), sourceFile, String.valueOf(origin),
+                        String.valueOf(first), String.valueOf(count), String.valueOf(sampleRate),
+                        String.valueOf(maxAdditionTemp), resultFile.getPath());
+                builder.redirectErrorStream(true);
+                builder.redirectOutput(logFile);
+                processes.add(builder.start());
+                resultFiles.add(resultFile);
+                logFiles.add(logFile);
+                System.out.println("Shard " + shard + ": frames " + first + " to " + (first + count - 1));
+            }
+
+            for (int shard = 0; shard < processes.size(); shard++) {
+                int exitCode = processes.get(shard).waitFor();
+                if (exitCode != 0)
+                    throw new IllegalStateException("Shard " + shard + " failed with exit code " + exitCode
+                            + ", see " + logFiles.get(shard));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the shards", e);
+        } finally {
+            // Do not leave workers behind if one failed or this thread was interrupted
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+
+        SortedMap<Integer, List<List<SerializableRect>>> results = new TreeMap<>();
+        for (File resultFile : resultFiles) {
+            ShardWorker.readResults(resultFile.getPath(), results);
+        }
+        return results;
+    }
+
+    /**
+     * Writes merged results in the format of the result files of the workers.
+     */
+    public static void writeResults(String fileName, SortedMap<Integer, List<List<SerializableRect>>> results)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            for (Map.Entry<Integer, List<List<SerializableRect>>> frame : results.entrySet()) {
+                ShardWorker.writeFrame(out, frame.getKey(), frame.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.xfeatures2d.SIFT;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Detects logos on one range of frames of a video, in a worker process started by {@link ShardCoordinator}.
+ * <p>Usage: {@code ShardWorker <parameters file> <template bundle> <video> <origin> <first frame> <frame count>
+ * <sample rate> <max added templates> <result file>}. The parameters file holds a serialized {@link Parameters}.
+ * Frames are numbered by their 0-based position in the video, and logos are detected on the frames whose distance
+ * to origin is a multiple of the sample rate, so that the shards of a video sample the same frames as one serial
+ * run from origin would. The first frame of the range is always detected, as there are no earlier results to keep.
+ * </p>
+ * <p>{@link Parameters.AdaptiveParameters} are not supported: changing the sample rate on the fly would make the
+ * shards sample other frames than one serial run, and the grid differ from one shard to the next.</p>
+ * <p>The result file holds, for each processed frame in order, its number, the number of logos and for each logo
+ * the number of rectangles found followed by their x, y, width and height, all as big-endian ints.</p>
+ */
+public class ShardWorker {
+
+    /** Size the frames are resized to, as in the single stream runners */
+    private static final int WIDTH = 640, HEIGHT = 480;
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 9) {
+            System.err.println("Usage: ShardWorker <parameters file> <template bundle> <video> <origin> "
+                    + "<first frame> <frame count> <sample rate> <max added templates> <result file>");
+            System.exit(2);
+        }
+        try {
+            Parameters parameters;
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+                parameters = (Parameters) in.readObject();
+            }
+            TemplateBundle templates = TemplateBundle.load(args[1]);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[8])))) {
+                detect(parameters, templates, args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                        Integer.parseInt(args[5]), Integer.parseInt(args[6]), Integer.parseInt(args[7]), out);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Detects logos on a range of frames, as {@link logoDetectorRunner#LogoDetectionByInputVideo} does.
+     *
+     * @param templates       The templates the detectors start with
+     * @param origin          The frame from which the sampled frames are counted
+     * @param firstFrame      The 0-based position of the first frame of the range
+     * @param frameCount      The number of frames of the range
+     * @param maxAdditionTemp The number of dynamic templates kept per logo
+     * @param out             Receives the results of every frame, may be null
+     * @return the detectors, with the templates they learned
+     * @throws IOException              if the results cannot be written
+     * @throws IllegalArgumentException if {@link Parameters.AdaptiveParameters#isEnabled()} is set
+     */
+    public static List<logoDetectorBeta> detect(Parameters parameters, TemplateBundle templates, String sourceFile,
+                                                int origin, int firstFrame, int frameCount, int sampleRate,
+                                                int maxAdditionTemp, DataOutputStream out) throws IOException {
+        checkParameters(parameters);
+        VideoCapture capture = new VideoCapture(sourceFile);
+
+        // Only given to extract the features of the whole frame
+        SIFT sift = parameters.getSiftParameters().isWholeFrameExtraction()
+                ? logoDetectorRunner.createSift(parameters) : null;
+
+        List<logoDetectorBeta> detectors = new ArrayList<>();
+        for (int logoIndex = 0; logoIndex < templates.getLogoCount(); logoIndex++) {
+            // Each detector has its own SIFT, as a SIFT instance is not safe to use from several threads
+            detectors.add(new logoDetectorBeta(parameters, templates.getOriginal(logoIndex),
+                    templates.getAdded(logoIndex), maxAdditionTemp, logoDetectorRunner.createSift(parameters)));
+        }
+
+        List<SerializablePatchIdentifier> patchIdentifierList =
+                logoDetectorRunner.buildPatchGrid(WIDTH, HEIGHT, .25, .25, .5, .5);
+        RectTracker tracker = parameters.getTrackingParameters().isEnabled()
+                ? new RectTracker(parameters.getTrackingParameters()) : null;
+        ScanPlanner planner = parameters.getScanParameters().isRoiPrior()
+                ? new ScanPlanner(parameters.getScanParameters(), patchIdentifierList, detectors.size()) : null;
+        PatchChangeDetector changes = parameters.getChangeParameters().isEnabled()
+                ? new PatchChangeDetector(parameters.getChangeParameters(), patchIdentifierList, detectors.size()) : null;
+
+        FramePrefetcher prefetcher = new FramePrefetcher(capture, firstFrame, frameCount, new Size(WIDTH, HEIGHT),
+                parameters.getExecutionParameters().getPrefetchFrames());
+        prefetcher.start();
+        try {
+            List<List<SerializableRect>> foundedRectList = new ArrayList<>();
+            for (int i = 0; i < frameCount; i++) {
+                Mat mat = prefetcher.take();
+                if (mat == null) {
+                    break;
+                }
+                int frameId = firstFrame + i;
+
+                boolean detect = i == 0 || (frameId - origin) % sampleRate == 0;
+                if (!detect && tracker != null) {
+                    foundedRectList = tracker.track(mat);
+                    detect = tracker.isLost();
+                }
+                if (detect) {
+                    foundedRectList = logoDetectorRunner.LogoDetectionForOneFrame(frameId, mat, detectors,
+                            patchIdentifierList, sift, planner, changes);
+                    if (tracker != null) {
+                        tracker.reset(mat, foundedRectList);
+                    }
+                }
+                prefetcher.recycle(mat);
+
+                if (out != null) {
+                    writeFrame(out, frameId, foundedRectList);
+                }
+            }
+        } finally {
+            prefetcher.close();
+            capture.release();
+        }
+        return detectors;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the parameters ask for something the shards do not support
+     */
+    static void checkParameters(Parameters parameters) {
+        if (parameters.getAdaptiveParameters().isEnabled())
+            throw new IllegalArgumentException("Adaptive parameters are not supported on shards");
+    }
+
+    /**
+     * Writes the results of one frame in the format of the result file.
+     */
+    static void writeFrame(DataOutputStream out, int frameId, List<List<SerializableRect>> foundedRectList)
+            throws IOException {
+        out.writeInt(frameId);
+        out.writeInt(foundedRectList.size());
+        for (List<SerializableRect> rects : foundedRectList) {
+            out.writeInt(rects.size());
+            for (SerializableRect rect : rects) {
+                out.writeInt(rect.x);
+                out.writeInt(rect.y);
+                out.writeInt(rect.width);
+                out.writeInt(rect.height);
+            }
+        }
+    }
+
+    /**
+     * Reads a result file into results, by frame number.
+     *
+     * @param fileName The result file
+     * @param results  Receives the results of every frame of the file
+     * @throws IOException if the file cannot be read or is truncated
+     */
+    static void readResults(String fileName, SortedMap<Integer, List<List<SerializableRect>>> results)
+            throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+            while (true) {
+                int frameId;
+                try {
+                    frameId = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                int logoCount = in.readInt();
+                List<List<SerializableRect>> foundedRectList = new ArrayList<>(logoCount);
+                for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+                    int n = in.readInt();
+                    List<SerializableRect> rects = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        rects.add(new SerializableRect(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+                    }
+                    foundedRectList.add(rects);
+                }
+                results.put(frameId, foundedRectList);
+            }
+        }
+    }
+}
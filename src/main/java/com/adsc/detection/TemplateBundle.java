@@ -0,0 +1,227 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import com.adsc.detection.utils.BinaryCodec;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.xfeatures2d.SIFT;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The logo templates of all detectors, with their features, so that detectors can start without reading the
+ * template images and running SIFT on them, and keep the templates learned by a previous run.
+ * <p>For each logo, the bundle holds the original template and the dynamically added ones. A bundle file starts
+ * with a little-endian header, {@link #MAGIC}, {@link #VERSION} and the number of logos. Then, for each logo, comes
+ * the number of its templates, the original one first, and for each template its priority, its identifier, its
+ * image, its key points and its descriptors, written by {@link BinaryCodec}. The file is read through a
+ * {@link MappedByteBuffer}, which saves reading it into a heap buffer first. As the mapped buffer is direct and the
+ * OpenCV Java API only fills a Mat from an array, every Mat is still copied twice, from the page cache into a
+ * temporary array and from there into the Mat.</p>
+ * <p>The templates of a bundle are not given to detectors directly: {@link logoDetectorBeta} and
+ * {@link logoDetectorGamma} copy them, sharing the Mats, so each detector keeps its own priorities.</p>
+ */
+public class TemplateBundle {
+
+    /** First int of a bundle file, "LGTB" */
+    public static final int MAGIC = 0x4254474C;
+    /** Version of the format */
+    public static final int VERSION = 1;
+
+    private final List<LogoTemplate> originals;
+    private final List<List<LogoTemplate>> added;
+
+    /**
+     * @param originals The original template of each logo
+     * @param added     For each logo, the dynamically added templates, usually by decreasing priority
+     */
+    public TemplateBundle(List<LogoTemplate> originals, List<List<LogoTemplate>> added) {
+        if (originals.size() != added.size())
+            throw new IllegalArgumentException("Got " + originals.size() + " original templates for "
+                    + added.size() + " logos");
+        this.originals = new ArrayList<>(originals);
+        this.added = new ArrayList<>();
+        for (List<LogoTemplate> templates : added) {
+            this.added.add(Collections.unmodifiableList(new ArrayList<>(templates)));
+        }
+    }
+
+    /**
+     * Reads the template images and extracts their features, the way the detectors do without a bundle.
+     *
+     * @param templateFiles The image of the original template of each logo
+     * @param sift          The SIFT used to extract the features
+     * @return the bundle of the original templates, without added ones
+     */
+    public static TemplateBundle extract(List<String> templateFiles, SIFT sift) {
+        List<LogoTemplate> originals = new ArrayList<>();
+        List<List<LogoTemplate>> added = new ArrayList<>();
+        for (int logoIndex = 0; logoIndex < templateFiles.size(); logoIndex++) {
+            Mat image = Imgcodecs.imread(templateFiles.get(logoIndex));
+            if (image.empty())
+                throw new IllegalArgumentException("Could not read template " + templateFiles.get(logoIndex));
+            Mat descriptor = new Mat();
+            MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+            sift.detectAndCompute(image, new Mat(), keyPoints, descriptor);
+            // Original templates have negative ids and null roi.
+            originals.add(new LogoTemplate(image, keyPoints, descriptor,
+                    new SerializablePatchIdentifier(-logoIndex - 1, null)));
+            added.add(Collections.emptyList());
+        }
+        return new TemplateBundle(originals, added);
+    }
+
+    /**
+     * Loads a bundle written by {@link #save(String)}.
+     *
+     * @param fileName The bundle file
+     * @return the bundle
+     * @throws IOException if the file cannot be read or is not a bundle
+     */
+    public static TemplateBundle load(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 3 * 4 || buffer.getInt() != MAGIC)
+                throw new IOException("Not a template bundle: " + fileName);
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported template bundle version " + version + ": " + fileName);
+
+            int logoCount = buffer.getInt();
+            List<LogoTemplate> originals = new ArrayList<>(logoCount);
+            List<List<LogoTemplate>> added = new ArrayList<>(logoCount);
+            for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+                int templateCount = buffer.getInt();
+                if (templateCount < 1)
+                    throw new IOException("No original template for logo " + logoIndex + ": " + fileName);
+                originals.add(readTemplate(buffer));
+                List<LogoTemplate> templates = new ArrayList<>(templateCount - 1);
+                for (int i = 1; i < templateCount; i++) {
+                    templates.add(readTemplate(buffer));
+                }
+                added.add(templates);
+            }
+            return new TemplateBundle(originals, added);
+        } catch (RuntimeException e) {
+            // A truncated file shows up as a buffer underflow, a damaged one as a bad Mat header
+            throw new IOException("Damaged template bundle: " + fileName, e);
+        }
+    }
+
+    /**
+     * Writes the bundle, replacing the file only once it is completely written.
+     *
+     * @param fileName The bundle file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(String fileName) throws IOException {
+        int size = 3 * 4;
+        for (int logoIndex = 0; logoIndex < originals.size(); logoIndex++) {
+            size += 4 + encodedSize(originals.get(logoIndex));
+            for (LogoTemplate template : added.get(logoIndex)) {
+                size += encodedSize(template);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(originals.size());
+        for (int logoIndex = 0; logoIndex < originals.size(); logoIndex++) {
+            buffer.putInt(1 + added.get(logoIndex).size());
+            writeTemplate(buffer, originals.get(logoIndex));
+            for (LogoTemplate template : added.get(logoIndex)) {
+                writeTemplate(buffer, template);
+            }
+        }
+        buffer.flip();
+
+        Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of logos
+     */
+    public int getLogoCount() {
+        return originals.size();
+    }
+
+    /**
+     * @return the original template of the logo
+     */
+    public LogoTemplate getOriginal(int logoIndex) {
+        return originals.get(logoIndex);
+    }
+
+    /**
+     * @return unmodifiable list of the dynamically added templates of the logo
+     */
+    public List<LogoTemplate> getAdded(int logoIndex) {
+        return added.get(logoIndex);
+    }
+
+    /**
+     * Copies the template, sharing its Mats, with the same identifier and priority.
+     */
+    static LogoTemplate copy(LogoTemplate template) {
+        LogoTemplate copy = new LogoTemplate(template.imageMat, template.keyPoints, template.descriptor,
+                template.identifier, template.getPriority());
+        copy.markSharedMats();
+        return copy;
+    }
+
+    /**
+     * Copies the templates, see {@link #copy(LogoTemplate)}.
+     */
+    static List<LogoTemplate> copy(Collection<LogoTemplate> templates) {
+        List<LogoTemplate> copies = new ArrayList<>(templates.size());
+        for (LogoTemplate template : templates) {
+            copies.add(copy(template));
+        }
+        return copies;
+    }
+
+    private static int encodedSize(LogoTemplate template) {
+        return 4 + BinaryCodec.PATCH_IDENTIFIER_SIZE + BinaryCodec.encodedSize(template.imageMat)
+                + BinaryCodec.encodedSize(template.keyPoints) + BinaryCodec.encodedSize(template.descriptor);
+    }
+
+    private static void writeTemplate(ByteBuffer buffer, LogoTemplate template) {
+        buffer.putInt(template.getPriority());
+        BinaryCodec.writePatchIdentifier(buffer, template.identifier);
+        BinaryCodec.writeMat(buffer, template.imageMat);
+        BinaryCodec.writeMat(buffer, template.keyPoints);
+        BinaryCodec.writeMat(buffer, template.descriptor);
+    }
+
+    private static LogoTemplate readTemplate(ByteBuffer buffer) {
+        int priority = buffer.getInt();
+        SerializablePatchIdentifier identifier = BinaryCodec.readPatchIdentifier(buffer);
+        Mat image = BinaryCodec.readMat(buffer);
+        Mat keyPoints = BinaryCodec.readMat(buffer);
+        Mat descriptor = BinaryCodec.readMat(buffer);
+        return new LogoTemplate(image, new MatOfKeyPoint(keyPoints), descriptor, identifier, priority);
+    }
+}
@@ -0,0 +1,131 @@
+package com.adsc.detection;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One descriptor matrix holding the descriptors of all logo templates of all logos, used to pick the templates
+ * worth verifying on a patch.
+ * <p>Without the index every template of every logo is matched against the patch by
+ * {@link RobustMatcher#matchImages}, which runs two brute force matchings each time. Here the descriptors of the
+ * patch are matched once against all templates at once. Every descriptor of the patch votes for the template of
+ * its nearest neighbour (and for the template of the second nearest one, if it is another template of the same
+ * logo, since templates of one logo are mostly crops of each other). Only the templates with enough votes, best
+ * first, are then verified with the full {@link RobustMatcher}.</p>
+ * <p>The index is immutable once built, so any number of threads may query it, each with its own matcher.</p>
+ */
+public class TemplateIndex {
+
+    /** Descriptors of all templates, stacked */
+    private final Mat descriptors;
+    /** For each row of descriptors, the number of its template */
+    private final int[] rowTemplate;
+    /** For each template, the index of its logo */
+    private final int[] templateLogo;
+    /** All templates, in the order of logos and then in the order they were given */
+    private final List<LogoTemplate> templates;
+    private final int logoCount;
+
+    /**
+     * Stacks the descriptors of the templates.
+     *
+     * @param templatesPerLogo for each logo, its templates in the order they should be checked
+     */
+    public TemplateIndex(List<List<LogoTemplate>> templatesPerLogo) {
+        logoCount = templatesPerLogo.size();
+        templates = new ArrayList<>();
+        List<Mat> parts = new ArrayList<>();
+        List<Integer> logos = new ArrayList<>();
+        int rows = 0;
+        for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+            for (LogoTemplate lt : templatesPerLogo.get(logoIndex)) {
+                if (lt.descriptor == null || lt.descriptor.empty())
+                    continue;
+                templates.add(lt);
+                logos.add(logoIndex);
+                parts.add(lt.descriptor);
+                rows += lt.descriptor.rows();
+            }
+        }
+
+        templateLogo = new int[templates.size()];
+        rowTemplate = new int[rows];
+        for (int t = 0, row = 0; t < templates.size(); t++) {
+            templateLogo[t] = logos.get(t);
+            int n = parts.get(t).rows();
+            Arrays.fill(rowTemplate, row, row + n, t);
+            row += n;
+        }
+
+        descriptors = new Mat();
+        if (!parts.isEmpty())
+            Core.vconcat(parts, descriptors);
+    }
+
+    /**
+     * Ranks the templates by the number of descriptors of the patch voting for them.
+     *
+     * @param patchDescriptors The descriptors of the patch
+     * @param matcher          The matcher owned by the calling thread
+     * @param minimalVotes     The minimal number of votes for a template to be a candidate
+     * @param maxCandidates    The maximal number of candidates per logo
+     * @return for each logo, its candidate templates, the ones with the most votes first
+     */
+    public List<List<LogoTemplate>> candidates(Mat patchDescriptors, DescriptorMatcher matcher,
+                                               int minimalVotes, int maxCandidates) {
+        final int[] votes = new int[templates.size()];
+        if (!descriptors.empty() && !patchDescriptors.empty()) {
+            List<MatOfDMatch> knn = new ArrayList<>();
+            matcher.knnMatch(patchDescriptors, descriptors, knn, 2);
+            float[] buffer = new float[2 * MatchArrays.DMATCH_FIELDS];
+            for (MatOfDMatch neighbours : knn) {
+                int found = neighbours.rows();
+                if (found > 0) {
+                    neighbours.get(0, 0, buffer);
+                    int best = rowTemplate[(int) buffer[1]];
+                    votes[best]++;
+                    if (found > 1) {
+                        int second = rowTemplate[(int) buffer[MatchArrays.DMATCH_FIELDS + 1]];
+                        if (second != best && templateLogo[second] == templateLogo[best])
+                            votes[second]++;
+                    }
+                }
+                neighbours.release();
+            }
+        }
+
+        List<List<Integer>> ranked = new ArrayList<>(logoCount);
+        for (int logoIndex = 0; logoIndex < logoCount; logoIndex++) {
+            ranked.add(new ArrayList<>());
+        }
+        for (int t = 0; t < templates.size(); t++) {
+            if (votes[t] >= minimalVotes)
+                ranked.get(templateLogo[t]).add(t);
+        }
+
+        List<List<LogoTemplate>> result = new ArrayList<>(logoCount);
+        for (List<Integer> logoTemplates : ranked) {
+            // Stable sort: templates with equal votes keep the order they were given in
+            logoTemplates.sort((a, b) -> votes[b] - votes[a]);
+            List<LogoTemplate> candidates = new ArrayList<>();
+            for (int k = 0; k < logoTemplates.size() && k < maxCandidates; k++) {
+                candidates.add(templates.get(logoTemplates.get(k)));
+            }
+            result.add(candidates);
+        }
+        return result;
+    }
+
+    /**
+     * Releases the stacked descriptors.
+     */
+    public void release() {
+        descriptors.release();
+    }
+}
@@ -0,0 +1,157 @@
+package com.adsc.detection;
+
+import com.adsc.detection.utils.SerializableStructure.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Stores the dynamically added logo templates of one detector.
+ * <p>Templates are kept in a tree ordered by decreasing priority (see {@link LogoTemplate#compareTo(LogoTemplate)})
+ * and in a hash map by their patch identifier, so that a template can be found and its priority updated in
+ * O(log n), and the template with the lowest priority evicted in O(log n), without sorting the whole list.</p>
+ * <p>The store is safe to share between threads. Changes are synchronized and only mark the iteration order as
+ * stale. The next {@link #inOrder()} copies the tree into a new snapshot in O(n), so any number of changes between
+ * two searches cost one copy. Readers keep iterating over the snapshot they got while the store changes, and
+ * {@link #inOrder()} only locks when the snapshot is stale.</p>
+ */
+public class TemplateStore {
+
+    private final TreeSet<LogoTemplate> ordered;
+    private final HashMap<SerializablePatchIdentifier, LogoTemplate> byIdentifier;
+    private volatile int capacity;
+    /** Snapshot of the iteration order, replaced by the first {@link #inOrder()} after a change */
+    private volatile List<LogoTemplate> order = Collections.emptyList();
+    /** Set by changes, until the snapshot is replaced */
+    private volatile boolean stale;
+    /** The number of templates, kept apart from the snapshot so that it is always current */
+    private volatile int count;
+
+    /**
+     * Creates an empty store.
+     *
+     * @param capacity the number of templates kept by {@link #evictOverflow()}
+     */
+    public TemplateStore(int capacity) {
+        this.capacity = capacity;
+        ordered = new TreeSet<>();
+        byIdentifier = new HashMap<>();
+    }
+
+    /**
+     * @return the number of templates in the store
+     */
+    public int size() {
+        return count;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param identifier the patch identifier of a template
+     * @return true if there is a template with this identifier in the store
+     */
+    public synchronized boolean contains(SerializablePatchIdentifier identifier) {
+        return byIdentifier.containsKey(identifier);
+    }
+
+    /**
+     * Adds the template, unless there is already a template with the same identifier.
+     *
+     * @param template the template to add
+     * @return true if the template was added
+     */
+    public synchronized boolean add(LogoTemplate template) {
+        if (byIdentifier.containsKey(template.identifier))
+            return false;
+        byIdentifier.put(template.identifier, template);
+        ordered.add(template);
+        publish();
+        return true;
+    }
+
+    /**
+     * Adds the template if the store holds no more than limit templates and none with the same identifier, as one
+     * atomic step.
+     *
+     * @param template the template to add
+     * @param limit    the number of templates above which nothing is added
+     * @return true if the template was added
+     */
+    public synchronized boolean addIfRoom(LogoTemplate template, int limit) {
+        return ordered.size() <= limit && add(template);
+    }
+
+    /**
+     * Finds the template identified by given patch identifier and increments its priority by value.
+     *
+     * @param identifier the patch identifier of the template
+     * @param value      the amount by which its priority should be updated
+     * @return true if the template was found and updated and false otherwise
+     */
+    public synchronized boolean incrementPriority(SerializablePatchIdentifier identifier, int value) {
+        LogoTemplate template = byIdentifier.get(identifier);
+        if (template == null)
+            return false;
+        // The position in the tree depends on the priority, so take it out while changing it
+        ordered.remove(template);
+        template.addPriority(value);
+        ordered.add(template);
+        publish();
+        return true;
+    }
+
+    /**
+     * Removes the templates with the lowest priority until there are no more than capacity of them. Their Mats are
+     * not released, as snapshots taken before may still be read.
+     *
+     * @return the removed templates, empty if none
+     */
+    public List<LogoTemplate> evictOverflow() {
+        // Checked without the lock first, as this is called before every search
+        if (count <= capacity)
+            return Collections.emptyList();
+        synchronized (this) {
+            List<LogoTemplate> evicted = new ArrayList<>();
+            while (ordered.size() > capacity) {
+                LogoTemplate template = ordered.pollLast();
+                byIdentifier.remove(template.identifier);
+                evicted.add(template);
+            }
+            if (!evicted.isEmpty()) {
+                publish();
+            }
+            return evicted;
+        }
+    }
+
+    /**
+     * @return unmodifiable snapshot of the templates by decreasing priority
+     */
+    public List<LogoTemplate> inOrder() {
+        if (stale) {
+            synchronized (this) {
+                if (stale) {
+                    order = Collections.unmodifiableList(new ArrayList<>(ordered));
+                    stale = false;
+                }
+            }
+        }
+        return order;
+    }
+
+    private void publish() {
+        count = ordered.size();
+        stale = true;
+    }
+
+    @Override
+    public String toString() {
+        return inOrder().toString();
+    }
+}
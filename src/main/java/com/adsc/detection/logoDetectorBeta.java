@@ -6,8 +6,10 @@ import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.Rect;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.xfeatures2d.SIFT;
+
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * This is a beta version, which enables the feature of multiple logo template input.
@@ -15,9 +17,10 @@ import java.util.Collections;
  * TODO: some of the process and algorithm can be further improved to be more efficient, e.g, can we involve all the logo template in one detector?
  * This is a detector, which stores logo templates ({@link LogoTemplate}),
  * and, given a patch of the frame, attempts to find a logo on it by matching it against each logo template.
- * Logo templates are checked in order of their decreasing priority. They are stored in two separate lists:
- * {@link #originalTemp} and {@link #addedTempList}. The first one contains static original logo templates,
- * the second one, initially empty, contains dynamically added logo templates.
+ * Logo templates are checked in order of their decreasing priority. The static original logo template is kept in
+ * {@link #originalTemp}, the dynamically added ones in {@link #addedTempList}, a {@link TemplateStore} ordered by
+ * priority. The store holds at most {@link #maxTemplateSize} templates after every miss, the ones with the lowest
+ * priority being evicted, and no new template is added while it is over that limit.
  * <p>
  * ==============================Definitions==========================<p>
  * 1. Query image, query logo, logo template - images of logos we are looking for.
@@ -65,7 +68,7 @@ public class logoDetectorBeta {
     /**
      * Stores dynamically added logo templates
      */
-    private ArrayList<LogoTemplate> addedTempList;
+    private TemplateStore addedTempList;
     /**
      * Parameters for detection
      */
@@ -75,9 +78,9 @@ public class logoDetectorBeta {
      */
     private SIFT sift;
     /**
-     * Matcher, which performs all matching and refinement
+     * Matchers, which perform all matching and refinement, one per calling thread
      */
-    private RobustMatcher robustMatcher;
+    private ThreadLocal<RobustMatcher> robustMatchers;
     /**
      * If logo is found this will reference the rectangle corresponding to detected logo
      */
@@ -92,6 +95,11 @@ public class logoDetectorBeta {
     private LogoTemplate parent;
 
     private int maxTemplateSize;
+    /**
+     * Templates evicted from {@link #addedTempList}, kept until {@link #releaseEvicted()} as searches may still read
+     * them
+     */
+    private final List<LogoTemplate> evictedTemplates = new ArrayList<>();
 
     /**
      * Initializes and precomputes all key points and descriptors for static template logos
@@ -105,8 +113,8 @@ public class logoDetectorBeta {
 
         // Initialize lists and matcher and sift
         this.params = params;
-        addedTempList = new ArrayList<>();
-        robustMatcher = new RobustMatcher(params);
+        addedTempList = new TemplateStore(maxTemplateSize);
+        robustMatchers = ThreadLocal.withInitial(() -> new RobustMatcher(params));
         this.maxTemplateSize = maxTemplateSize;
 
         sift = SIFT.create(0, 3, params.getSiftParameters().getContrastThreshold(),
@@ -125,6 +133,32 @@ public class logoDetectorBeta {
     }
 
 
+    /**
+     * Initializes the detector with templates whose features are already extracted, e.g. loaded from a
+     * {@link TemplateBundle}. The templates are copied, sharing their Mats, so the priorities of the given ones
+     * do not change.
+     *
+     * @param params          The parameters for logo detection and matching.
+     * @param originalTemp    The original template of the logo
+     * @param addedTemplates  Dynamic templates learned before, e.g. by a previous run
+     * @param maxTemplateSize The number of dynamic templates kept
+     * @param sift            SIFT used to extract the features of patches and added templates, only used by
+     *                        this detector. A SIFT instance must not be shared, as templates may be added from
+     *                        several threads.
+     */
+    public logoDetectorBeta(Parameters params, LogoTemplate originalTemp, Collection<LogoTemplate> addedTemplates,
+                            int maxTemplateSize, SIFT sift) {
+        this.params = params;
+        addedTempList = new TemplateStore(maxTemplateSize);
+        robustMatchers = ThreadLocal.withInitial(() -> new RobustMatcher(params));
+        this.maxTemplateSize = maxTemplateSize;
+        this.sift = sift;
+        this.originalTemp = TemplateBundle.copy(originalTemp);
+        for (LogoTemplate template : TemplateBundle.copy(addedTemplates)) {
+            addedTempList.add(template);
+        }
+    }
+
     /**
      * This methods looks for logos on the part of the frame defined by roi.
      *
@@ -136,6 +170,7 @@ public class logoDetectorBeta {
         foundRect = null;
         extractedTemplate = null;
         parent = null;
+        RobustMatcher robustMatcher = robustMatchers.get();
 
         // Obtain the keypoints, descriptors of the patch
         Mat r = new Mat(frame, roi);
@@ -156,17 +191,10 @@ public class logoDetectorBeta {
         }
 
         if (foundRect == null) {
-            // If logo hasn't been yet found, sort list of dynamic templates.
-//            if (addedTempList.size() > maxTemplateSize) {
-//                addedTempList.remove(0);
-//            }
-
-            Collections.sort(addedTempList);
-            if (addedTempList.size() > maxTemplateSize) {
-                addedTempList.remove(addedTempList.size() - 1);
-            }
+            // If logo hasn't been yet found, check dynamic templates by decreasing priority.
+            evictOverflow();
 
-            for (LogoTemplate lt : addedTempList) {
+            for (LogoTemplate lt : addedTempList.inOrder()) {
                 if (keyPoints.toList().size() >= params.getMatchingParameters().getMinimalNumberOfMatches() &&
                         robustMatcher.matchImages(lt.imageMat, lt.descriptor, lt.keyPoints,
                                 rr, testDescriptors, keyPoints, roi)) {
@@ -180,7 +208,7 @@ public class logoDetectorBeta {
         }
         // Manually force JVM to release this.
         rr.release();
-        //keyPoints.deallocate();
+        keyPoints.release();
         testDescriptors.release();
     }
 
@@ -195,6 +223,7 @@ public class logoDetectorBeta {
         foundRect = null;
         extractedTemplate = null;
         parent = null;
+        RobustMatcher robustMatcher = robustMatchers.get();
 
         // Obtain the keypoints, descriptors of the patch
         //Mat r = new Mat(frame, roi);
@@ -215,18 +244,10 @@ public class logoDetectorBeta {
         }
 
         if (foundRect == null) {
-            // If logo hasn't been yet found, sort list of dynamic templates.
-
-//            if (addedTempList.size() > maxTemplateSize) {
-//                addedTempList.remove(0);
-//            }
-
-            Collections.sort(addedTempList);
-            if (addedTempList.size() > maxTemplateSize) {
-                addedTempList.remove(addedTempList.size() - 1);
-            }
+            // If logo hasn't been yet found, check dynamic templates by decreasing priority.
+            evictOverflow();
 
-            for (LogoTemplate lt : addedTempList) {
+            for (LogoTemplate lt : addedTempList.inOrder()) {
                 if (keyPoints.toList().size() >= params.getMatchingParameters().getMinimalNumberOfMatches() &&
                         robustMatcher.matchImages(lt.imageMat, lt.descriptor, lt.keyPoints,
                                 rr, testDescriptors, keyPoints, roi)) {
@@ -240,10 +261,47 @@ public class logoDetectorBeta {
         }
         // Manually force JVM to release this.
         rr.release();
-        //keyPoints.deallocate();
+        keyPoints.release();
         testDescriptors.release();
     }
 
+    /**
+     * This methods looks for logos on the patch whose features have already been extracted, e.g. sliced out of the
+     * features of the whole frame by {@link FrameFeatures#slice(Rect)}.
+     * <p>Several threads may call this at once: each uses its own matcher and iterates over a snapshot of the
+     * templates, while others add templates or update priorities. The result is also kept for
+     * {@link #getFoundRect()}, {@link #getExtractedTemplate()} and {@link #getParentIdentifier()}, which are only
+     * meaningful if the detector is used from one thread.</p>
+     *
+     * @param features The extracted sift feature of the patch
+     * @return the result of detection, or null if no logo has been detected on this patch
+     */
+    public DetectionResult detectLogosByFeatures(SIFTfeatures features) {
+        DetectionResult result = null;
+        LogoTemplate matched = null;
+        if (features.keyPoints.rows() >= params.getMatchingParameters().getMinimalNumberOfMatches()) {
+            RobustMatcher robustMatcher = robustMatchers.get();
+            result = robustMatcher.match(originalTemp, features);
+            matched = originalTemp;
+            if (result == null) {
+                // If logo hasn't been yet found, check dynamic templates by decreasing priority.
+                evictOverflow();
+
+                for (LogoTemplate lt : addedTempList.inOrder()) {
+                    result = robustMatcher.match(lt, features);
+                    if (result != null) {
+                        matched = lt;
+                        break;
+                    }
+                }
+            }
+        }
+        foundRect = result != null ? result.getFoundRect() : null;
+        extractedTemplate = result != null ? result.getExtractedTemplate() : null;
+        parent = result != null ? matched : null;
+        return result;
+    }
+
     /**
      * If logo was detected, you may get its global coordinates (relative to the whole frame)
      *
@@ -282,29 +340,31 @@ public class logoDetectorBeta {
      * if this particular detector hasn't been updated by the Storm with this logo template.
      */
     public boolean incrementPriority(SerializablePatchIdentifier identifier, int value) {
-        for (LogoTemplate lt : addedTempList) {
-            if (lt.identifier.equals(identifier)) {
-                lt.priority += value;
-                return true;
-            }
-        }
-        return false;
+        return addedTempList.incrementPriority(identifier, value);
     }
 
     /**
-     * Adds template to the dynamic list of logo templates.
+     * Adds template to the dynamic list of logo templates. Additions are synchronized, as they share the SIFT of
+     * the detector, and may run while other threads detect logos.
      *
      * @param identifier The identifier of the patch, from which this template was extracted.
      * @param mat        Image of the logo template
      */
-    public void addTemplate(SerializablePatchIdentifier identifier, SerializableMat mat) {
-        if (addedTempList.size() > maxTemplateSize)
+    public synchronized void addTemplate(SerializablePatchIdentifier identifier, SerializableMat mat) {
+        // Skips the extraction when the template would not be added anyway
+        if (addedTempList.size() > maxTemplateSize || addedTempList.contains(identifier))
             return;
         Mat image = mat.toJavaCVMat();
+        if (mat instanceof EncodedSerializableMat && ((EncodedSerializableMat) mat).hasFeatures()) {
+            // The sender extracted the features already
+            EncodedSerializableMat encoded = (EncodedSerializableMat) mat;
+            addIfRoom(new LogoTemplate(image, encoded.getKeyPoints(), encoded.getDescriptors(), identifier));
+            return;
+        }
         Mat descriptor = new Mat();
         MatOfKeyPoint keyPoints = new MatOfKeyPoint();
         sift.detectAndCompute(image, new Mat(), keyPoints, descriptor);
-        addedTempList.add(new LogoTemplate(image, keyPoints, descriptor, identifier));
+        addIfRoom(new LogoTemplate(image, keyPoints, descriptor, identifier));
 
     }
 
@@ -315,14 +375,15 @@ public class logoDetectorBeta {
      * @param wholeFrame Image of the logo template
      * @param roi        Region where this logo template was detected
      */
-    public void addTemplateByRect(SerializablePatchIdentifier identifier, SerializableMat wholeFrame, SerializableRect roi) {
-        if (addedTempList.size() > maxTemplateSize)
+    public synchronized void addTemplateByRect(SerializablePatchIdentifier identifier, SerializableMat wholeFrame, SerializableRect roi) {
+        // Skips the extraction when the template would not be added anyway
+        if (addedTempList.size() > maxTemplateSize || addedTempList.contains(identifier))
             return;
         Mat image = new Mat(wholeFrame.toJavaCVMat(), roi.toJavaCVRect());
         Mat descriptor = new Mat();
         MatOfKeyPoint keyPoints = new MatOfKeyPoint();
         sift.detectAndCompute(image, new Mat(), keyPoints, descriptor);
-        addedTempList.add(new LogoTemplate(image, keyPoints, descriptor, identifier));
+        addIfRoom(new LogoTemplate(image, keyPoints, descriptor, identifier));
 
     }
 
@@ -332,8 +393,9 @@ public class logoDetectorBeta {
      * @param identifier        The identifier of the patch, from which this template was extracted.
      * @param extractedTemplate Image of the logo template
      */
-    public void addTemplateBySubMat(SerializablePatchIdentifier identifier, SerializableMat extractedTemplate) {
-        if (addedTempList.size() > maxTemplateSize) {
+    public synchronized void addTemplateBySubMat(SerializablePatchIdentifier identifier, SerializableMat extractedTemplate) {
+        // Skips the extraction when the template would not be added anyway
+        if (addedTempList.size() > maxTemplateSize || addedTempList.contains(identifier)) {
             return;
         }
 
@@ -341,7 +403,75 @@ public class logoDetectorBeta {
         Mat descriptor = new Mat();
         MatOfKeyPoint keyPoints = new MatOfKeyPoint();
         sift.detectAndCompute(image, new Mat(), keyPoints, descriptor);
-        addedTempList.add(new LogoTemplate(image, keyPoints, descriptor, identifier));
+        addIfRoom(new LogoTemplate(image, keyPoints, descriptor, identifier));
+    }
+
+    /**
+     * Adds the template to the dynamic list, checking its size and the identifier in the same step as the add, or
+     * releases its Mats if it is not added.
+     */
+    private void addIfRoom(LogoTemplate template) {
+        if (!addedTempList.addIfRoom(template, maxTemplateSize)) {
+            template.release();
+        }
+    }
+
+    /**
+     * Evicts the dynamic templates over the limit, keeping them for {@link #releaseEvicted()}.
+     */
+    private void evictOverflow() {
+        List<LogoTemplate> evicted = addedTempList.evictOverflow();
+        if (!evicted.isEmpty()) {
+            synchronized (evictedTemplates) {
+                evictedTemplates.addAll(evicted);
+            }
+        }
+    }
+
+    /**
+     * Releases the Mats of the dynamic templates evicted so far, except those shared with a {@link TemplateBundle}.
+     * Must only be called while no search runs on this detector and no template list it returned is in use, e.g.
+     * at the end of a frame.
+     */
+    public void releaseEvicted() {
+        List<LogoTemplate> evicted;
+        synchronized (evictedTemplates) {
+            if (evictedTemplates.isEmpty())
+                return;
+            evicted = new ArrayList<>(evictedTemplates);
+            evictedTemplates.clear();
+        }
+        for (LogoTemplate template : evicted) {
+            template.release();
+        }
+    }
+
+    /**
+     * Changes the number of dynamic templates kept. Templates over the new limit are dropped by the next miss.
+     *
+     * @param maxTemplateSize The number of dynamic templates kept
+     */
+    public synchronized void setMaxTemplateSize(int maxTemplateSize) {
+        this.maxTemplateSize = maxTemplateSize;
+        addedTempList.setCapacity(maxTemplateSize);
+    }
+
+    /**
+     * @return the original logo template
+     */
+    public LogoTemplate getOriginalTemplate() {
+        return originalTemp;
+    }
+
+    /**
+     * Returns the dynamic logo templates, e.g. to save them into a {@link TemplateBundle}. The list is trimmed the
+     * same way as a miss does.
+     *
+     * @return unmodifiable list of the dynamic logo templates by decreasing priority
+     */
+    public List<LogoTemplate> getAddedTemplates() {
+        evictOverflow();
+        return addedTempList.inOrder();
     }
 
     /**
@@ -2,15 +2,15 @@ package com.adsc.detection;
 
 import java.awt.*;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SortedMap;
 
 import com.adsc.detection.utils.ImageViewer;
 import org.opencv.core.*;
-import org.opencv.core.Point;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
 import org.opencv.xfeatures2d.SIFT;
 
 import static com.adsc.detection.utils.SerializableStructure.*;
@@ -20,6 +20,9 @@ import javax.swing.*;
 
 public class logoDetectorRunner {
 
+    /** Frame rate of the video output when neither the parameters nor the source give one */
+    private static final double DEFAULT_FPS = 25;
+
     static {
         System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
     }
@@ -50,7 +53,15 @@ public class logoDetectorRunner {
         //LogoDetectionByInputImagesGamma(sourceFolder, outputFolder, startFrame, endFrame, maxAdditionTemp, minNumberOfMatches, templateFiles, sampleRate, false, true);
 
         LogoDetectionByInputVideo(srcVideoFile, outputFolder, startFrame, endFrame, maxAdditionTemp, minNumberOfMatches, templateFiles, sampleRate, false);
+        // Tunes sampleRate, the patch grid and maxAdditionTemp to keep the mean frame time within 40 ms
+        //LogoDetectionByInputVideo(srcVideoFile, outputFolder, startFrame, endFrame, maxAdditionTemp,
+        //        new Parameters().withAdaptiveParameters(new Parameters.AdaptiveParameters().withEnabled(true).withFrameBudgetMillis(40)), templateFiles, sampleRate, false);
         //LogoDetectionByInputVideoGamma(srcVideoFile, outputFolder, startFrame, endFrame, maxAdditionTemp, minNumberOfMatches, templateFiles, sampleRate, true);
+        //LogoDetectionByInputVideos(Arrays.asList(srcVideoFile, "/home/jiamingmai/Videos/2.MOV"), startFrame, endFrame, maxAdditionTemp,
+        //        new Parameters().withExecutionParameters(new Parameters.ExecutionParameters().withNumThreads(4)), templateFiles, sampleRate);
+        // Live feeds: keep only the newest frame of each stream and report dropped frames and latency
+        //LogoDetectionByInputVideos(Arrays.asList("rtsp://camera1/stream", "rtsp://camera2/stream"), 1, 100000, maxAdditionTemp,
+        //        new Parameters().withExecutionParameters(new Parameters.ExecutionParameters().withNumThreads(4).withLive(true)), templateFiles, sampleRate);
 
         long endTime = System.currentTimeMillis();
         System.out.println("finished with duration: " + (endTime - startTime));
@@ -60,92 +71,121 @@ public class logoDetectorRunner {
             (String sourceFile, String outputFolder, int startFrame, int endFrame, int maxAdditionTemp,
              int minNumberOfMatches, List<String> templateFiles, int sampleRate, boolean toFile) {
 
-        VideoCapture capture = new VideoCapture(sourceFile);
-
         Parameters parameters = new Parameters().withMatchingParameters(
                 new Parameters.MatchingParameters().withMinimalNumberOfMatches(minNumberOfMatches));
+        LogoDetectionByInputVideo(sourceFile, outputFolder, startFrame, endFrame, maxAdditionTemp,
+                parameters, templateFiles, sampleRate, toFile);
+    }
+
+    public static void LogoDetectionByInputVideo
+            (String sourceFile, String outputFolder, int startFrame, int endFrame, int maxAdditionTemp,
+             Parameters parameters, List<String> templateFiles, int sampleRate, boolean toFile) {
 
+        VideoCapture capture = new VideoCapture(sourceFile);
+
+        // Used from this thread only, to extract the templates and the features of the whole frame
+        SIFT frameSift = createSift(parameters);
+        // Only given to extract the features of the whole frame
+        SIFT sift = parameters.getSiftParameters().isWholeFrameExtraction() ? frameSift : null;
+
+        TemplateBundle templates = loadTemplates(parameters, templateFiles, frameSift);
         List<logoDetectorBeta> detectors = new ArrayList<>();
-        for (int logoIndex = 0; logoIndex < templateFiles.size(); logoIndex++) {
-            detectors.add(new logoDetectorBeta(parameters, templateFiles.get(logoIndex), logoIndex, maxAdditionTemp));
+        for (int logoIndex = 0; logoIndex < templates.getLogoCount(); logoIndex++) {
+            // Each detector has its own SIFT, as a SIFT instance is not safe to use from several threads
+            detectors.add(new logoDetectorBeta(parameters, templates.getOriginal(logoIndex),
+                    templates.getAdded(logoIndex), maxAdditionTemp, createSift(parameters)));
         }
 
-        List<Scalar> colorList = new ArrayList<>();
-        colorList.add(new Scalar(255, 0, 255)); // magenta
-        colorList.add(new Scalar(0, 255, 255)); // yellow
-        colorList.add(new Scalar(255, 255, 0)); // cyan
-        colorList.add(new Scalar(0, 0, 255)); // blue
-        colorList.add(new Scalar(0, 255, 0)); // green
-        colorList.add(new Scalar(255, 0, 0)); // red
-        colorList.add(new Scalar(0, 0, 0)); // black
+        // Moves the rectangles on the frames between the sampled ones, null to keep them still
+        RectTracker tracker = parameters.getTrackingParameters().isEnabled()
+                ? new RectTracker(parameters.getTrackingParameters()) : null;
 
         //StormVideoLogoDetector detector = new StormVideoLogoDetector(parameters, templateFiles);
 
         int frameId = 0;
         long totalFrameUsed = 0;
-        while (++frameId < startFrame)
-            capture.grab();
         int diff = endFrame - startFrame + 1;
-        frameId = 0;
         endFrame = frameId + diff;
 
-        List<SerializablePatchIdentifier> patchIdentifierList = new ArrayList<>();
-        double fx = .25, fy = .25;
-        double fsx = .5, fsy = .5;
-
         ///int W = mat.cols(), H = mat.rows();
         int W = 640, H = 480;
-        int w = (int) (W * fx + .5), h = (int) (H * fy + .5);
-        int dx = (int) (w * fsx + .5), dy = (int) (h * fsy + .5);
 
-        for (int x = 0; x + w <= W; x += dx) {
-            for (int y = 0; y + h <= H; y += dy) {
-                patchIdentifierList.add(new SerializablePatchIdentifier(frameId, new SerializableRect(x, y, w, h)));
+        // The grid and the sample rate, adapted to the frame budget if asked for
+        ScanLayout layout = new ScanLayout(parameters, W, H, sampleRate, maxAdditionTemp, detectors.size(), limit -> {
+            for (logoDetectorBeta detector : detectors) {
+                detector.setMaxTemplateSize(limit);
             }
-        }
-        System.out.println("W: " + W + ", H: " + H + ", total patch: " + patchIdentifierList.size());
+        });
+        System.out.println("W: " + W + ", H: " + H + ", total patch: " + layout.getPatchIdentifierList().size());
+
+        // Decodes and resizes ahead of detection, starting at the frame the grab loop used to stop at
+        FramePrefetcher prefetcher = new FramePrefetcher(capture, Math.max(startFrame - 1, 0), diff, new Size(W, H),
+                parameters.getExecutionParameters().getPrefetchFrames());
+        prefetcher.start();
 
         List<List<SerializableRect>> foundedRectList = new ArrayList<>();
         for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
             foundedRectList.add(new ArrayList<>());
         }
 
+        FrameSink writer = toFile
+                ? createFrameSink(parameters.getOutputParameters(), outputFolder, capture.get(Videoio.CAP_PROP_FPS)) : null;
+
         long start = System.currentTimeMillis();
 
         while (frameId < endFrame) {
             long frameStart = System.currentTimeMillis();
 
-            Mat matOrg = new Mat();
-            capture.read(matOrg);
-            Mat mat = new Mat();
-            Imgproc.resize(matOrg, mat, new Size(W, H));
-
-            if (frameId % sampleRate == 0) {
-                foundedRectList = LogoDetectionForOneFrame(frameId, mat, detectors, patchIdentifierList);
+            Mat mat = prefetcher.take();
+            if (mat == null) {
+                break;
             }
 
-            for (int logoIndex = 0; logoIndex < foundedRectList.size(); logoIndex++) {
-                Scalar color = colorList.get(logoIndex % colorList.size());
-                if (foundedRectList.get(logoIndex) != null) {
-                    for (SerializableRect rect : foundedRectList.get(logoIndex)) {
-                        Imgproc.rectangle(mat, new Point(rect.x, rect.y), new Point(rect.x + rect.width - 1, rect.y + rect.height - 1), color);
-                    }
+            // Kept for the whole frame, as the layout may change at its end
+            List<SerializablePatchIdentifier> patchIdentifierList = layout.getPatchIdentifierList();
+            ScanPlanner planner = layout.getPlanner();
+            PatchChangeDetector changes = layout.getChanges();
+
+            boolean detect = frameId % layout.getSampleRate() == 0;
+            if (!detect && tracker != null) {
+                foundedRectList = tracker.track(mat);
+                detect = tracker.isLost();
+            }
+            if (detect) {
+                foundedRectList = LogoDetectionForOneFrame(frameId, mat, detectors, patchIdentifierList, sift, planner, changes);
+                if (tracker != null) {
+                    tracker.reset(mat, foundedRectList);
                 }
             }
 
             long frameSpend = System.currentTimeMillis() - frameStart;
-            if (toFile) {
-                String outputFileName = outputFolder + System.getProperty("file.separator")
-                        + String.format("frame%06d.jpg", (frameId + 1));
-                Imgcodecs.imwrite(outputFileName, mat);
-                //System.out.println("finish draw frameID: " + frameId);
+
+            layout.update(frameId, frameSpend);
+
+            // Drawing and encoding happen on the writer threads
+            long outputStart = System.currentTimeMillis();
+            if (writer != null) {
+                writer.write(frameId, mat, foundedRectList);
             }
+            long outputSpend = System.currentTimeMillis() - outputStart;
+            prefetcher.recycle(mat);
 
             frameId++;
             long nowTime = System.currentTimeMillis();
             totalFrameUsed += frameSpend;
-            System.out.println("Sendout: " + nowTime + ", " + frameId + ", used: " + (nowTime - start) + ", frameUsed: " + frameSpend + ", totalFrameUsed: " + totalFrameUsed);
+            System.out.println("Sendout: " + nowTime + ", " + frameId + ", used: " + (nowTime - start) + ", frameUsed: " + frameSpend + ", totalFrameUsed: " + totalFrameUsed + ", outputUsed: " + outputSpend
+                    + (planner != null ? ", skippedPatches: " + planner.getLastSkipped() + ", totalSkippedPatches: " + planner.getTotalSkipped() : "")
+                    + (changes != null ? ", reusedPatches: " + changes.getLastReused() + ", totalReusedPatches: " + changes.getTotalReused() : "")
+                    + ", nativePeakBytes: " + MatArena.getPeakBytes());
         }
+        if (writer != null) {
+            writer.close();
+            System.out.println("Written: " + writer.getWritten() + ", dropped: " + writer.getDropped() + ", writerUsed: " + writer.getOutputMillis());
+        }
+        prefetcher.close();
+        capture.release();
+        System.out.println("Verification: " + RobustMatcher.getVerificationStats());
+        saveTemplates(parameters, detectors);
     }
 
 
@@ -153,93 +193,129 @@ public class logoDetectorRunner {
             (String sourceFile, String outputFolder, int startFrame, int endFrame, int maxAdditionTemp,
              int minNumberOfMatches, List<String> templateFiles, int sampleRate, boolean toFile) {
 
-        VideoCapture capture = new VideoCapture(sourceFile);
-
         Parameters parameters = new Parameters().withMatchingParameters(
                 new Parameters.MatchingParameters().withMinimalNumberOfMatches(minNumberOfMatches));
+        LogoDetectionByInputVideoGamma(sourceFile, outputFolder, startFrame, endFrame, maxAdditionTemp,
+                parameters, templateFiles, sampleRate, toFile);
+    }
 
-        SIFT sift = SIFT.create(0, 3, parameters.getSiftParameters().getContrastThreshold(),
-                parameters.getSiftParameters().getEdgeThreshold(), parameters.getSiftParameters().getSigma());
+    public static void LogoDetectionByInputVideoGamma
+            (String sourceFile, String outputFolder, int startFrame, int endFrame, int maxAdditionTemp,
+             Parameters parameters, List<String> templateFiles, int sampleRate, boolean toFile) {
+
+        VideoCapture capture = new VideoCapture(sourceFile);
 
+        SIFT sift = createSift(parameters);
+
+        TemplateBundle templates = loadTemplates(parameters, templateFiles, sift);
         List<logoDetectorGamma> detectors = new ArrayList<>();
-        for (int logoIndex = 0; logoIndex < templateFiles.size(); logoIndex++) {
-            detectors.add(new logoDetectorGamma(parameters, templateFiles.get(logoIndex), logoIndex, maxAdditionTemp));
+        for (int logoIndex = 0; logoIndex < templates.getLogoCount(); logoIndex++) {
+            // Each detector has its own SIFT, as the frame detector adds templates from its worker threads
+            detectors.add(new logoDetectorGamma(parameters, templates.getOriginal(logoIndex),
+                    templates.getAdded(logoIndex), maxAdditionTemp, createSift(parameters)));
         }
 
-        List<Scalar> colorList = new ArrayList<>();
-        colorList.add(new Scalar(255, 0, 255)); // magenta
-        colorList.add(new Scalar(0, 255, 255)); // yellow
-        colorList.add(new Scalar(255, 255, 0)); // cyan
-        colorList.add(new Scalar(0, 0, 255)); // blue
-        colorList.add(new Scalar(0, 255, 0)); // green
-        colorList.add(new Scalar(255, 0, 0)); // red
-        colorList.add(new Scalar(0, 0, 0)); // black
+        // The template index is only built by the frame detector, even when it runs on one thread
+        int numThreads = parameters.getExecutionParameters().getNumThreads();
+        ParallelFrameDetector frameDetector = numThreads > 1 || parameters.getMatchingParameters().isTemplateIndex()
+                ? new ParallelFrameDetector(parameters, numThreads) : null;
+
+        // Moves the rectangles on the frames between the sampled ones, null to keep them still
+        RectTracker tracker = parameters.getTrackingParameters().isEnabled()
+                ? new RectTracker(parameters.getTrackingParameters()) : null;
 
         //StormVideoLogoDetector detector = new StormVideoLogoDetector(parameters, templateFiles);
 
         int frameId = 0;
         long totalFrameUsed = 0;
-        while (++frameId < startFrame)
-            capture.grab();
         int diff = endFrame - startFrame + 1;
-        frameId = 0;
         endFrame = frameId + diff;
 
-        List<SerializablePatchIdentifier> patchIdentifierList = new ArrayList<>();
-        double fx = .25, fy = .25;
-        double fsx = .5, fsy = .5;
-
         ///int W = mat.cols(), H = mat.rows();
         int W = 640, H = 480;
-        int w = (int) (W * fx + .5), h = (int) (H * fy + .5);
-        int dx = (int) (w * fsx + .5), dy = (int) (h * fsy + .5);
 
-        for (int x = 0; x + w <= W; x += dx) {
-            for (int y = 0; y + h <= H; y += dy) {
-                patchIdentifierList.add(new SerializablePatchIdentifier(frameId, new SerializableRect(x, y, w, h)));
+        // The grid and the sample rate, adapted to the frame budget if asked for
+        ScanLayout layout = new ScanLayout(parameters, W, H, sampleRate, maxAdditionTemp, detectors.size(), limit -> {
+            for (logoDetectorGamma detector : detectors) {
+                detector.setMaxTemplateSize(limit);
             }
-        }
-        System.out.println("W: " + W + ", H: " + H + ", total patch: " + patchIdentifierList.size());
+        });
+        System.out.println("W: " + W + ", H: " + H + ", total patch: " + layout.getPatchIdentifierList().size());
+
+        // Decodes and resizes ahead of detection, starting at the frame the grab loop used to stop at
+        FramePrefetcher prefetcher = new FramePrefetcher(capture, Math.max(startFrame - 1, 0), diff, new Size(W, H),
+                parameters.getExecutionParameters().getPrefetchFrames());
+        prefetcher.start();
 
         List<List<SerializableRect>> foundedRectList = new ArrayList<>();
         for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
             foundedRectList.add(new ArrayList<>());
         }
 
+        FrameSink writer = toFile
+                ? createFrameSink(parameters.getOutputParameters(), outputFolder, capture.get(Videoio.CAP_PROP_FPS)) : null;
+
         long start = System.currentTimeMillis();
 
         while (frameId < endFrame) {
             long frameStart = System.currentTimeMillis();
-            Mat matOrg = new Mat();
-            capture.read(matOrg);
-            Mat mat = new Mat();
-            Imgproc.resize(matOrg, mat, new Size(W, H));
-
-            if (frameId % sampleRate == 0) {
-                foundedRectList = LogoDetectionForOneFrameGama(frameId, mat, detectors, patchIdentifierList, sift);
+            Mat mat = prefetcher.take();
+            if (mat == null) {
+                break;
             }
 
-            for (int logoIndex = 0; logoIndex < foundedRectList.size(); logoIndex++) {
-                Scalar color = colorList.get(logoIndex % colorList.size());
-                if (foundedRectList.get(logoIndex) != null) {
-                    for (SerializableRect rect : foundedRectList.get(logoIndex)) {
-                        Imgproc.rectangle(mat, new Point(rect.x, rect.y), new Point(rect.x + rect.width - 1, rect.y + rect.height - 1), color);
-                    }
+            // Kept for the whole frame, as the layout may change at its end
+            List<SerializablePatchIdentifier> patchIdentifierList = layout.getPatchIdentifierList();
+            ScanPlanner planner = layout.getPlanner();
+            PatchChangeDetector changes = layout.getChanges();
+
+            boolean detect = frameId % layout.getSampleRate() == 0;
+            if (!detect && tracker != null) {
+                foundedRectList = tracker.track(mat);
+                detect = tracker.isLost();
+            }
+            if (detect) {
+                if (frameDetector != null) {
+                    foundedRectList = frameDetector.detect(frameId, mat, detectors, patchIdentifierList, planner, changes);
+                } else {
+                    foundedRectList = LogoDetectionForOneFrameGama(frameId, mat, detectors, patchIdentifierList, sift,
+                            parameters.getSiftParameters().isWholeFrameExtraction(), planner, changes);
+                }
+                if (tracker != null) {
+                    tracker.reset(mat, foundedRectList);
                 }
             }
 
             long frameSpend = System.currentTimeMillis() - frameStart;
-            if (toFile) {
-                String outputFileName = outputFolder + System.getProperty("file.separator")
-                        + String.format("frame%06d.jpg", (frameId + 1));
-                Imgcodecs.imwrite(outputFileName, mat);
-                //System.out.println("finish draw frameID: " + frameId);
+
+            layout.update(frameId, frameSpend);
+
+            // Drawing and encoding happen on the writer threads
+            long outputStart = System.currentTimeMillis();
+            if (writer != null) {
+                writer.write(frameId, mat, foundedRectList);
             }
+            long outputSpend = System.currentTimeMillis() - outputStart;
+            prefetcher.recycle(mat);
 
             frameId++;
             long nowTime = System.currentTimeMillis();
             totalFrameUsed += frameSpend;
-            System.out.println("Sendout: " + nowTime + ", " + frameId + ", used: " + (nowTime - start) + ", frameUsed: " + frameSpend + ", totalFrameUsed: " + totalFrameUsed);
+            System.out.println("Sendout: " + nowTime + ", " + frameId + ", used: " + (nowTime - start) + ", frameUsed: " + frameSpend + ", totalFrameUsed: " + totalFrameUsed + ", outputUsed: " + outputSpend
+                    + (planner != null ? ", skippedPatches: " + planner.getLastSkipped() + ", totalSkippedPatches: " + planner.getTotalSkipped() : "")
+                    + (changes != null ? ", reusedPatches: " + changes.getLastReused() + ", totalReusedPatches: " + changes.getTotalReused() : "")
+                    + ", nativePeakBytes: " + MatArena.getPeakBytes());
+        }
+        if (writer != null) {
+            writer.close();
+            System.out.println("Written: " + writer.getWritten() + ", dropped: " + writer.getDropped() + ", writerUsed: " + writer.getOutputMillis());
+        }
+        prefetcher.close();
+        capture.release();
+        System.out.println("Verification: " + RobustMatcher.getVerificationStats());
+        saveTemplatesGama(parameters, detectors);
+        if (frameDetector != null) {
+            frameDetector.shutdown();
         }
     }
 
@@ -250,97 +326,122 @@ public class logoDetectorRunner {
 
         Parameters parameters = new Parameters().withMatchingParameters(
                 new Parameters.MatchingParameters().withMinimalNumberOfMatches(minNumberOfMatches));
+        LogoDetectionByInputImages(sourceFolder, outputFolder, startFrame, endFrame, maxAdditionTemp,
+                parameters, templateFiles, sampleRate, toFile);
+    }
 
+    public static void LogoDetectionByInputImages
+            (String sourceFolder, String outputFolder, int startFrame, int endFrame, int maxAdditionTemp,
+             Parameters parameters, List<String> templateFiles, int sampleRate, boolean toFile) {
+
+        // Used from this thread only, to extract the templates and the features of the whole frame
+        SIFT frameSift = createSift(parameters);
+        // Only given to extract the features of the whole frame
+        SIFT sift = parameters.getSiftParameters().isWholeFrameExtraction() ? frameSift : null;
+
+        TemplateBundle templates = loadTemplates(parameters, templateFiles, frameSift);
         List<logoDetectorBeta> detectors = new ArrayList<>();
-        for (int logoIndex = 0; logoIndex < templateFiles.size(); logoIndex++) {
-            detectors.add(new logoDetectorBeta(parameters, templateFiles.get(logoIndex), logoIndex, maxAdditionTemp));
+        for (int logoIndex = 0; logoIndex < templates.getLogoCount(); logoIndex++) {
+            // Each detector has its own SIFT, as a SIFT instance is not safe to use from several threads
+            detectors.add(new logoDetectorBeta(parameters, templates.getOriginal(logoIndex),
+                    templates.getAdded(logoIndex), maxAdditionTemp, createSift(parameters)));
         }
 
-        List<Scalar> colorList = new ArrayList<>();
-        colorList.add(new Scalar(255, 0, 255)); // magenta
-        colorList.add(new Scalar(0, 255, 255)); // yellow
-        colorList.add(new Scalar(255, 255, 0)); // cyan
-        colorList.add(new Scalar(0, 0, 255)); // blue
-        colorList.add(new Scalar(0, 255, 0)); // green
-        colorList.add(new Scalar(255, 0, 0)); // red
-        colorList.add(new Scalar(0, 0, 0)); // black
-
         //StormVideoLogoDetector detector = new StormVideoLogoDetector(parameters, templateFiles);
 
-        int generatedFrames = startFrame;
         int targetCount = endFrame - startFrame;
 
         int frameId = 0;
         long totalFrameUsed = 0;
 
-        List<SerializablePatchIdentifier> patchIdentifierList = new ArrayList<>();
-        double fx = .25, fy = .25;
-        double fsx = .5, fsy = .5;
-
         ///int W = mat.cols(), H = mat.rows();
         int W = 640, H = 480;
-        int w = (int) (W * fx + .5), h = (int) (H * fy + .5);
-        int dx = (int) (w * fsx + .5), dy = (int) (h * fsy + .5);
 
-        for (int x = 0; x + w <= W; x += dx) {
-            for (int y = 0; y + h <= H; y += dy) {
-                patchIdentifierList.add(new SerializablePatchIdentifier(frameId, new SerializableRect(x, y, w, h)));
+        // The grid and the sample rate, adapted to the frame budget if asked for
+        ScanLayout layout = new ScanLayout(parameters, W, H, sampleRate, maxAdditionTemp, detectors.size(), limit -> {
+            for (logoDetectorBeta detector : detectors) {
+                detector.setMaxTemplateSize(limit);
             }
-        }
-        System.out.println("W: " + W + ", H: " + H + ", total patch: " + patchIdentifierList.size());
+        });
+        System.out.println("W: " + W + ", H: " + H + ", total patch: " + layout.getPatchIdentifierList().size());
 
         List<List<SerializableRect>> foundedRectList = new ArrayList<>();
         for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
             foundedRectList.add(new ArrayList<>());
         }
 
+        // Decodes the next files on a few threads, skipping the missing ones
+        ImageFolderReader reader = new ImageFolderReader(sourceFolder, startFrame + 1, targetCount,
+                parameters.getExecutionParameters().getReaderThreads(),
+                parameters.getExecutionParameters().getPrefetchFrames());
+
+        FrameSink writer = toFile ? createFrameSink(parameters.getOutputParameters(), outputFolder, 0) : null;
+
+        // Releases the decoded frame when it is done with, the writer keeps its own copy
+        MatArena frameArena = new MatArena();
+
         long start = System.currentTimeMillis();
         while (frameId < targetCount) {
-            String fileName = sourceFolder + System.getProperty("file.separator")
-                    + String.format("frame%06d.jpg", (generatedFrames + 1));
-            File f = new File(fileName);
-            if (f.exists() == false) {
-                System.out.println("File not exist: " + fileName);
-                continue;
-            }
             long frameStart = System.currentTimeMillis();
-            Mat mat = Imgcodecs.imread(fileName);
-
-            if (frameId % sampleRate == 0) {
-                foundedRectList = LogoDetectionForOneFrame(frameId, mat, detectors, patchIdentifierList);
+            Mat mat = frameArena.add(reader.next());
+            if (mat == null) {
+                break;
             }
 
-            for (int logoIndex = 0; logoIndex < foundedRectList.size(); logoIndex++) {
-                Scalar color = colorList.get(logoIndex % colorList.size());
-                if (foundedRectList.get(logoIndex) != null) {
-                    for (SerializableRect rect : foundedRectList.get(logoIndex)) {
-                        Imgproc.rectangle(mat, new Point(rect.x, rect.y), new Point(rect.x + rect.width - 1, rect.y + rect.height - 1), color);
-                    }
-                }
+            // Kept for the whole frame, as the layout may change at its end
+            List<SerializablePatchIdentifier> patchIdentifierList = layout.getPatchIdentifierList();
+            ScanPlanner planner = layout.getPlanner();
+            PatchChangeDetector changes = layout.getChanges();
+
+            if (frameId % layout.getSampleRate() == 0) {
+                foundedRectList = LogoDetectionForOneFrame(frameId, mat, detectors, patchIdentifierList, sift, planner, changes);
             }
 
             long frameSpend = System.currentTimeMillis() - frameStart;
-            if (toFile) {
-                String outputFileName = outputFolder + System.getProperty("file.separator")
-                        + String.format("frame%06d.jpg", (frameId + 1));
-                Imgcodecs.imwrite(outputFileName, mat);
-                //System.out.println("finish draw frameID: " + frameId);
+
+            layout.update(frameId, frameSpend);
+
+            // Drawing and encoding happen on the writer threads
+            long outputStart = System.currentTimeMillis();
+            if (writer != null) {
+                writer.write(frameId, mat, foundedRectList);
             }
+            long outputSpend = System.currentTimeMillis() - outputStart;
+            frameArena.release();
 
             frameId++;
-            generatedFrames++;
 
             long nowTime = System.currentTimeMillis();
             totalFrameUsed += frameSpend;
-            System.out.println("Sendout: " + nowTime + ", " + frameId + ", used: " + (nowTime - start) + ", frameUsed: " + frameSpend + ", totalFrameUsed: " + totalFrameUsed);
+            System.out.println("Sendout: " + nowTime + ", " + frameId + ", used: " + (nowTime - start) + ", frameUsed: " + frameSpend + ", totalFrameUsed: " + totalFrameUsed + ", outputUsed: " + outputSpend
+                    + (planner != null ? ", skippedPatches: " + planner.getLastSkipped() + ", totalSkippedPatches: " + planner.getTotalSkipped() : "")
+                    + (changes != null ? ", reusedPatches: " + changes.getLastReused() + ", totalReusedPatches: " + changes.getTotalReused() : "")
+                    + ", nativePeakBytes: " + MatArena.getPeakBytes());
 
         }
+        if (writer != null) {
+            writer.close();
+            System.out.println("Written: " + writer.getWritten() + ", dropped: " + writer.getDropped() + ", writerUsed: " + writer.getOutputMillis());
+        }
+        reader.close();
+        System.out.println("Verification: " + RobustMatcher.getVerificationStats());
+        saveTemplates(parameters, detectors);
     }
 
     public static void LogoDetectionByInputImagesGamma
             (String sourceFolder, String outputFolder, int startFrame, int endFrame, int maxAdditionTemp,
              int minNumberOfMatches, List<String> templateFiles, int sampleRate, boolean toFile, boolean display) {
 
+        Parameters parameters = new Parameters().withMatchingParameters(
+                new Parameters.MatchingParameters().withMinimalNumberOfMatches(minNumberOfMatches));
+        LogoDetectionByInputImagesGamma(sourceFolder, outputFolder, startFrame, endFrame, maxAdditionTemp,
+                parameters, templateFiles, sampleRate, toFile, display);
+    }
+
+    public static void LogoDetectionByInputImagesGamma
+            (String sourceFolder, String outputFolder, int startFrame, int endFrame, int maxAdditionTemp,
+             Parameters parameters, List<String> templateFiles, int sampleRate, boolean toFile, boolean display) {
+
         JFrame outputJFrame = new JFrame("Video logo detection - single machine - offline");
         outputJFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         outputJFrame.setSize(400, 400);
@@ -350,25 +451,20 @@ public class logoDetectorRunner {
 
         ImageViewer imageViewer = new ImageViewer();
 
-        Parameters parameters = new Parameters().withMatchingParameters(
-                new Parameters.MatchingParameters().withMinimalNumberOfMatches(minNumberOfMatches));
-
-        SIFT sift = SIFT.create(0, 3, parameters.getSiftParameters().getContrastThreshold(),
-                parameters.getSiftParameters().getEdgeThreshold(), parameters.getSiftParameters().getSigma());
+        SIFT sift = createSift(parameters);
 
+        TemplateBundle templates = loadTemplates(parameters, templateFiles, sift);
         List<logoDetectorGamma> detectors = new ArrayList<>();
-        for (int logoIndex = 0; logoIndex < templateFiles.size(); logoIndex++) {
-            detectors.add(new logoDetectorGamma(parameters, templateFiles.get(logoIndex), logoIndex, maxAdditionTemp));
+        for (int logoIndex = 0; logoIndex < templates.getLogoCount(); logoIndex++) {
+            // Each detector has its own SIFT, as the frame detector adds templates from its worker threads
+            detectors.add(new logoDetectorGamma(parameters, templates.getOriginal(logoIndex),
+                    templates.getAdded(logoIndex), maxAdditionTemp, createSift(parameters)));
         }
 
-        List<Scalar> colorList = new ArrayList<>();
-        colorList.add(new Scalar(255, 0, 255)); // magenta
-        colorList.add(new Scalar(0, 255, 255)); // yellow
-        colorList.add(new Scalar(255, 255, 0)); // cyan
-        colorList.add(new Scalar(0, 0, 255)); // blue
-        colorList.add(new Scalar(0, 255, 0)); // green
-        colorList.add(new Scalar(255, 0, 0)); // red
-        colorList.add(new Scalar(0, 0, 0)); // black
+        // The template index is only built by the frame detector, even when it runs on one thread
+        int numThreads = parameters.getExecutionParameters().getNumThreads();
+        ParallelFrameDetector frameDetector = numThreads > 1 || parameters.getMatchingParameters().isTemplateIndex()
+                ? new ParallelFrameDetector(parameters, numThreads) : null;
 
         //StormVideoLogoDetector detector = new StormVideoLogoDetector(parameters, templateFiles);
 
@@ -376,67 +472,72 @@ public class logoDetectorRunner {
             outputJFrame.setVisible(true);
         }
 
-        int generatedFrames = startFrame;
         int targetCount = endFrame - startFrame;
 
         int frameId = 0;
         long totalFrameUsed = 0;
 
-        List<SerializablePatchIdentifier> patchIdentifierList = new ArrayList<>();
-        double fx = .25, fy = .25;
-        double fsx = .5, fsy = .5;
-
         ///int W = mat.cols(), H = mat.rows();
         int W = 640, H = 480;
-        int w = (int) (W * fx + .5), h = (int) (H * fy + .5);
-        int dx = (int) (w * fsx + .5), dy = (int) (h * fsy + .5);
 
-        for (int x = 0; x + w <= W; x += dx) {
-            for (int y = 0; y + h <= H; y += dy) {
-                patchIdentifierList.add(new SerializablePatchIdentifier(frameId, new SerializableRect(x, y, w, h)));
+        // The grid and the sample rate, adapted to the frame budget if asked for
+        ScanLayout layout = new ScanLayout(parameters, W, H, sampleRate, maxAdditionTemp, detectors.size(), limit -> {
+            for (logoDetectorGamma detector : detectors) {
+                detector.setMaxTemplateSize(limit);
             }
-        }
-        //System.out.println("W: " + W + ", H: " + H + ", total patch: " + patchIdentifierList.size());
+        });
+        //System.out.println("W: " + W + ", H: " + H + ", total patch: " + layout.getPatchIdentifierList().size());
 
         List<List<SerializableRect>> foundedRectList = new ArrayList<>();
         for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
             foundedRectList.add(new ArrayList<>());
         }
 
+        // Decodes the next files on a few threads, skipping the missing ones
+        ImageFolderReader reader = new ImageFolderReader(sourceFolder, startFrame + 1, targetCount,
+                parameters.getExecutionParameters().getReaderThreads(),
+                parameters.getExecutionParameters().getPrefetchFrames());
+
+        FrameSink writer = toFile ? createFrameSink(parameters.getOutputParameters(), outputFolder, 0) : null;
+
+        // Releases the decoded frame when it is done with, the writer keeps its own copy
+        MatArena frameArena = new MatArena();
+
         long start = System.currentTimeMillis();
         while (frameId < targetCount) {
-            String fileName = sourceFolder + System.getProperty("file.separator")
-                    + String.format("frame%06d.jpg", (generatedFrames + 1));
-            File f = new File(fileName);
-            if (f.exists() == false) {
-                System.out.println("File not exist: " + fileName);
-                continue;
-            }
             long frameStart = System.currentTimeMillis();
-            Mat mat = Imgcodecs.imread(fileName);
-
-            if (frameId % sampleRate == 0) {
-                foundedRectList = LogoDetectionForOneFrameGama(frameId, mat, detectors, patchIdentifierList, sift);
+            Mat mat = frameArena.add(reader.next());
+            if (mat == null) {
+                break;
             }
 
-            for (int logoIndex = 0; logoIndex < foundedRectList.size(); logoIndex++) {
-                Scalar color = colorList.get(logoIndex % colorList.size());
-                if (foundedRectList.get(logoIndex) != null) {
-                    for (SerializableRect rect : foundedRectList.get(logoIndex)) {
-                        Imgproc.rectangle(mat, new Point(rect.x, rect.y), new Point(rect.x + rect.width - 1, rect.y + rect.height - 1), color);
-                    }
+            // Kept for the whole frame, as the layout may change at its end
+            List<SerializablePatchIdentifier> patchIdentifierList = layout.getPatchIdentifierList();
+            ScanPlanner planner = layout.getPlanner();
+            PatchChangeDetector changes = layout.getChanges();
+
+            if (frameId % layout.getSampleRate() == 0) {
+                if (frameDetector != null) {
+                    foundedRectList = frameDetector.detect(frameId, mat, detectors, patchIdentifierList, planner, changes);
+                } else {
+                    foundedRectList = LogoDetectionForOneFrameGama(frameId, mat, detectors, patchIdentifierList, sift,
+                            parameters.getSiftParameters().isWholeFrameExtraction(), planner, changes);
                 }
             }
 
             long frameSpend = System.currentTimeMillis() - frameStart;
-            if (toFile) {
-                String outputFileName = outputFolder + System.getProperty("file.separator")
-                        + String.format("frame%06d.jpg", (frameId + 1));
-                Imgcodecs.imwrite(outputFileName, mat);
-                //System.out.println("finish draw frameID: " + frameId);
+
+            layout.update(frameId, frameSpend);
+
+            // Drawing and encoding happen on the writer threads
+            long outputStart = System.currentTimeMillis();
+            if (writer != null) {
+                writer.write(frameId, mat, foundedRectList);
             }
+            long outputSpend = System.currentTimeMillis() - outputStart;
 
             if (display) {
+                AnnotatedFrameWriter.drawRects(mat, foundedRectList);
                 Image outputImg = imageViewer.toBufferedImage(mat);
                 ImageIcon outputImageIcon = new ImageIcon(outputImg, "Video logo detection - single machine - offline");
                 outputLabel.setIcon(outputImageIcon);
@@ -447,21 +548,217 @@ public class logoDetectorRunner {
                     e.printStackTrace();
                 }
             }
+            frameArena.release();
 
             frameId++;
-            generatedFrames++;
 
             long nowTime = System.currentTimeMillis();
             totalFrameUsed += frameSpend;
             //System.out.println("Sendout: " + nowTime + ", " + frameId + ", time elapse (ms): " + (nowTime - start) + ", frameUsed: " + frameSpend + ", totalFrameUsed: " + totalFrameUsed);
-            System.out.println("Sendout: " + nowTime + ", " + frameId + ", time elapse (ms): " + (nowTime - start));
+            System.out.println("Sendout: " + nowTime + ", " + frameId + ", time elapse (ms): " + (nowTime - start) + ", frameUsed: " + frameSpend + ", totalFrameUsed: " + totalFrameUsed + ", outputUsed: " + outputSpend
+                    + (planner != null ? ", skippedPatches: " + planner.getLastSkipped() : "")
+                    + (changes != null ? ", reusedPatches: " + changes.getLastReused() : "")
+                    + ", nativePeakBytes: " + MatArena.getPeakBytes());
+
+        }
+        if (writer != null) {
+            writer.close();
+            System.out.println("Written: " + writer.getWritten() + ", dropped: " + writer.getDropped() + ", writerUsed: " + writer.getOutputMillis());
+        }
+        reader.close();
+        System.out.println("Verification: " + RobustMatcher.getVerificationStats());
+        saveTemplatesGama(parameters, detectors);
+        if (frameDetector != null) {
+            frameDetector.shutdown();
+        }
+    }
+
+    /**
+     * Detects logos on several videos at once on one pool of {@link Parameters.ExecutionParameters#getNumThreads()}
+     * worker threads, see {@link MultiStreamDetector}. The same frame range is processed on every video.
+     */
+    public static void LogoDetectionByInputVideos
+            (List<String> sourceFiles, int startFrame, int endFrame, int maxAdditionTemp,
+             Parameters parameters, List<String> templateFiles, int sampleRate) {
+
+        TemplateBundle templates = loadTemplates(parameters, templateFiles, createSift(parameters));
+
+        MultiStreamDetector detector = new MultiStreamDetector(parameters, templates, maxAdditionTemp);
+        for (String sourceFile : sourceFiles) {
+            detector.addStream(sourceFile, startFrame, endFrame, sampleRate);
+        }
+        try {
+            detector.run();
+        } finally {
+            detector.shutdown();
+            System.out.println(detector.getReport());
+        }
+        System.out.println("Verification: " + RobustMatcher.getVerificationStats());
+        if (detector.getSharedTemplates() != null) {
+            saveTemplates(parameters, detector.getSharedTemplates());
+        }
+    }
+
+    /**
+     * Detects logos on one video split into shards processed by separate worker processes, see
+     * {@link ShardCoordinator}, and writes the merged results into resultFile.
+     *
+     * @param shards       The number of worker processes
+     * @param warmUpFrames The number of first frames used to learn templates before the shards start, 0 for none
+     */
+    public static void LogoDetectionByInputVideoSharded
+            (String sourceFile, String resultFile, int startFrame, int endFrame, int maxAdditionTemp,
+             Parameters parameters, List<String> templateFiles, int sampleRate, int shards, int warmUpFrames) {
+
+        TemplateBundle templates = loadTemplates(parameters, templateFiles, createSift(parameters));
+
+        ShardCoordinator coordinator = new ShardCoordinator(parameters, shards, maxAdditionTemp, sampleRate);
+        try {
+            SortedMap<Integer, List<List<SerializableRect>>> results =
+                    coordinator.run(sourceFile, startFrame, endFrame, templates, warmUpFrames, null);
+            ShardCoordinator.writeResults(resultFile, results);
+            System.out.println("Frames: " + results.size() + ", results written to " + resultFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Could not run the shards of " + sourceFile);
+        }
+    }
+
+    /**
+     * Builds the grid of patches: patches of fx * W by fy * H pixels, moved by a fraction fsx, fsy of their size.
+     *
+     * @return the patches, column by column
+     */
+    public static List<SerializablePatchIdentifier> buildPatchGrid(int W, int H, double fx, double fy,
+                                                                   double fsx, double fsy) {
+        List<SerializablePatchIdentifier> patchIdentifierList = new ArrayList<>();
+        int w = (int) (W * fx + .5), h = (int) (H * fy + .5);
+        int dx = (int) (w * fsx + .5), dy = (int) (h * fsy + .5);
+
+        for (int x = 0; x + w <= W; x += dx) {
+            for (int y = 0; y + h <= H; y += dy) {
+                patchIdentifierList.add(new SerializablePatchIdentifier(0, new SerializableRect(x, y, w, h)));
+            }
+        }
+        return patchIdentifierList;
+    }
+
+    /**
+     * Creates the output of the annotated frames: one JPEG file per frame, or a video if
+     * {@link Parameters.OutputParameters#isVideoOutput()} is set.
+     *
+     * @param sourceFps The frame rate of the source, 0 if unknown
+     */
+    public static FrameSink createFrameSink(Parameters.OutputParameters output, String outputFolder, double sourceFps) {
+        if (!output.isVideoOutput()) {
+            return new AnnotatedFrameWriter(outputFolder, output.getWriterThreads(), output.getQueueSize(),
+                    output.isDropWhenBehind());
+        }
+        double fps = output.getFps() > 0 ? output.getFps() : sourceFps > 0 ? sourceFps : DEFAULT_FPS;
+        return new AnnotatedVideoWriter(outputFolder, fps, output.getSegmentFrames(), output.getQueueSize(),
+                output.isDropWhenBehind());
+    }
+
+    /**
+     * Creates a SIFT with the {@link Parameters.SiftParameters}. A SIFT instance must only be used by one thread at a
+     * time.
+     */
+    static SIFT createSift(Parameters parameters) {
+        return SIFT.create(0, 3, parameters.getSiftParameters().getContrastThreshold(),
+                parameters.getSiftParameters().getEdgeThreshold(), parameters.getSiftParameters().getSigma());
+    }
+
+    /**
+     * Loads the templates from {@link Parameters.MatchingParameters#getTemplateBundle()} if it is set and the file
+     * exists with one logo per template file, otherwise extracts them from the template files.
+     */
+    static TemplateBundle loadTemplates(Parameters parameters, List<String> templateFiles, SIFT sift) {
+        String bundleFile = parameters.getMatchingParameters().getTemplateBundle();
+        if (bundleFile != null && new File(bundleFile).exists()) {
+            try {
+                TemplateBundle bundle = TemplateBundle.load(bundleFile);
+                if (bundle.getLogoCount() == templateFiles.size()) {
+                    System.out.println("Templates loaded from " + bundleFile);
+                    return bundle;
+                }
+                System.err.println("Template bundle " + bundleFile + " has " + bundle.getLogoCount()
+                        + " logos instead of " + templateFiles.size() + ", extracting the templates again");
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Could not load template bundle " + bundleFile + ", extracting the templates again");
+            }
+        }
+        return TemplateBundle.extract(templateFiles, sift);
+    }
+
+    /**
+     * Saves the templates of the detectors, learned ones included, into
+     * {@link Parameters.MatchingParameters#getTemplateBundle()} if it is set.
+     */
+    private static void saveTemplates(Parameters parameters, List<logoDetectorBeta> detectors) {
+        List<LogoTemplate> originals = new ArrayList<>();
+        List<List<LogoTemplate>> added = new ArrayList<>();
+        for (logoDetectorBeta detector : detectors) {
+            originals.add(detector.getOriginalTemplate());
+            added.add(detector.getAddedTemplates());
+        }
+        saveTemplates(parameters, new TemplateBundle(originals, added));
+    }
+
+    /**
+     * Same as {@link #saveTemplates(Parameters, List)}, for {@link logoDetectorGamma}.
+     */
+    private static void saveTemplatesGama(Parameters parameters, List<logoDetectorGamma> detectors) {
+        List<LogoTemplate> originals = new ArrayList<>();
+        List<List<LogoTemplate>> added = new ArrayList<>();
+        for (logoDetectorGamma detector : detectors) {
+            originals.add(detector.getOriginalTemplate());
+            added.add(detector.getAddedTemplates());
+        }
+        saveTemplates(parameters, new TemplateBundle(originals, added));
+    }
 
+    private static void saveTemplates(Parameters parameters, TemplateBundle bundle) {
+        String bundleFile = parameters.getMatchingParameters().getTemplateBundle();
+        if (bundleFile == null)
+            return;
+        try {
+            bundle.save(bundleFile);
+            System.out.println("Templates saved to " + bundleFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Could not save template bundle " + bundleFile);
         }
     }
 
     public static List<List<SerializableRect>> LogoDetectionForOneFrame(
             int frameId, Mat mat, List<logoDetectorBeta> detectors,
             List<SerializablePatchIdentifier> patchIdentifierList) {
+        return LogoDetectionForOneFrame(frameId, mat, detectors, patchIdentifierList, null, null, null);
+    }
+
+    /**
+     * Detects logos on one frame. The features of the whole frame are extracted once and sliced into patches, instead of
+     * being extracted again for every patch and every logo as in {@link #LogoDetectionForOneFrame(int, Mat, List, List)}.
+     */
+    public static List<List<SerializableRect>> LogoDetectionForOneFrame(
+            int frameId, Mat mat, List<logoDetectorBeta> detectors,
+            List<SerializablePatchIdentifier> patchIdentifierList, SIFT sift) {
+        return LogoDetectionForOneFrame(frameId, mat, detectors, patchIdentifierList, sift, null, null);
+    }
+
+    /**
+     * Detects logos on one frame.
+     *
+     * @param sift    If not null, the features of the whole frame are extracted once with it and sliced into patches,
+     *                otherwise every detector extracts the features of every patch itself
+     * @param planner If not null, chooses the patches checked for each logo, otherwise the whole grid is checked
+     * @param changes If not null, the results of the patches that did not change are reused instead of checked again
+     */
+    public static List<List<SerializableRect>> LogoDetectionForOneFrame(
+            int frameId, Mat mat, List<logoDetectorBeta> detectors,
+            List<SerializablePatchIdentifier> patchIdentifierList, SIFT sift, ScanPlanner planner,
+            PatchChangeDetector changes) {
 
         List<List<SerializableRect>> foundedRectList = new ArrayList<>();
 
@@ -469,30 +766,105 @@ public class logoDetectorRunner {
             foundedRectList.add(new ArrayList<>());
         }
 
+        FrameFeatures frameFeatures = sift != null ? new FrameFeatures(sift, mat) : null;
+        SIFTfeatures[] patchFeatures = new SIFTfeatures[patchIdentifierList.size()];
+        // Holds the features of the patches until the end of the frame
+        MatArena arena = new MatArena();
+
+        boolean[][] plan = planner != null ? planner.firstPass(frameId) : null;
+        if (changes != null) {
+            changes.beginFrame(mat);
+            plan = changes.reuse(plan, foundedRectList);
+        }
+        scanPatches(frameId, mat, detectors, patchIdentifierList, frameFeatures, patchFeatures, arena, plan, changes,
+                foundedRectList);
+        if (planner != null) {
+            boolean[][] rest = planner.fallback(foundedRectList);
+            if (rest != null && changes != null) {
+                rest = changes.reuse(rest, foundedRectList);
+            }
+            if (rest != null) {
+                scanPatches(frameId, mat, detectors, patchIdentifierList, frameFeatures, patchFeatures, arena, rest,
+                        changes, foundedRectList);
+            }
+            planner.record(foundedRectList);
+        }
+
+        arena.release();
+        // No search of this frame reads the evicted templates any more
+        for (logoDetectorBeta detector : detectors) {
+            detector.releaseEvicted();
+        }
+        return foundedRectList;
+    }
+
+    /**
+     * Checks the patches of the plan for each logo, slicing the features of a patch from frameFeatures the first time
+     * they are needed, or letting the detector extract them if frameFeatures is null.
+     */
+    private static void scanPatches(
+            int frameId, Mat mat, List<logoDetectorBeta> detectors, List<SerializablePatchIdentifier> patchIdentifierList,
+            FrameFeatures frameFeatures, SIFTfeatures[] patchFeatures, MatArena arena, boolean[][] plan,
+            PatchChangeDetector changes, List<List<SerializableRect>> foundedRectList) {
+
         for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
             logoDetectorBeta detector = detectors.get(logoIndex);
-            //int totalFoundCnt = 0;
-            for (SerializablePatchIdentifier hostPatch : patchIdentifierList) {
-                detector.detectLogosInRoi(mat, hostPatch.roi.toJavaCVRect());
+            for (int patchIndex = 0; patchIndex < patchIdentifierList.size(); patchIndex++) {
+                if (!ScanPlanner.includes(plan, logoIndex, patchIndex)) {
+                    continue;
+                }
+                SerializablePatchIdentifier hostPatch = patchIdentifierList.get(patchIndex);
+                if (frameFeatures != null) {
+                    if (patchFeatures[patchIndex] == null) {
+                        patchFeatures[patchIndex] = frameFeatures.slice(hostPatch.roi.toJavaCVRect());
+                        patchFeatures[patchIndex].addTo(arena);
+                    }
+                    detector.detectLogosByFeatures(patchFeatures[patchIndex]);
+                } else {
+                    detector.detectLogosInRoi(mat, hostPatch.roi.toJavaCVRect());
+                }
                 SerializableRect detectedLogo = detector.getFoundRect();
                 SerializableMat extractedTemplate = detector.getExtractedTemplate();
+                if (changes != null) {
+                    changes.store(logoIndex, patchIndex, detectedLogo);
+                }
 
                 if (detectedLogo != null) {
-                    detector.addTemplate(hostPatch, extractedTemplate);
+                    detector.addTemplate(new SerializablePatchIdentifier(frameId, hostPatch.roi), extractedTemplate);
                     detector.incrementPriority(detector.getParentIdentifier(), 1);
 
                     foundedRectList.get(logoIndex).add(detectedLogo);
-                    //totalFoundCnt++;
                 }
             }
-            //System.out.println("FrameID: " + frameId + ", logoIndex: " + logoIndex + ", totalfoundRect: " + totalFoundCnt);
         }
-        return foundedRectList;
     }
 
+    /**
+     * Detects logos on one frame, extracting the features of each patch separately.
+     */
     public static List<List<SerializableRect>> LogoDetectionForOneFrameGama(
             int frameId, Mat mat, List<logoDetectorGamma> detectors,
             List<SerializablePatchIdentifier> patchIdentifierList, SIFT sift) {
+        return LogoDetectionForOneFrameGama(frameId, mat, detectors, patchIdentifierList, sift, false);
+    }
+
+    public static List<List<SerializableRect>> LogoDetectionForOneFrameGama(
+            int frameId, Mat mat, List<logoDetectorGamma> detectors,
+            List<SerializablePatchIdentifier> patchIdentifierList, SIFT sift, boolean wholeFrameExtraction) {
+        return LogoDetectionForOneFrameGama(frameId, mat, detectors, patchIdentifierList, sift, wholeFrameExtraction,
+                null, null);
+    }
+
+    /**
+     * Detects logos on one frame, extracting the features of each checked patch once for all logos.
+     *
+     * @param planner If not null, chooses the patches checked for each logo, otherwise the whole grid is checked
+     * @param changes If not null, the results of the patches that did not change are reused instead of checked again
+     */
+    public static List<List<SerializableRect>> LogoDetectionForOneFrameGama(
+            int frameId, Mat mat, List<logoDetectorGamma> detectors,
+            List<SerializablePatchIdentifier> patchIdentifierList, SIFT sift, boolean wholeFrameExtraction,
+            ScanPlanner planner, PatchChangeDetector changes) {
 
         List<List<SerializableRect>> foundedRectList = new ArrayList<>();
 
@@ -500,30 +872,81 @@ public class logoDetectorRunner {
             foundedRectList.add(new ArrayList<>());
         }
 
+        FrameFeatures frameFeatures = wholeFrameExtraction ? new FrameFeatures(sift, mat) : null;
+        SIFTfeatures[] patchFeatures = new SIFTfeatures[patchIdentifierList.size()];
+        // Holds the features of the patches until the end of the frame
+        MatArena arena = new MatArena();
+
+        boolean[][] plan = planner != null ? planner.firstPass(frameId) : null;
+        if (changes != null) {
+            changes.beginFrame(mat);
+            plan = changes.reuse(plan, foundedRectList);
+        }
+        scanPatchesGama(frameId, mat, detectors, patchIdentifierList, sift, frameFeatures, patchFeatures, arena, plan,
+                changes, foundedRectList);
+        if (planner != null) {
+            boolean[][] rest = planner.fallback(foundedRectList);
+            if (rest != null && changes != null) {
+                rest = changes.reuse(rest, foundedRectList);
+            }
+            if (rest != null) {
+                scanPatchesGama(frameId, mat, detectors, patchIdentifierList, sift, frameFeatures, patchFeatures, arena,
+                        rest, changes, foundedRectList);
+            }
+            planner.record(foundedRectList);
+        }
+
+        arena.release();
+        // No search of this frame reads the evicted templates any more
+        for (logoDetectorGamma detector : detectors) {
+            detector.releaseEvicted();
+        }
+        return foundedRectList;
+    }
 
-        int totalFoundCnt = 0;
-        for (SerializablePatchIdentifier hostPatch : patchIdentifierList) {
-            SIFTfeatures sifTfeatures = new SIFTfeatures(sift, mat, hostPatch.roi.toJavaCVRect(), true);
+    /**
+     * Checks the patches of the plan, extracting (or slicing) the features of a patch the first time it is checked
+     * for some logo and matching them against every logo the plan checks on it.
+     */
+    private static void scanPatchesGama(
+            int frameId, Mat mat, List<logoDetectorGamma> detectors, List<SerializablePatchIdentifier> patchIdentifierList,
+            SIFT sift, FrameFeatures frameFeatures, SIFTfeatures[] patchFeatures, MatArena arena, boolean[][] plan,
+            PatchChangeDetector changes, List<List<SerializableRect>> foundedRectList) {
+
+        for (int patchIndex = 0; patchIndex < patchIdentifierList.size(); patchIndex++) {
+            if (!ScanPlanner.includesAny(plan, patchIndex)) {
+                continue;
+            }
+            SerializablePatchIdentifier hostPatch = patchIdentifierList.get(patchIndex);
+            if (patchFeatures[patchIndex] == null) {
+                patchFeatures[patchIndex] = frameFeatures != null
+                        ? frameFeatures.slice(hostPatch.roi.toJavaCVRect())
+                        : new SIFTfeatures(sift, mat, hostPatch.roi.toJavaCVRect(), true);
+                patchFeatures[patchIndex].addTo(arena);
+            }
 
             for (int logoIndex = 0; logoIndex < detectors.size(); logoIndex++) {
+                if (!ScanPlanner.includes(plan, logoIndex, patchIndex)) {
+                    continue;
+                }
                 logoDetectorGamma detector = detectors.get(logoIndex);
 
                 //detector.detectLogosInRoi(mat, hostPatch.roi.toJavaCVRect());
-                detector.detectLogosByFeatures(sifTfeatures);
+                detector.detectLogosByFeatures(patchFeatures[patchIndex]);
 
                 SerializableRect detectedLogo = detector.getFoundRect();
                 SerializableMat extractedTemplate = detector.getExtractedTemplate();
+                if (changes != null) {
+                    changes.store(logoIndex, patchIndex, detectedLogo);
+                }
 
                 if (detectedLogo != null) {
-                    detector.addTemplate(hostPatch, extractedTemplate);
+                    detector.addTemplate(new SerializablePatchIdentifier(frameId, hostPatch.roi), extractedTemplate);
                     detector.incrementPriority(detector.getParentIdentifier(), 1);
 
                     foundedRectList.get(logoIndex).add(detectedLogo);
-                    totalFoundCnt++;
                 }
             }
-            // System.out.println("FrameID: " + frameId + ", totalfoundRect: " + totalFoundCnt);
         }
-        return foundedRectList;
     }
-}
\ No newline at end of file
+}
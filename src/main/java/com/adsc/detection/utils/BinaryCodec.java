@@ -0,0 +1,285 @@
+package com.adsc.detection.utils;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary encoding of Mats, rects and patch identifiers into a caller supplied {@link ByteBuffer}, heap or direct.
+ * <p>A Mat is written as a fixed little-endian header of four ints, rows, cols, type and the length of the data in
+ * bytes, followed by the raw data. The data is copied with the primitive type of the depth of the Mat, so Mats of
+ * any depth (descriptors are CV_32F) are supported, while {@link SerializableMat#SerializableMat(Mat)} assumes
+ * one byte per channel.</p>
+ * <p>Compared with {@link SerializableMat#toByteArray()} and {@link SerializableStructure#CvMat2ByteArray(Mat)},
+ * which go through object streams, there is no stream header and no serialized copy of the data. The Java bindings
+ * of OpenCV 3.2 only copy the data of a Mat from and to Java arrays, and only the put of bytes takes an offset into
+ * the array, so the data goes through one temporary primitive array on each side: Mat, array, buffer when writing,
+ * and buffer, array, Mat when reading. The only exception is an 8 bit Mat read from a heap buffer, which is put
+ * straight from the backing array of the buffer. Direct buffers, such as mapped files, always take the temporary
+ * array.</p>
+ * <p>The order of the buffer is only changed during a call.</p>
+ */
+public class BinaryCodec {
+
+    /** Size of the header of a Mat: rows, cols, type, length of the data */
+    public static final int MAT_HEADER_SIZE = 4 * 4;
+    /** Size of an encoded rect: x, y, width, height */
+    public static final int RECT_SIZE = 4 * 4;
+    /** Size of an encoded patch identifier: frame id, 1 if there is a roi, the roi */
+    public static final int PATCH_IDENTIFIER_SIZE = 4 + 4 + RECT_SIZE;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * @return the number of bytes {@link #writeMat(ByteBuffer, Mat)} writes for the Mat
+     */
+    public static int encodedSize(Mat mat) {
+        return MAT_HEADER_SIZE + dataLength(mat);
+    }
+
+    /**
+     * @return the number of bytes {@link #writeSerializableMat(ByteBuffer, SerializableMat)} writes for the Mat
+     */
+    public static int encodedSize(SerializableMat mat) {
+        return MAT_HEADER_SIZE + mat.getData().length;
+    }
+
+    /**
+     * Writes the Mat at the position of the buffer and moves the position past it.
+     *
+     * @param buffer The buffer, with at least {@link #encodedSize(Mat)} bytes remaining
+     * @param mat    The Mat
+     */
+    public static void writeMat(ByteBuffer buffer, Mat mat) {
+        // Copied into one block, as the data is read from the start of the Mat in one go
+        Mat source = mat.isContinuous() ? mat : mat.clone();
+        try {
+            writeContinuousMat(buffer, source);
+        } finally {
+            if (source != mat)
+                source.release();
+        }
+    }
+
+    private static void writeContinuousMat(ByteBuffer buffer, Mat mat) {
+        int length = dataLength(mat);
+        int elements = (int) (mat.total() * mat.channels());
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            buffer.putInt(mat.rows()).putInt(mat.cols()).putInt(mat.type()).putInt(length);
+            if (elements == 0)
+                return;
+            switch (CvType.depth(mat.type())) {
+                case CvType.CV_8U:
+                case CvType.CV_8S: {
+                    byte[] data = new byte[elements];
+                    mat.get(0, 0, data);
+                    buffer.put(data);
+                    break;
+                }
+                case CvType.CV_16U:
+                case CvType.CV_16S: {
+                    short[] data = new short[elements];
+                    mat.get(0, 0, data);
+                    buffer.asShortBuffer().put(data);
+                    break;
+                }
+                case CvType.CV_32S: {
+                    int[] data = new int[elements];
+                    mat.get(0, 0, data);
+                    buffer.asIntBuffer().put(data);
+                    break;
+                }
+                case CvType.CV_32F: {
+                    float[] data = new float[elements];
+                    mat.get(0, 0, data);
+                    buffer.asFloatBuffer().put(data);
+                    break;
+                }
+                case CvType.CV_64F: {
+                    double[] data = new double[elements];
+                    mat.get(0, 0, data);
+                    buffer.asDoubleBuffer().put(data);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unsupported Mat type " + CvType.typeToString(mat.type()));
+            }
+            // The views above do not move the position of the buffer
+            if (CvType.depth(mat.type()) > CvType.CV_8S)
+                buffer.position(buffer.position() + length);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Reads a Mat written by {@link #writeMat(ByteBuffer, Mat)} at the position of the buffer and moves the
+     * position past it.
+     *
+     * @param buffer The buffer
+     * @return the new Mat
+     */
+    public static Mat readMat(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int rows = buffer.getInt(), cols = buffer.getInt(), type = buffer.getInt(), length = buffer.getInt();
+            Mat mat = new Mat(rows, cols, type);
+            int elements = rows * cols * CvType.channels(type);
+            if (elements == 0)
+                return mat;
+            switch (CvType.depth(type)) {
+                case CvType.CV_8U:
+                case CvType.CV_8S: {
+                    if (buffer.hasArray()) {
+                        mat.put(0, 0, buffer.array(), buffer.arrayOffset() + buffer.position(), elements);
+                    } else {
+                        byte[] data = new byte[elements];
+                        buffer.duplicate().get(data);
+                        mat.put(0, 0, data);
+                    }
+                    break;
+                }
+                case CvType.CV_16U:
+                case CvType.CV_16S: {
+                    short[] data = new short[elements];
+                    buffer.asShortBuffer().get(data);
+                    mat.put(0, 0, data);
+                    break;
+                }
+                case CvType.CV_32S: {
+                    int[] data = new int[elements];
+                    buffer.asIntBuffer().get(data);
+                    mat.put(0, 0, data);
+                    break;
+                }
+                case CvType.CV_32F: {
+                    float[] data = new float[elements];
+                    buffer.asFloatBuffer().get(data);
+                    mat.put(0, 0, data);
+                    break;
+                }
+                case CvType.CV_64F: {
+                    double[] data = new double[elements];
+                    buffer.asDoubleBuffer().get(data);
+                    mat.put(0, 0, data);
+                    break;
+                }
+                default:
+                    mat.release();
+                    throw new IllegalArgumentException("Unsupported Mat type " + CvType.typeToString(type));
+            }
+            buffer.position(buffer.position() + length);
+            return mat;
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Writes the Mat in the format of {@link #writeMat(ByteBuffer, Mat)}.
+     *
+     * @param buffer The buffer, with at least {@link #encodedSize(SerializableMat)} bytes remaining
+     * @param mat    The Mat
+     */
+    public static void writeSerializableMat(ByteBuffer buffer, SerializableMat mat) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            byte[] data = mat.getData();
+            buffer.putInt(mat.getRows()).putInt(mat.getCols()).putInt(mat.getType()).putInt(data.length);
+            buffer.put(data);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Reads a Mat written by {@link #writeSerializableMat(ByteBuffer, SerializableMat)} without creating a Mat.
+     *
+     * @param buffer The buffer
+     * @return the Mat
+     */
+    public static SerializableMat readSerializableMat(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int rows = buffer.getInt(), cols = buffer.getInt(), type = buffer.getInt(), length = buffer.getInt();
+            byte[] data = new byte[length];
+            buffer.get(data);
+            return new SerializableMat(rows, cols, type, data);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Writes the rect as four little-endian ints, x, y, width and height.
+     */
+    public static void writeRect(ByteBuffer buffer, SerializableRect rect) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            buffer.putInt(rect.x).putInt(rect.y).putInt(rect.width).putInt(rect.height);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Reads a rect written by {@link #writeRect(ByteBuffer, SerializableRect)}.
+     */
+    public static SerializableRect readRect(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int x = buffer.getInt(), y = buffer.getInt(), width = buffer.getInt(), height = buffer.getInt();
+            return new SerializableRect(x, y, width, height);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Writes the identifier as its frame id, 1 or 0 whether it has a roi, and the roi (zeros if there is none),
+     * always {@link #PATCH_IDENTIFIER_SIZE} bytes.
+     */
+    public static void writePatchIdentifier(ByteBuffer buffer, SerializablePatchIdentifier identifier) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            buffer.putInt(identifier.frameId).putInt(identifier.roi != null ? 1 : 0);
+            SerializableRect roi = identifier.roi != null ? identifier.roi : new SerializableRect(0, 0, 0, 0);
+            writeRect(buffer, roi);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     * Reads an identifier written by {@link #writePatchIdentifier(ByteBuffer, SerializablePatchIdentifier)}.
+     */
+    public static SerializablePatchIdentifier readPatchIdentifier(ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int frameId = buffer.getInt();
+            boolean hasRoi = buffer.getInt() != 0;
+            SerializableRect roi = readRect(buffer);
+            return new SerializablePatchIdentifier(frameId, hasRoi ? roi : null);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    private static int dataLength(Mat mat) {
+        return (int) (mat.total() * mat.elemSize());
+    }
+}
@@ -37,6 +37,10 @@ public class SerializableStructure {
             return type;
         }
 
+        public byte[] getData() {
+            return data;
+        }
+
         public SerializableMat() {
         }
 
@@ -74,7 +78,6 @@ public class SerializableStructure {
                 while (readed < size) {
                     readed += in.read(data, readed, size - readed);
                 }
-                System.out.println("in: " + this.rows + "-" + this.cols + "-" + this.type + "-" + input.length + "-" + size + "-" + readed);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -86,16 +89,21 @@ public class SerializableStructure {
          * @param mat The opencv_core.Mat
          */
         public SerializableMat(org.opencv.core.Mat mat) {
-            if (!mat.isContinuous())
-                mat = mat.clone();
+            // A submatrix is copied into one block first, and the copy released once read
+            org.opencv.core.Mat source = mat.isContinuous() ? mat : mat.clone();
 
-            this.rows = mat.rows();
-            this.cols = mat.cols();
-            this.type = mat.type();
-            int size = mat.rows() * mat.cols() * mat.channels();
+            this.rows = source.rows();
+            this.cols = source.cols();
+            this.type = source.type();
+            int size = source.rows() * source.cols() * source.channels();
             this.data = new byte[size];
 
-            mat.get(0, 0, this.data);
+            try {
+                source.get(0, 0, this.data);
+            } finally {
+                if (source != mat)
+                    source.release();
+            }
 //            ByteBuffer bb = mat.getByteBuffer();
 //            bb.rewind();
 //            this.data = new byte[size];
@@ -113,6 +121,12 @@ public class SerializableStructure {
         }
 
 
+        /**
+         * Serializes this Mat with object streams, the format read by {@link #SerializableMat(byte[])}.
+         * {@link BinaryCodec} writes a more compact format without intermediate copies.
+         *
+         * @return the serialized Mat
+         */
         public byte[] toByteArray() {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             ObjectOutput out = null;
@@ -126,8 +140,6 @@ public class SerializableStructure {
                 out.close();
                 byte[] int_bytes = bos.toByteArray();
                 bos.close();
-
-                System.out.println("out: " + this.rows + "-" + this.cols + "-" + this.type + "-" + this.data.length + "-" + int_bytes.length);
                 return int_bytes;
             } catch (IOException e) {
                 e.printStackTrace();
@@ -137,6 +149,141 @@ public class SerializableStructure {
 
     }
 
+    /**
+     * Serializable Mat carrying its image compressed by {@link org.opencv.imgcodecs.Imgcodecs#imencode}, as PNG,
+     * JPEG or WebP, instead of raw pixels, which makes extracted templates several times smaller to send.
+     * The image is only decoded when {@link #toJavaCVMat()} or {@link #getData()} is called.<p>
+     * It may also carry the key points and descriptors of the image, so that the receiver can add the template
+     * without extracting them again, see {@link #hasFeatures()}.
+     */
+    public static class EncodedSerializableMat extends SerializableMat {
+        private byte[] encoded;
+        private String format;
+        /** Key points as in a MatOfKeyPoint, null if not carried */
+        private float[] keyPoints;
+        /** CV_32F descriptors row by row, null if not carried */
+        private float[] descriptors;
+        private int descriptorCols;
+        /** Raw pixels, decoded on first use */
+        private transient byte[] decoded;
+
+        public EncodedSerializableMat() {
+        }
+
+        /**
+         * Compresses the Mat.
+         *
+         * @param mat     The image
+         * @param format  The extension of the format: ".png", ".jpg" or ".webp"
+         * @param quality The quality from 0 to 100 for JPEG and WebP; PNG is lossless and ignores it
+         */
+        public EncodedSerializableMat(org.opencv.core.Mat mat, String format, int quality) {
+            super(mat.rows(), mat.cols(), mat.type(), null);
+            this.format = format;
+            org.opencv.core.MatOfInt params;
+            if (".jpg".equals(format) || ".jpeg".equals(format))
+                params = new org.opencv.core.MatOfInt(org.opencv.imgcodecs.Imgcodecs.IMWRITE_JPEG_QUALITY, quality);
+            else if (".webp".equals(format))
+                params = new org.opencv.core.MatOfInt(org.opencv.imgcodecs.Imgcodecs.IMWRITE_WEBP_QUALITY, quality);
+            else
+                params = new org.opencv.core.MatOfInt();
+            org.opencv.core.MatOfByte buffer = new org.opencv.core.MatOfByte();
+            if (!org.opencv.imgcodecs.Imgcodecs.imencode(format, mat, buffer, params))
+                throw new IllegalArgumentException("Cannot encode the image as " + format);
+            encoded = buffer.toArray();
+            buffer.release();
+            params.release();
+        }
+
+        /**
+         * Attaches the features of the image.
+         *
+         * @param keyPoints      The key points, in the layout of a MatOfKeyPoint, 7 floats per key point
+         * @param descriptors    The CV_32F descriptors of the key points, row by row
+         * @param descriptorCols The length of a descriptor
+         * @return this
+         */
+        public EncodedSerializableMat withFeatures(float[] keyPoints, float[] descriptors, int descriptorCols) {
+            this.keyPoints = keyPoints;
+            this.descriptors = descriptors;
+            this.descriptorCols = descriptorCols;
+            return this;
+        }
+
+        /**
+         * @return true if the key points and descriptors of the image are carried along
+         */
+        public boolean hasFeatures() {
+            return keyPoints != null && descriptors != null;
+        }
+
+        /**
+         * @return the carried key points as a new MatOfKeyPoint
+         */
+        public org.opencv.core.MatOfKeyPoint getKeyPoints() {
+            org.opencv.core.MatOfKeyPoint mat = new org.opencv.core.MatOfKeyPoint();
+            // One descriptor row per key point
+            int n = descriptorCols > 0 ? descriptors.length / descriptorCols : 0;
+            if (n > 0) {
+                mat.alloc(n);
+                mat.put(0, 0, keyPoints);
+            }
+            return mat;
+        }
+
+        /**
+         * @return the carried descriptors as a new CV_32F Mat
+         */
+        public org.opencv.core.Mat getDescriptors() {
+            int rows = descriptorCols > 0 ? descriptors.length / descriptorCols : 0;
+            org.opencv.core.Mat mat = new org.opencv.core.Mat(rows, descriptorCols, org.opencv.core.CvType.CV_32FC1);
+            if (rows > 0)
+                mat.put(0, 0, descriptors);
+            return mat;
+        }
+
+        public byte[] getEncoded() {
+            return encoded;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        /**
+         * @return the raw pixels, decoded on the first call
+         */
+        @Override
+        public byte[] getData() {
+            if (decoded == null) {
+                org.opencv.core.Mat mat = toJavaCVMat();
+                decoded = new SerializableMat(mat).getData();
+                mat.release();
+            }
+            return decoded;
+        }
+
+        /**
+         * @return the decoded image
+         */
+        @Override
+        public org.opencv.core.Mat toJavaCVMat() {
+            org.opencv.core.MatOfByte buffer = new org.opencv.core.MatOfByte(encoded);
+            org.opencv.core.Mat mat = org.opencv.imgcodecs.Imgcodecs.imdecode(buffer,
+                    org.opencv.imgcodecs.Imgcodecs.IMREAD_UNCHANGED);
+            buffer.release();
+            return mat;
+        }
+
+        /**
+         * @return the raw image serialized by {@link SerializableMat#toByteArray()}
+         */
+        @Override
+        public byte[] toByteArray() {
+            return new SerializableMat(getRows(), getCols(), getType(), getData()).toByteArray();
+        }
+    }
+
     /**
      * Kryo Serializable Rect class.
      */
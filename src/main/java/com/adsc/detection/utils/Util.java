@@ -9,8 +9,7 @@ import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 
 /**
  * This class provides static geometric methods for refining the results given by RANSAC algorithm
@@ -157,79 +156,169 @@ public class Util {
     }
 
     /**
-     * Given list of points find the rectangle of minimal area which includes at least accuracy*100% points. O(n^3)
+     * Given list of points find the rectangle of minimal area which includes at least accuracy*100% points.
      * @param list - list of 2D points
      * @param accuracy - the ratio
      * @return the rectangle enclosing points.
+     * @see #bestBoundingBoxFast(double[], double[], int, double)
      */
     public static Rect bestBoundingBoxFast(ArrayList<Point> list, double accuracy) {
+        int N = list.size();
+        double[] x = new double[N], y = new double[N];
+        for (int i = 0 ; i < N ; i ++) {
+            x[i] = list.get(i).x;
+            y[i] = list.get(i).y;
+        }
+        return bestBoundingBoxFast(x, y, N, accuracy);
+    }
+
+    /**
+     * Given points as coordinate arrays find the rectangle of minimal area which includes at least accuracy*100%
+     * points.
+     * <p>Let n be the number of points to cover and m = N - n the number of points allowed outside. The left side of
+     * the best rectangle passes through one of the m + 1 leftmost points. For each of them we sweep the right side
+     * over the points in order of x, and keep the y ranks of the points in between in a Fenwick tree, an
+     * order-statistic structure on y. Once c &gt;= n points are between the sides, the best rectangle drops s of the
+     * lowest points and c - n - s of the highest ones, so only the c - n + 1 lowest and highest points are needed;
+     * the tree finds the next of them, or the rank of the new point among them, in O(log N). The sweep stops as soon
+     * as the width times the smallest height that n points right of the left side can have exceeds the best area.
+     * The sweep takes O(m N log N), within O(N^2 log N), and the rectangles it checks add up to at most
+     * (m + 1)^3 / 6, so the worst case is still cubic in m.</p>
+     * <p>The rectangle is unique: of the rectangles of smallest area whose left and right sides pass through points,
+     * and bottom and top sides through points between them, it has the leftmost left side, then the leftmost right
+     * side, then the lowest bottom side and then the lowest top side.</p>
+     * @param x - x coordinates of the points
+     * @param y - y coordinates of the points
+     * @param N - number of points
+     * @param accuracy - the ratio
+     * @return the rectangle enclosing points.
+     */
+    public static Rect bestBoundingBoxFast(double[] x, double[] y, int N, double accuracy) {
         if (accuracy < 0.0 || accuracy > 1.0) {
             System.err.println("Not valid accuracy [0.0, 1.0]");
             accuracy = .9;
         }
-        int N = list.size(), n = (int)Math.ceil(N * accuracy);
-        Rect best = new Rect(0, 0, 1 << 15, 1 << 15); // 'infinite' rectangle
+        if (N == 0) {
+            return new Rect(0, 0, 1 << 15, 1 << 15); // 'infinite' rectangle
+        }
+        int n = Math.max(1, (int)Math.ceil(N * accuracy)), m = N - n;
 
-        ArrayList<Point> xSorted = (ArrayList<Point>)list.clone();
-        ArrayList<Point> ySorted = (ArrayList<Point>)list.clone();
+        int[] xOrder = sortedOrder(x, N), yOrder = sortedOrder(y, N);
+        int[] xRank = new int[N], yRank = new int[N];
+        for (int i = 0 ; i < N ; i ++) {
+            xRank[xOrder[i]] = i;
+            yRank[yOrder[i]] = i;
+        }
 
-        Collections.sort(xSorted, new Comparator<Point>() {
-            public int compare(Point o1, Point o2) {
-                if (o1.x < o2.x) return -1;
-                if (o1.x > o2.x) return 1;
-                if (o1.y < o2.y) return -1;
-                if (o1.y > o2.y) return 1;
-                return 0;
-            }
-        });
-        Collections.sort(ySorted, new Comparator<Point>() {
-            public int compare(Point o1, Point o2) {
-                if (o1.y < o2.y) return -1;
-                if (o1.y > o2.y) return 1;
-                if (o1.x > o2.x) return -1;
-                if (o1.x < o2.x) return 1;
-                return 0;
-            }
-        });
+        // Fenwick tree over the y ranks of the points between the sides
+        int[] tree = new int[N + 1];
+        // The e + 1 lowest y values between the sides in ascending order, and the e + 1 highest in descending order
+        double[] low = new double[m + 1], high = new double[m + 1];
+        // The y values right of the left side in ascending order
+        double[] column = new double[N];
 
-        for (int i = 0 ; i < N ; i ++) {
-            for (int j = 0 ; j < N ; j ++) {
-    			/*
-    			int cur = 0, pup = N - 1, pright = i;
-    			while (cur < n && pright < N) {
-    				if (xSorted.get(pright).y() >= ySorted.get(j).y())
-    					cur ++;
-    				pright ++;
-    			}
-    			if (cur < n) break;// ????
-    			double xMin = xSorted.get(i).x(), xMax = xSorted.get(pright).x(),
-						yMin = ySorted.get(j).y(), yMax = ySorted.get(pup).y();
-				*/
-                int cur = 0;
-                double xMin = xSorted.get(i).x,
-                        yMin = ySorted.get(j).y;
-                for (int pup = N - 1, pright = i - 1; pup >= j ;  ) {
-                    while ( pright + 1 < N &&  (cur < n || (pright < 0 || xSorted.get(pright).x == xSorted.get(pright + 1).x) )  ) {
-                        if (xSorted.get(pright + 1).y >= ySorted.get(j).y && xSorted.get(pright + 1).y <= ySorted.get(pup).y)
-                            cur ++;
-                        pright = pright + 1;
-                    }
+        double bestArea = Double.POSITIVE_INFINITY;
+        double bestXMin = 0, bestYMin = 0, bestXMax = 1 << 15, bestYMax = 1 << 15;
 
-                    if (cur < n) break;// ????
+        for (int left = 0 ; left <= m ; left ++) {
+            double xMin = x[xOrder[left]];
+            // The smallest height of n points right of the left side
+            int k = 0;
+            for (int i = 0 ; i < N ; i ++) {
+                if (xRank[yOrder[i]] >= left)
+                    column[k ++] = y[yOrder[i]];
+            }
+            double minHeight = Double.POSITIVE_INFINITY;
+            for (int i = n - 1 ; i < k ; i ++)
+                minHeight = Math.min(minHeight, column[i] - column[i - n + 1]);
 
-                    double xMax = xSorted.get(pright).x;
-                    double yMax = ySorted.get(pup).y;
-                    if ((xMax - xMin) * (yMax - yMin) < best.area()) {
-                        best = new Rect((int)xMin, (int)yMin, (int)(xMax - xMin), (int)(yMax - yMin));
+            Arrays.fill(tree, 0);
+            for (int right = left, c = 1 ; right < N ; right ++, c ++) {
+                int p = xOrder[right];
+                double width = x[p] - xMin;
+                if (width * minHeight > bestArea)
+                    break;
+                for (int r = yRank[p] + 1 ; r <= N ; r += r & -r)
+                    tree[r] ++;
+                if (c < n)
+                    continue;
+
+                int e = c - n;
+                if (e == 0) {
+                    low[0] = y[yOrder[select(tree, 1)]];
+                    high[0] = y[yOrder[select(tree, c)]];
+                } else {
+                    int below = 0; // points between the sides lower than the new one
+                    for (int r = yRank[p] ; r > 0 ; r -= r & -r)
+                        below += tree[r];
+                    if (below <= e) {
+                        System.arraycopy(low, below, low, below + 1, e - below);
+                        low[below] = y[p];
+                    } else {
+                        low[e] = y[yOrder[select(tree, e + 1)]];
                     }
-                    if ( ySorted.get(pup).x >= xMin && ySorted.get(pup).x <= xMax) {
-                        cur --;
+                    int above = c - 1 - below;
+                    if (above <= e) {
+                        System.arraycopy(high, above, high, above + 1, e - above);
+                        high[above] = y[p];
+                    } else {
+                        high[e] = y[yOrder[select(tree, c - e)]];
                     }
+                }
 
-                    pup --;
+                for (int s = 0 ; s <= e ; s ++) {
+                    double yMin = low[s], yMax = high[e - s];
+                    double area = width * (yMax - yMin);
+                    if (area < bestArea || area == bestArea && (xMin < bestXMin || xMin == bestXMin
+                            && (x[p] < bestXMax || x[p] == bestXMax
+                            && (yMin < bestYMin || yMin == bestYMin && yMax < bestYMax)))) {
+                        bestArea = area;
+                        bestXMin = xMin;
+                        bestXMax = x[p];
+                        bestYMin = yMin;
+                        bestYMax = yMax;
+                    }
                 }
             }
         }
-        return best;
+        return new Rect((int)bestXMin, (int)bestYMin, (int)(bestXMax - bestXMin), (int)(bestYMax - bestYMin));
+    }
+
+    /**
+     * Returns the k-th smallest rank counted in a Fenwick tree of counts, where rank r is kept at index r + 1.
+     */
+    private static int select(int[] tree, int k) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(tree.length - 1) ; step > 0 ; step >>= 1) {
+            if (position + step < tree.length && tree[position + step] < k) {
+                position += step;
+                k -= tree[position];
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Returns the indices of the first N values sorted in ascending order of values. Merge sort, so equal values
+     * keep the order of their indices.
+     */
+    private static int[] sortedOrder(double[] values, int N) {
+        int[] order = new int[N], buffer = new int[N];
+        for (int i = 0 ; i < N ; i ++)
+            order[i] = i;
+        for (int width = 1 ; width < N ; width *= 2) {
+            for (int lo = 0 ; lo < N - width ; lo += 2 * width) {
+                int mid = lo + width, hi = Math.min(lo + 2 * width, N);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi)
+                    buffer[k ++] = values[order[j]] < values[order[i]] ? order[j ++] : order[i ++];
+                while (i < mid)
+                    buffer[k ++] = order[i ++];
+                while (j < hi)
+                    buffer[k ++] = order[j ++];
+                System.arraycopy(buffer, lo, order, lo, hi - lo);
+            }
+        }
+        return order;
     }
-}
\ No newline at end of file
+}
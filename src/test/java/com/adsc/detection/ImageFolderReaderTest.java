@@ -0,0 +1,98 @@
+package com.adsc.detection;
+
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class ImageFolderReaderTest {
+
+    /**
+     * Stands for a decoded frame without native memory.
+     */
+    private static class FrameToken extends Mat {
+        FrameToken(long number) {
+            super(number);
+        }
+
+        @Override
+        protected void finalize() {
+            // Not a native Mat
+        }
+    }
+
+    @Test
+    public void framesComeInOrderAndMissingOnesAreSkipped() {
+        Set<Integer> missing = new HashSet<>(Arrays.asList(3, 5, 6, 10));
+        Map<Mat, Integer> numbers = new ConcurrentHashMap<>();
+        Random random = new Random(7);
+        List<Integer> delays = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 12; i++) {
+            delays.add(random.nextInt(20));
+        }
+
+        ImageFolderReader reader = new ImageFolderReader("frames", 1, 10, 3, 4, fileName -> {
+            int number = Integer.parseInt(fileName.replaceAll("\\D", ""));
+            // Later files often finish first
+            sleep(delays.get(number));
+            if (missing.contains(number))
+                return null;
+            Mat mat = new FrameToken(number);
+            numbers.put(mat, number);
+            return mat;
+        });
+
+        List<Integer> read = new ArrayList<>(), current = new ArrayList<>();
+        Mat mat;
+        while ((mat = reader.next()) != null) {
+            read.add(numbers.get(mat));
+            current.add(reader.getCurrentNumber());
+        }
+        reader.close();
+
+        assertEquals(Arrays.asList(1, 2, 4, 7, 8, 9), read);
+        assertEquals(read, current);
+        assertEquals(4, reader.getMissing());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void allFilesMissing() {
+        ImageFolderReader reader = new ImageFolderReader("frames", 5, 3, 2, 2, fileName -> null);
+        assertNull(reader.next());
+        assertEquals(3, reader.getMissing());
+        reader.close();
+    }
+
+    @Test
+    public void fileNamesFollowTheFrameFormat() {
+        Set<String> names = ConcurrentHashMap.newKeySet();
+        ImageFolderReader reader = new ImageFolderReader("frames", 41, 2, 1, 1, fileName -> {
+            names.add(fileName);
+            return null;
+        });
+        assertNull(reader.next());
+        reader.close();
+        String separator = System.getProperty("file.separator");
+        assertEquals(new HashSet<>(Arrays.asList("frames" + separator + "frame000041.jpg",
+                "frames" + separator + "frame000042.jpg")), names);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
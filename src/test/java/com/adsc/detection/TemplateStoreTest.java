@@ -0,0 +1,153 @@
+package com.adsc.detection;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TemplateStoreTest {
+
+    private static LogoTemplate template(int frameId) {
+        // The store never touches the Mats
+        return new LogoTemplate(null, null, null, identifier(frameId));
+    }
+
+    private static SerializablePatchIdentifier identifier(int frameId) {
+        return new SerializablePatchIdentifier(frameId, new SerializableRect(0, 0, 160, 120));
+    }
+
+    @Test
+    public void equalPrioritiesKeepInsertionOrder() {
+        TemplateStore store = new TemplateStore(10);
+        LogoTemplate a = template(1), b = template(2), c = template(3);
+        store.add(a);
+        store.add(b);
+        store.add(c);
+        assertEquals(Arrays.asList(a, b, c), store.inOrder());
+    }
+
+    @Test
+    public void orderedByDecreasingPriority() {
+        TemplateStore store = new TemplateStore(10);
+        LogoTemplate a = template(1), b = template(2), c = template(3);
+        store.add(a);
+        store.add(b);
+        store.add(c);
+        assertTrue(store.incrementPriority(identifier(3), 2));
+        assertTrue(store.incrementPriority(identifier(2), 1));
+        assertEquals(Arrays.asList(c, b, a), store.inOrder());
+
+        // A tie is broken by creation order, whatever the order of the increments
+        assertTrue(store.incrementPriority(identifier(2), 1));
+        assertEquals(Arrays.asList(b, c, a), store.inOrder());
+    }
+
+    @Test
+    public void incrementOfUnknownIdentifierChangesNothing() {
+        TemplateStore store = new TemplateStore(10);
+        store.add(template(1));
+        assertFalse(store.incrementPriority(identifier(7), 1));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void rejectsDuplicateIdentifiers() {
+        TemplateStore store = new TemplateStore(10);
+        assertTrue(store.add(template(1)));
+        assertFalse(store.add(template(1)));
+        assertEquals(1, store.size());
+        assertTrue(store.contains(identifier(1)));
+        assertFalse(store.contains(identifier(2)));
+    }
+
+    @Test
+    public void addIfRoomStopsAboveLimit() {
+        TemplateStore store = new TemplateStore(10);
+        assertTrue(store.addIfRoom(template(1), 1));
+        assertTrue(store.addIfRoom(template(2), 1));
+        // Over the limit, as the detectors check before the next miss trims the store
+        assertFalse(store.addIfRoom(template(3), 1));
+        assertFalse(store.contains(identifier(3)));
+        assertFalse(store.addIfRoom(template(1), 5));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void incrementChangesPriority() {
+        TemplateStore store = new TemplateStore(10);
+        LogoTemplate a = template(1);
+        store.add(a);
+        store.incrementPriority(identifier(1), 3);
+        store.incrementPriority(identifier(1), -1);
+        assertEquals(2, a.getPriority());
+    }
+
+    @Test
+    public void evictsLowestPriorities() {
+        TemplateStore store = new TemplateStore(2);
+        LogoTemplate a = template(1), b = template(2), c = template(3), d = template(4);
+        store.add(a);
+        store.add(b);
+        store.add(c);
+        store.add(d);
+        store.incrementPriority(identifier(1), 1);
+        store.incrementPriority(identifier(4), 1);
+
+        assertEquals(Arrays.asList(c, b), store.evictOverflow());
+        assertEquals(Arrays.asList(a, d), store.inOrder());
+        assertFalse(store.contains(identifier(2)));
+        assertFalse(store.contains(identifier(3)));
+        // The identifiers of evicted templates can be added again
+        assertTrue(store.add(template(2)));
+    }
+
+    @Test
+    public void evictionAmongEqualPrioritiesDropsNewest() {
+        TemplateStore store = new TemplateStore(1);
+        LogoTemplate a = template(1);
+        store.add(a);
+        store.add(template(2));
+        store.evictOverflow();
+        assertEquals(Arrays.asList(a), store.inOrder());
+    }
+
+    @Test
+    public void evictsNothingWithinCapacity() {
+        TemplateStore store = new TemplateStore(2);
+        store.add(template(1));
+        assertTrue(store.evictOverflow().isEmpty());
+    }
+
+    @Test
+    public void copiesKeepSharedMats() {
+        // A copy shares the Mats of its source, so releasing it must not touch them, here null
+        LogoTemplate copy = TemplateBundle.copy(template(1));
+        copy.release();
+    }
+
+    @Test
+    public void snapshotDoesNotChange() {
+        TemplateStore store = new TemplateStore(10);
+        store.add(template(1));
+        List<LogoTemplate> snapshot = store.inOrder();
+        store.add(template(2));
+        assertEquals(1, snapshot.size());
+        assertEquals(2, store.inOrder().size());
+    }
+
+    @Test
+    public void loweredCapacityAppliesOnNextEviction() {
+        TemplateStore store = new TemplateStore(3);
+        store.add(template(1));
+        store.add(template(2));
+        store.add(template(3));
+        store.setCapacity(1);
+        assertEquals(3, store.size());
+        store.evictOverflow();
+        assertEquals(1, store.size());
+    }
+}
@@ -0,0 +1,92 @@
+package com.adsc.detection.utils;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BestBoundingBoxTest {
+
+    @Test
+    public void matchesReferenceOnRandomPoints() {
+        Random random = new Random(42);
+        for (int run = 0; run < 300; run++) {
+            int N = 1 + random.nextInt(60);
+            double[] x = new double[N], y = new double[N];
+            for (int i = 0; i < N; i++) {
+                // Gaussian clusters with outliers, on integer coordinates to get ties
+                boolean outlier = random.nextInt(10) == 0;
+                x[i] = Math.round(200 + random.nextGaussian() * (outlier ? 150 : 20));
+                y[i] = Math.round(150 + random.nextGaussian() * (outlier ? 150 : 20));
+            }
+            double accuracy = run % 3 == 0 ? .9 : run % 3 == 1 ? .75 : 1;
+
+            Rect fast = Util.bestBoundingBoxFast(x, y, N, accuracy);
+            Rect reference = BoundingBoxReference.bestBoundingBoxCubic(x, y, N, accuracy);
+            // The original search may keep a box up to the rounding of the area larger, never a smaller one
+            assertTrue("run " + run + ": " + fast + " larger than " + reference, fast.area() <= reference.area());
+            assertTrue("run " + run + ": covers too few points", covered(fast, x, y) >= Math.ceil(N * accuracy));
+        }
+    }
+
+    @Test
+    public void matchesDirectSearchOnRandomPoints() {
+        Random random = new Random(7);
+        for (int run = 0; run < 300; run++) {
+            int N = 1 + random.nextInt(20);
+            double[] x = new double[N], y = new double[N];
+            for (int i = 0; i < N; i++) {
+                // Few distinct coordinates, to get rectangles of the same area
+                x[i] = random.nextInt(run % 2 == 0 ? 6 : 40);
+                y[i] = random.nextInt(run % 2 == 0 ? 6 : 40);
+            }
+            double accuracy = run % 3 == 0 ? .9 : run % 3 == 1 ? .6 : 1;
+
+            Rect fast = Util.bestBoundingBoxFast(x, y, N, accuracy);
+            Rect expected = BoundingBoxReference.smallestBoundingBox(x, y, N, accuracy);
+            String message = "run " + run + ": " + fast + " instead of " + expected;
+            assertEquals(message, expected.x, fast.x);
+            assertEquals(message, expected.y, fast.y);
+            assertEquals(message, expected.width, fast.width);
+            assertEquals(message, expected.height, fast.height);
+        }
+    }
+
+    @Test
+    public void coversAllPointsAtFullAccuracy() {
+        double[] x = {10, 30, 20, 50}, y = {5, 40, 25, 15};
+        Rect box = Util.bestBoundingBoxFast(x, y, 4, 1);
+        assertEquals(10, box.x);
+        assertEquals(5, box.y);
+        assertEquals(40, box.width);
+        assertEquals(35, box.height);
+    }
+
+    @Test
+    public void leavesOutlierOutside() {
+        double[] x = {0, 1, 0, 1, 0, 1, 0, 1, 0, 100}, y = {0, 0, 1, 1, 2, 2, 3, 3, 4, 100};
+        Rect box = Util.bestBoundingBoxFast(x, y, 10, .9);
+        assertEquals(0, box.x);
+        assertEquals(0, box.y);
+        assertEquals(1, box.width);
+        assertEquals(4, box.height);
+    }
+
+    @Test
+    public void emptyInputGivesInfiniteBox() {
+        Rect box = Util.bestBoundingBoxFast(new double[0], new double[0], 0, .9);
+        assertEquals(1 << 15, box.width);
+        assertEquals(1 << 15, box.height);
+    }
+
+    private static int covered(Rect box, double[] x, double[] y) {
+        int count = 0;
+        for (int i = 0; i < x.length; i++) {
+            if (x[i] >= box.x && x[i] <= box.x + box.width && y[i] >= box.y && y[i] <= box.y + box.height)
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,61 @@
+package com.adsc.detection.utils;
+
+import static com.adsc.detection.utils.SerializableStructure.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class BinaryCodecTest {
+
+    @Test
+    public void rectRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(BinaryCodec.RECT_SIZE);
+        SerializableRect rect = new SerializableRect(12, -3, 640, 480);
+        BinaryCodec.writeRect(buffer, rect);
+        assertEquals(BinaryCodec.RECT_SIZE, buffer.position());
+
+        buffer.flip();
+        assertEquals(rect, BinaryCodec.readRect(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void rectIsLittleEndianAndKeepsBufferOrder() {
+        ByteBuffer buffer = ByteBuffer.allocate(BinaryCodec.RECT_SIZE).order(ByteOrder.BIG_ENDIAN);
+        BinaryCodec.writeRect(buffer, new SerializableRect(1, 2, 3, 4));
+        assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+        assertEquals(1, buffer.get(0));
+        assertEquals(0, buffer.get(3));
+    }
+
+    @Test
+    public void patchIdentifierRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2 * BinaryCodec.PATCH_IDENTIFIER_SIZE);
+        SerializablePatchIdentifier withRoi =
+                new SerializablePatchIdentifier(42, new SerializableRect(160, 120, 160, 120));
+        SerializablePatchIdentifier original = new SerializablePatchIdentifier(-2, null);
+        BinaryCodec.writePatchIdentifier(buffer, withRoi);
+        BinaryCodec.writePatchIdentifier(buffer, original);
+        assertEquals(2 * BinaryCodec.PATCH_IDENTIFIER_SIZE, buffer.position());
+
+        buffer.flip();
+        assertEquals(withRoi, BinaryCodec.readPatchIdentifier(buffer));
+        SerializablePatchIdentifier read = BinaryCodec.readPatchIdentifier(buffer);
+        assertEquals(original, read);
+        assertNull(read.roi);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void readsAtBufferPosition() {
+        ByteBuffer buffer = ByteBuffer.allocate(3 + BinaryCodec.RECT_SIZE);
+        buffer.position(3);
+        BinaryCodec.writeRect(buffer, new SerializableRect(5, 6, 7, 8));
+        buffer.position(3);
+        assertEquals(new SerializableRect(5, 6, 7, 8), BinaryCodec.readRect(buffer));
+    }
+}
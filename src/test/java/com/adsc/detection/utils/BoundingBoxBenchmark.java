@@ -0,0 +1,71 @@
+package com.adsc.detection.utils;
+
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of {@link Util#bestBoundingBoxFast(double[], double[], int, double)} against the original cubic search
+ * on gaussian point sets of 50, 500 and 5000 points, at the default accuracy of 0.9.
+ * <p>Run the main method from the test class path. The cubic search takes minutes per call on 5000 points, so it is
+ * timed on single calls.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoundingBoxBenchmark {
+
+    private static final double ACCURACY = .9;
+
+    /** The number of points */
+    @Param({"50", "500", "5000"})
+    public int size;
+
+    private double[] x, y;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        x = new double[size];
+        y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = 320 + random.nextGaussian() * 60;
+            y[i] = 240 + random.nextGaussian() * 60;
+        }
+    }
+
+    @Benchmark
+    public Rect sweep() {
+        return Util.bestBoundingBoxFast(x, y, size, ACCURACY);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public Rect cubic() {
+        return BoundingBoxReference.bestBoundingBoxCubic(x, y, size, ACCURACY);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BoundingBoxBenchmark.class.getSimpleName()).build()).run();
+    }
+}
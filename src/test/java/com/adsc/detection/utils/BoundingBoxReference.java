@@ -0,0 +1,152 @@
+package com.adsc.detection.utils;
+
+import org.opencv.core.Rect;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The original cubic search for the best bounding box, to time the current one against, and a direct search over all
+ * rectangles to check it.
+ */
+class BoundingBoxReference {
+
+    /**
+     * Given points as coordinate arrays find the rectangle of minimal area which includes at least accuracy*100%
+     * points. O(n^3). This is the original implementation of
+     * {@link Util#bestBoundingBoxFast(double[], double[], int, double)}, kept as a reference.
+     * @param x - x coordinates of the points
+     * @param y - y coordinates of the points
+     * @param N - number of points
+     * @param accuracy - the ratio
+     * @return the rectangle enclosing points.
+     */
+    static Rect bestBoundingBoxCubic(final double[] x, final double[] y, int N, double accuracy) {
+        if (accuracy < 0.0 || accuracy > 1.0) {
+            System.err.println("Not valid accuracy [0.0, 1.0]");
+            accuracy = .9;
+        }
+        int n = (int)Math.ceil(N * accuracy);
+        Rect best = new Rect(0, 0, 1 << 15, 1 << 15); // 'infinite' rectangle
+
+        Integer[] xOrder = new Integer[N], yOrder = new Integer[N];
+        for (int i = 0 ; i < N ; i ++) {
+            xOrder[i] = i;
+            yOrder[i] = i;
+        }
+        Arrays.sort(xOrder, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                if (x[o1] < x[o2]) return -1;
+                if (x[o1] > x[o2]) return 1;
+                if (y[o1] < y[o2]) return -1;
+                if (y[o1] > y[o2]) return 1;
+                return 0;
+            }
+        });
+        Arrays.sort(yOrder, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                if (y[o1] < y[o2]) return -1;
+                if (y[o1] > y[o2]) return 1;
+                if (x[o1] > x[o2]) return -1;
+                if (x[o1] < x[o2]) return 1;
+                return 0;
+            }
+        });
+        // coordinates in the order of x and in the order of y
+        double[] xsX = new double[N], xsY = new double[N], ysX = new double[N], ysY = new double[N];
+        for (int i = 0 ; i < N ; i ++) {
+            xsX[i] = x[xOrder[i]];
+            xsY[i] = y[xOrder[i]];
+            ysX[i] = x[yOrder[i]];
+            ysY[i] = y[yOrder[i]];
+        }
+
+        for (int i = 0 ; i < N ; i ++) {
+            for (int j = 0 ; j < N ; j ++) {
+                int cur = 0;
+                double xMin = xsX[i],
+                        yMin = ysY[j];
+                for (int pup = N - 1, pright = i - 1; pup >= j ;  ) {
+                    while ( pright + 1 < N &&  (cur < n || (pright < 0 || xsX[pright] == xsX[pright + 1]) )  ) {
+                        if (xsY[pright + 1] >= ysY[j] && xsY[pright + 1] <= ysY[pup])
+                            cur ++;
+                        pright = pright + 1;
+                    }
+
+                    if (cur < n) break;// ????
+
+                    double xMax = xsX[pright];
+                    double yMax = ysY[pup];
+                    if ((xMax - xMin) * (yMax - yMin) < best.area()) {
+                        best = new Rect((int)xMin, (int)yMin, (int)(xMax - xMin), (int)(yMax - yMin));
+                    }
+                    if ( ysX[pup] >= xMin && ysX[pup] <= xMax) {
+                        cur --;
+                    }
+
+                    pup --;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Checks every rectangle whose left and right sides pass through points, and bottom and top sides through points
+     * between them, and returns the one {@link Util#bestBoundingBoxFast(double[], double[], int, double)} should:
+     * the smallest one including at least accuracy*100% points, and of those of the same area the one with the
+     * leftmost left side, then the leftmost right side, then the lowest bottom side and then the lowest top side.
+     * O(n^5), for small inputs only.
+     * @param x - x coordinates of the points
+     * @param y - y coordinates of the points
+     * @param N - number of points
+     * @param accuracy - the ratio
+     * @return the rectangle enclosing points.
+     */
+    static Rect smallestBoundingBox(double[] x, double[] y, int N, double accuracy) {
+        int n = Math.max(1, (int)Math.ceil(N * accuracy));
+        double bestArea = Double.POSITIVE_INFINITY;
+        double[] best = {0, 1 << 15, 0, 1 << 15}; // left, right, bottom and top sides
+        for (int l = 0 ; l < N ; l ++) {
+            for (int r = 0 ; r < N ; r ++) {
+                if (x[r] < x[l])
+                    continue;
+                for (int b = 0 ; b < N ; b ++) {
+                    for (int t = 0 ; t < N ; t ++) {
+                        if (!between(x[b], x[l], x[r]) || !between(x[t], x[l], x[r]) || y[t] < y[b])
+                            continue;
+                        double area = (x[r] - x[l]) * (y[t] - y[b]);
+                        double[] sides = {x[l], x[r], y[b], y[t]};
+                        if (area > bestArea || area == bestArea && !before(sides, best))
+                            continue;
+                        int count = 0;
+                        for (int i = 0 ; i < N ; i ++) {
+                            if (between(x[i], x[l], x[r]) && between(y[i], y[b], y[t]))
+                                count ++;
+                        }
+                        if (count >= n) {
+                            bestArea = area;
+                            best = sides;
+                        }
+                    }
+                }
+            }
+        }
+        return new Rect((int)best[0], (int)best[2], (int)(best[1] - best[0]), (int)(best[3] - best[2]));
+    }
+
+    private static boolean between(double value, double min, double max) {
+        return value >= min && value <= max;
+    }
+
+    /**
+     * @return whether the sides a come before the sides b in lexicographic order
+     */
+    private static boolean before(double[] a, double[] b) {
+        for (int i = 0 ; i < a.length ; i ++) {
+            if (a[i] != b[i])
+                return a[i] < b[i];
+        }
+        return false;
+    }
+}